@@ -33,6 +33,58 @@ public class FileProperties {
      * 视频转码后的缓存目录, 位于 ${chunkFileDir}/${username}/${videoTranscodeCache}
      */
     private String videoTranscodeCache = "videoTranscodeCache";
+    /**
+     * 缩略图的缓存目录, 位于 ${chunkFileDir}/${thumbnailCache}
+     */
+    private String thumbnailCache = "thumbnailCache";
+    /**
+     * 缩略图缓存的最大大小(MB), 超过后淘汰最少使用的
+     */
+    private Long thumbnailCacheSize = 1024L;
+    /**
+     * 剪裁、webp等衍生图片的缓存目录, 位于 ${chunkFileDir}/${imageCache}
+     */
+    private String imageCache = "imageCache";
+    /**
+     * 衍生图片缓存的最大大小(MB), 超过后淘汰最少使用的
+     */
+    private Long imageCacheSize = 1024L;
+    /**
+     * oss文件的本地块缓存目录, 位于 ${chunkFileDir}/${ossBlockCache}
+     */
+    private String ossBlockCache = "ossBlockCache";
+    /**
+     * oss本地块缓存的最大大小(MB), 超过后淘汰最少使用的
+     */
+    private Long ossBlockCacheSize = 2048L;
+    /**
+     * oss目录列表缓存过期后是否先返回旧的列表, 同时在后台重新列举, 为false时过期后同步列举
+     */
+    private Boolean ossListingRevalidate = true;
+    /**
+     * 历史版本的压缩方式, gzip: 压缩(图片、视频、压缩包等已压缩的类型除外); none: 不压缩
+     */
+    private String fileVersionCompression = "gzip";
+    /**
+     * 保存历史版本的最大文件大小(MB), 超过后不保存历史版本, 小于等于0时不限制
+     */
+    private Long fileVersionMaxSize = 1024L;
+    /**
+     * 操作日志保留的天数, 超过后删除, 小于等于0时不删除
+     */
+    private Integer logRetentionDays = 180;
+    /**
+     * 删除日志前是否归档
+     */
+    private Boolean logArchive = true;
+    /**
+     * 日志归档目录, 位于 ${chunkFileDir}/${logArchiveDir}, 按月保存为 log-yyyy-MM.json.gz
+     */
+    private String logArchiveDir = "logArchive";
+    /**
+     * 抽取内容建立全文索引的最大文件大小(MB), 超过后只索引文件名, 小于等于0时不限制
+     */
+    private Long luceneIndexMaxSize = 50L;
     /***
      * 用户头像默认存储路径
      */
@@ -70,6 +122,12 @@ public class FileProperties {
      * 文件监控扫描时间间隔(秒)
      */
     private Long timeInterval = 10L;
+    /***
+     * 文件监控方式(默认polling)
+     * polling: 定时轮询扫描整个目录树
+     * watch: 基于系统文件事件(WatchService, Linux下为inotify), 不需要轮询, 适合文件数量多的目录
+     */
+    private String monitorMode = "polling";
     /***
      * webDAV协议前缀
      */
@@ -105,6 +163,14 @@ public class FileProperties {
         return chunkFileDir;
     }
 
+    /***
+     * 是否为 ${chunkFileDir} 下不属于用户的公共目录(缓存由各自淘汰, 日志归档长期保存), 清理临时目录时跳过, 也不能用作用户名
+     * @param name 目录名
+     */
+    public boolean isSharedTempDir(String name) {
+        return thumbnailCache.equals(name) || imageCache.equals(name) || ossBlockCache.equals(name) || logArchiveDir.equals(name);
+    }
+
     public String getUserImgDir() {
         return Paths.get(userImgDir).toString();
     }
@@ -247,21 +247,20 @@ public class FileController {
     @GetMapping("/view/thumbnail")
     @Permission("cloud:file:list")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<Object> thumbnail(@RequestParam String id) {
+    public ResponseEntity<Object> thumbnail(@RequestParam String id, Integer size, HttpServletRequest request, HttpServletResponse response) {
         String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
         if (ossPath != null) {
             return webOssService.thumbnail(ossPath, id);
         }
-        Optional<FileDocument> file = fileService.thumbnail(id);
-        return fileService.getObjectResponseEntity(file);
+        return fileService.thumbnail(id, size, request, response);
     }
 
     @Operation(summary = "显示缩略图")
     @GetMapping("/view/thumbnail/{filename}")
     @Permission("cloud:file:list")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<Object> thumbnailName(@RequestParam String id) {
-        return thumbnail(id);
+    public ResponseEntity<Object> thumbnailName(@RequestParam String id, Integer size, HttpServletRequest request, HttpServletResponse response) {
+        return thumbnail(id, size, request, response);
     }
 
     @Operation(summary = "显示缩略图(媒体封面)")
@@ -372,6 +371,13 @@ public class FileController {
         return fileService.unzip(fileId, destFileId);
     }
 
+    @Operation(summary = "取消解压")
+    @GetMapping("/unzip/cancel")
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> cancelUnzip(@RequestParam String taskId) {
+        return fileService.cancelUnzip(taskId);
+    }
+
     @Operation(summary = "获取目录下的文件")
     @GetMapping("/listfiles")
     @Permission("cloud:file:list")
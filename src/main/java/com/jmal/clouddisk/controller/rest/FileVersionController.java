@@ -18,6 +18,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -82,6 +83,13 @@ public class FileVersionController {
         return ResultUtil.success();
     }
 
+    @Operation(summary = "历史版本的去重统计")
+    @GetMapping("/stats")
+    @Permission("cloud:file:list")
+    public ResponseResult<Map<String, Object>> stats() {
+        return ResultUtil.success(fileVersionService.getStats());
+    }
+
     @Operation(summary = "流式读取历史simText文件")
     @GetMapping("/preview/text/stream")
     @Permission("cloud:file:list")
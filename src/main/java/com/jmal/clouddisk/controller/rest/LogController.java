@@ -4,9 +4,11 @@ import com.jmal.clouddisk.annotation.LogOperatingFun;
 import com.jmal.clouddisk.annotation.Permission;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.LogOperationDTO;
+import com.jmal.clouddisk.model.VisitCounterDO;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.service.impl.LogService;
 import com.jmal.clouddisk.util.ResponseResult;
+import com.jmal.clouddisk.util.ResultUtil;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.Operation;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,6 +16,7 @@ import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -36,4 +39,18 @@ public class LogController {
         return logService.list(logOperationDTO);
     }
 
+    @Operation(summary = "url每天的访问次数")
+    @GetMapping("/visits")
+    @Permission("sys:log:list")
+    public ResponseResult<List<VisitCounterDO>> visits(@RequestParam String url, @RequestParam String startDay, @RequestParam String endDay){
+        return ResultUtil.success(logService.getDailyVisits(url, startDay, endDay));
+    }
+
+    @Operation(summary = "日志写入统计")
+    @GetMapping("/metrics")
+    @Permission("sys:log:list")
+    public ResponseResult<Map<String, Object>> metrics(){
+        return ResultUtil.success(logService.getMetrics());
+    }
+
 }
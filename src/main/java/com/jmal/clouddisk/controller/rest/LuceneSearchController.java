@@ -3,6 +3,7 @@ package com.jmal.clouddisk.controller.rest;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.query.SearchDTO;
 import com.jmal.clouddisk.service.impl.LuceneService;
+import com.jmal.clouddisk.service.impl.UserLoginHolder;
 import com.jmal.clouddisk.util.ResponseResult;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.Operation;
@@ -29,9 +30,12 @@ public class LuceneSearchController {
     @Autowired
     private LuceneService luceneService;
 
+    @Autowired
+    private UserLoginHolder userLoginHolder;
+
     @Operation(summary = "搜索")
     @GetMapping("/")
     public ResponseResult<List<FileDocument>> list(SearchDTO searchDTO) throws IOException, ParseException, InvalidTokenOffsetsException {
-        return luceneService.searchFile(searchDTO);
+        return luceneService.searchFile(userLoginHolder.getUserId(), searchDTO);
     }
 }
@@ -21,15 +21,11 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.ContentDisposition;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
-import org.springframework.web.util.UriUtils;
 
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
@@ -158,22 +154,22 @@ public class ShareController {
     @Operation(summary = "显示缩略图")
     @GetMapping("/articles/s/view/thumbnail")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<Object> articlesThumbnail(String id) {
-        return thumbnail(id, null);
+    public ResponseEntity<Object> articlesThumbnail(String id, HttpServletRequest request, HttpServletResponse response) {
+        return thumbnail(id, null, request, response);
     }
 
     @Operation(summary = "显示缩略图")
     @GetMapping("/public/s/view/thumbnail")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<Object> publicThumbnail(String id, HttpServletRequest request) {
-        return thumbnail(id, request);
+    public ResponseEntity<Object> publicThumbnail(String id, HttpServletRequest request, HttpServletResponse response) {
+        return thumbnail(id, request, request, response);
     }
 
     @Operation(summary = "显示缩略图")
     @GetMapping("/public/s/view/thumbnail/{filename}")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<Object> publicThumbnailName(String id, HttpServletRequest request) {
-        return publicThumbnail(id, request);
+    public ResponseEntity<Object> publicThumbnailName(String id, HttpServletRequest request, HttpServletResponse response) {
+        return publicThumbnail(id, request, response);
     }
 
     @Operation(summary = "显示缩略图(媒体封面)")
@@ -185,26 +181,19 @@ public class ShareController {
         return fileService.getObjectResponseEntity(file);
     }
 
-    private ResponseEntity<Object> thumbnail(String id, HttpServletRequest request) {
+    /***
+     * @param accessRequest 用于检查分享的访问权限, 为null时不检查(已发布的文章)
+     */
+    private ResponseEntity<Object> thumbnail(String id, HttpServletRequest accessRequest, HttpServletRequest request, HttpServletResponse response) {
         ResultUtil.checkParamIsNull(id);
-        Optional<FileDocument> file = fileService.thumbnail(id);
-        if (fileInterceptor.isNotAllowAccess(file.orElse(null), request)) {
+        if (fileInterceptor.isNotAllowAccess(fileService.getById(id), accessRequest)) {
             return null;
         }
         String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
         if (ossPath != null) {
             return webOssService.thumbnail(ossPath, id);
         }
-        return file.<ResponseEntity<Object>>map(fileDocument ->
-                ResponseEntity.ok()
-                        .header(HttpHeaders.CONTENT_DISPOSITION, "fileName=" + ContentDisposition.builder("attachment")
-                                .filename(UriUtils.encode(fileDocument.getName(), StandardCharsets.UTF_8)))
-                        .header(HttpHeaders.CONTENT_TYPE, fileDocument.getContentType())
-                        .header(HttpHeaders.CONNECTION, "close")
-                        .header(HttpHeaders.CONTENT_LENGTH, String.valueOf(fileDocument.getContent().length))
-                        .header(HttpHeaders.CONTENT_ENCODING, "utf-8")
-                        .header(HttpHeaders.CACHE_CONTROL, "public, max-age=604800")
-                        .body(fileDocument.getContent())).orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("找不到该文件"));
+        return fileService.thumbnail(id, null, request, response);
     }
 
     @Operation(summary = "读取simText文件")
@@ -12,8 +12,13 @@ import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.IShareService;
+import com.jmal.clouddisk.service.impl.ImageCacheService;
+import com.jmal.clouddisk.service.impl.ImageProcessService;
+import com.jmal.clouddisk.service.impl.ThumbnailService;
 import com.jmal.clouddisk.util.CaffeineUtil;
+import com.jmal.clouddisk.util.FastImageInfo;
 import com.jmal.clouddisk.util.FileContentTypeUtils;
+import com.jmal.clouddisk.util.LocalFileSender;
 import com.luciad.imageio.webp.WebPWriteParam;
 import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletRequest;
@@ -23,24 +28,28 @@ import lombok.extern.slf4j.Slf4j;
 import net.coobird.thumbnailator.Thumbnails;
 import net.coobird.thumbnailator.tasks.UnsupportedFormatException;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.http.CacheControl;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.resource.ResourceHttpRequestHandler;
 import org.springframework.web.util.UriUtils;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileCacheImageOutputStream;
+import javax.imageio.stream.FileImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -97,6 +106,12 @@ public class FileInterceptor implements HandlerInterceptor {
 
     private final WebOssService webOssService;
 
+    private final ThumbnailService thumbnailService;
+
+    private final ImageCacheService imageCacheService;
+
+    private final ImageProcessService imageProcessService;
+
     @Override
     public boolean preHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Object handler) {
         if (fileAuthError(request, response)) {
@@ -109,25 +124,56 @@ public class FileInterceptor implements HandlerInterceptor {
             switch (operation) {
                 case DOWNLOAD -> {
                     response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + path.getFileName());
-                    Path prePth = path.subpath(1, path.getNameCount());
-                    String ossPath = CaffeineUtil.getOssPath(prePth);
+                    String ossPath = CaffeineUtil.getOssPath(request.getRequestURI(), 1);
                     if (ossPath != null) {
-                        webOssService.download(ossPath, prePth, request, response);
+                        webOssService.download(ossPath, path.subpath(1, path.getNameCount()), request, response);
                         return false;
                     }
+                    return !sendLocalFile(request, response, handler);
                 }
                 case PREVIEW -> {
                     if (previewOssFile(request, response, path, encodedFilename)) return false;
+                    return !sendLocalFile(request, response, handler);
+                }
+                case CROP -> {
+                    if (handleCrop(request, response)) return false;
                 }
-                case CROP -> handleCrop(request, response);
                 case THUMBNAIL -> thumbnail(request, response);
-                case WEBP -> webp(request, response);
+                case WEBP -> {
+                    if (webp(request, response)) return false;
+                }
                 default -> {
                     return true;
                 }
             }
         } else {
-            return !previewOssFile(request, response, path, encodedFilename);
+            return !previewOssFile(request, response, path, encodedFilename) && !sendLocalFile(request, response, handler);
+        }
+        return true;
+    }
+
+    /**
+     * 本地文件不经过静态资源处理, 由 LocalFileSender 发送
+     * @return 是否已发送
+     */
+    private boolean sendLocalFile(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (!(handler instanceof ResourceHttpRequestHandler resourceHandler)) {
+            return false;
+        }
+        Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
+        if (uriPath.getNameCount() < MIN_COUNT) {
+            return false;
+        }
+        Path rootPath = Paths.get(fileProperties.getRootDir()).normalize();
+        Path filePath = rootPath.resolve(uriPath.subpath(1, uriPath.getNameCount()).toString()).normalize();
+        if (!filePath.startsWith(rootPath) || !Files.isRegularFile(filePath)) {
+            return false;
+        }
+        CacheControl cacheControl = resourceHandler.getCacheControl();
+        try {
+            LocalFileSender.send(request, response, filePath.toFile(), cacheControl == null ? null : cacheControl.getHeaderValue());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
         }
         return true;
     }
@@ -136,11 +182,10 @@ public class FileInterceptor implements HandlerInterceptor {
      * 预览oss文件
      */
     private boolean previewOssFile(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, Path path, String encodedFilename) {
-        Path prePth = path.subpath(1, path.getNameCount());
-        String ossPath = CaffeineUtil.getOssPath(prePth);
+        String ossPath = CaffeineUtil.getOssPath(request.getRequestURI(), 1);
         if (CharSequenceUtil.isNotBlank(ossPath)) {
             response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "filename=" + encodedFilename);
-            webOssService.download(ossPath, prePth, request, response);
+            webOssService.download(ossPath, path.subpath(1, path.getNameCount()), request, response);
             return true;
         }
         return false;
@@ -240,29 +285,44 @@ public class FileInterceptor implements HandlerInterceptor {
         return false;
     }
 
-    private void webp(HttpServletRequest request, HttpServletResponse response) {
+    /**
+     * 转为webp, 转换后的图片由 ImageCacheService 缓存
+     * @return 是否已输出
+     */
+    private boolean webp(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         uriPath = uriPath.subpath(1, uriPath.getNameCount());
-        try {
-            File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
-            // 从某处获取图像进行编码
-            BufferedImage image = ImageIO.read(file);
+        File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
+        Path rendition = imageCacheService.getRendition(file, Constants.SUFFIX_WEBP, tempFile -> imageProcessService.execute(ImageProcessService.estimatePixels(file), () -> {
+            writeWebp(file, tempFile);
+            return true;
+        }), WEBP);
+        if (rendition == null) {
+            return false;
+        }
+        responseRendition(request, response, file.getName() + Constants.POINT_SUFFIX_WEBP, rendition);
+        return true;
+    }
 
-            // 获取一个WebP ImageWriter实例
-            ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/webp").next();
-            responseHeader(response, file.getName() + ".webp", new byte[1]);
-            // 配置编码参数
-            WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
-            writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
-            // 在ImageWriter上配置输出
-            FileCacheImageOutputStream output = new FileCacheImageOutputStream(response.getOutputStream(), null);
+    private static void writeWebp(File file, File tempFile) throws IOException {
+        // 从某处获取图像进行编码
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            return;
+        }
+        // 获取一个WebP ImageWriter实例
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/webp").next();
+        // 配置编码参数
+        WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
+        writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+        // 在ImageWriter上配置输出
+        try (FileImageOutputStream output = new FileImageOutputStream(tempFile)) {
             writer.setOutput(output);
             // 编码
             writer.write(null, new IIOImage(image, null, null), writeParam);
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
+        } finally {
+            writer.dispose();
         }
-
     }
 
     private void thumbnail(HttpServletRequest request, HttpServletResponse response) {
@@ -273,6 +333,10 @@ public class FileInterceptor implements HandlerInterceptor {
         FileDocument fileDocument = getFileDocument(uriPath);
         Path relativePath = uriPath.subpath(1, uriPath.getNameCount());
         if (fileDocument != null) {
+            File srcFile = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
+            if (thumbnailService.writeThumbnail(srcFile, Convert.toInt(request.getParameter("size"), null), request, response)) {
+                return;
+            }
             if (fileDocument.getContent() == null) {
                 File file = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
                 if (file.exists()) {
@@ -293,16 +357,36 @@ public class FileInterceptor implements HandlerInterceptor {
         return fileService.getFileDocumentByPathAndName(path, name, username);
     }
 
-    private void handleCrop(HttpServletRequest request, HttpServletResponse response) {
+    /**
+     * 剪裁图片, 剪裁后的图片由 ImageCacheService 缓存
+     * @return 是否已输出
+     */
+    private boolean handleCrop(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         uriPath = uriPath.subpath(1, uriPath.getNameCount());
         File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
         String q = request.getParameter("q");
         String w = request.getParameter("w");
         String h = request.getParameter("h");
-        byte[] img = imageCrop(file, q, w, h);
-        if (img.length > 0) {
-            responseWritImage(response, file.getName(), img);
+        int targetSize = Math.max(Convert.toInt(w, -1), Convert.toInt(h, -1));
+        Path rendition = imageCacheService.getRendition(file, FileUtil.extName(file), tempFile -> imageProcessService.execute(ImageProcessService.estimatePixels(file, targetSize), () -> {
+            try (OutputStream outputStream = Files.newOutputStream(tempFile.toPath())) {
+                return imageCrop(file, q, w, h, outputStream);
+            }
+        }), CROP, w, h, q);
+        if (rendition == null) {
+            return false;
+        }
+        responseRendition(request, response, file.getName(), rendition);
+        return true;
+    }
+
+    private void responseRendition(HttpServletRequest request, HttpServletResponse response, String fileName, Path rendition) {
+        responseHeader(response, fileName, null);
+        try {
+            LocalFileSender.send(request, response, rendition.toFile(), "max-age=2592000");
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
         }
     }
 
@@ -339,40 +423,87 @@ public class FileInterceptor implements HandlerInterceptor {
      * @return 剪裁后的文件
      */
     public static byte[] imageCrop(File srcFile, String q, String w, String h) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!imageCrop(srcFile, q, w, h, out)) {
+            return new byte[0];
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 剪裁图片
+     *
+     * @param srcFile 源文件
+     * @param q       剪裁后的质量
+     * @param w       剪裁后的宽度
+     * @param h       剪裁后的高度
+     * @param out     输出
+     * @return 是否剪裁成功
+     */
+    public static boolean imageCrop(File srcFile, String q, String w, String h, OutputStream out) {
         try {
-            Thumbnails.Builder<? extends File> thumbnail = Thumbnails.of(srcFile);
-            //获取图片信息
-            BufferedImage bim = ImageIO.read(srcFile);
-            if (bim == null) {
-                return new byte[0];
-            }
-            int srcWidth = bim.getWidth();
-            int srcHeight = bim.getHeight();
-            double quality = Convert.toDouble(q, 0.8);
-            if (quality >= 0 && quality <= 1) {
-                thumbnail.outputQuality(quality);
+            //获取图片信息, 只读取文件头, 读不到时再解码整个图片
+            BufferedImage image = null;
+            int srcWidth;
+            int srcHeight;
+            try {
+                FastImageInfo imageInfo = new FastImageInfo(srcFile);
+                srcWidth = imageInfo.getWidth();
+                srcHeight = imageInfo.getHeight();
+            } catch (IOException e) {
+                image = ImageProcessService.read(srcFile, 0);
+                if (image == null) {
+                    return false;
+                }
+                srcWidth = image.getWidth();
+                srcHeight = image.getHeight();
             }
             int width = Convert.toInt(w, -1);
             int height = Convert.toInt(h, -1);
+            int targetSize = 0;
             if (width > 0 && srcWidth > width) {
                 if (height <= 0 || srcHeight <= height) {
                     height = (int) (width / (double) srcWidth * srcHeight);
                     height = height == 0 ? width : height;
                 }
-                thumbnail.size(width, height);
+                targetSize = Math.max(width, height);
             } else {
                 //宽高均小，指定原大小
-                thumbnail.size(srcWidth, srcHeight);
+                width = srcWidth;
+                height = srcHeight;
+            }
+            if (image == null) {
+                // 按剪裁后的尺寸降采样解码
+                image = ImageProcessService.read(srcFile, targetSize);
+                if (image == null) {
+                    return false;
+                }
             }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Thumbnails.Builder<BufferedImage> thumbnail = Thumbnails.of(image).size(width, height);
+            double quality = Convert.toDouble(q, 0.8);
+            if (quality >= 0 && quality <= 1) {
+                thumbnail.outputQuality(quality);
+            }
+            thumbnail.outputFormat(getOutputFormat(srcFile));
             thumbnail.toOutputStream(out);
-            return out.toByteArray();
+            return true;
         } catch (UnsupportedFormatException e) {
             log.warn(e.getMessage(), e);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
-        return new byte[0];
+        return false;
+    }
+
+    /**
+     * 剪裁后的格式和原图一致, 没有对应的ImageWriter时输出png
+     */
+    private static String getOutputFormat(File srcFile) {
+        String suffix = FileUtil.extName(srcFile);
+        if (!CharSequenceUtil.isBlank(suffix) && ImageIO.getImageWritersBySuffix(suffix.toLowerCase()).hasNext()) {
+            return suffix.toLowerCase();
+        }
+        return "png";
     }
 
 }
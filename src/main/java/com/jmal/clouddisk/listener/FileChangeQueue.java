@@ -0,0 +1,144 @@
+package com.jmal.clouddisk.listener;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.service.impl.CommonFileService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件监控事件队列
+ *
+ * FileListener 收到的事件先放入有界队列, 同一路径在一个窗口内的多次事件只保留最后一次,
+ * 再按用户分组批量写入mongo(bulkWrite), 避免大量文件变化时逐个文件查询和更新
+ *
+ * @author jmal
+ */
+@Slf4j
+@Component
+public class FileChangeQueue {
+
+    /***
+     * 队列容量, 满了之后监控线程会等待
+     */
+    private static final int CAPACITY = 100000;
+
+    /***
+     * 每批最多处理的事件数
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /***
+     * 收集一批事件的窗口(毫秒)
+     */
+    private static final long WINDOW_MILLIS = 1000;
+
+    @Autowired
+    CommonFileService commonFileService;
+
+    private final BlockingQueue<FileChange> queue = new LinkedBlockingQueue<>(CAPACITY);
+
+    enum ChangeType {
+        /***
+         * 新建
+         */
+        CREATE,
+        /***
+         * 修改
+         */
+        CHANGE,
+        /***
+         * 删除
+         */
+        DELETE
+    }
+
+    private record FileChange(String username, File file, ChangeType type) {
+    }
+
+    @PostConstruct
+    public void init() {
+        ThreadUtil.newThread(this::consume, "file-change-queue", true).start();
+    }
+
+    /***
+     * 添加事件, 队列满时等待
+     * @param username 用户名
+     * @param file 变化的文件
+     * @param type 变化类型
+     */
+    public void put(String username, File file, ChangeType type) {
+        try {
+            queue.put(new FileChange(username, file, type));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // key: 文件绝对路径
+                Map<String, FileChange> batch = new LinkedHashMap<>(16);
+                addToBatch(batch, queue.take());
+                long deadline = System.currentTimeMillis() + WINDOW_MILLIS;
+                while (batch.size() < BATCH_SIZE) {
+                    long wait = deadline - System.currentTimeMillis();
+                    FileChange fileChange = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (fileChange == null) {
+                        break;
+                    }
+                    addToBatch(batch, fileChange);
+                }
+                flush(batch.values());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("处理文件变化事件失败", e);
+            }
+        }
+    }
+
+    /***
+     * 合并同一路径的事件
+     * 删除覆盖之前的事件, 新建和修改合并时保留修改(文件已存在时需要更新)
+     */
+    private static void addToBatch(Map<String, FileChange> batch, FileChange fileChange) {
+        batch.merge(fileChange.file().getAbsolutePath(), fileChange, (previous, current) -> {
+            if (previous.type() == ChangeType.DELETE || current.type() == ChangeType.DELETE || previous.type() == current.type()) {
+                return current;
+            }
+            return new FileChange(current.username(), current.file(), ChangeType.CHANGE);
+        });
+    }
+
+    private void flush(Collection<FileChange> fileChanges) {
+        Map<String, List<FileChange>> userMap = new LinkedHashMap<>(4);
+        fileChanges.forEach(fileChange -> userMap.computeIfAbsent(fileChange.username(), key -> new ArrayList<>()).add(fileChange));
+        userMap.forEach((username, list) -> {
+            List<File> createFiles = new ArrayList<>();
+            List<File> changeFiles = new ArrayList<>();
+            List<File> deleteFiles = new ArrayList<>();
+            for (FileChange fileChange : list) {
+                switch (fileChange.type()) {
+                    case CREATE -> createFiles.add(fileChange.file());
+                    case CHANGE -> changeFiles.add(fileChange.file());
+                    default -> deleteFiles.add(fileChange.file());
+                }
+            }
+            try {
+                commonFileService.batchFileChange(username, createFiles, changeFiles, deleteFiles);
+                log.info("用户:{}, 新建:{}, 修改:{}, 删除:{}", username, createFiles.size(), changeFiles.size(), deleteFiles.size());
+            } catch (Exception e) {
+                log.error("批量更新文件索引失败, 用户: " + username, e);
+            }
+        });
+    }
+}
@@ -2,7 +2,6 @@ package com.jmal.clouddisk.listener;
 
 import cn.hutool.core.text.CharSequenceUtil;
 import com.jmal.clouddisk.config.FileProperties;
-import com.jmal.clouddisk.service.IFileService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,6 +16,7 @@ import java.nio.file.Paths;
  * 在Apache的Commons-IO中有关于文件的监控功能的代码. 文件监控的原理如下：
  * 由文件监控类FileAlterationMonitor中的线程不停的扫描文件观察器FileAlterationObserver，
  * 如果有文件的变化，则根据相关的文件比较器，判断文件时新增，还是删除，还是更改。（默认为1000毫秒执行一次扫描）
+ * 事件交给 FileChangeQueue 合并后批量更新文件索引
  *
  * @author jmal
  */
@@ -28,7 +28,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
     FileProperties fileProperties;
 
     @Autowired
-    IFileService fileService;
+    FileChangeQueue fileChangeQueue;
 
     /**
      * 文件创建执行
@@ -40,7 +40,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.createFile(username,file);
+            fileChangeQueue.put(username, file, FileChangeQueue.ChangeType.CREATE);
             log.info("用户:{},新建文件:{}",username,file.getAbsolutePath());
         }catch (Exception e){
             log.error("新建文件后续操作失败, " + file.getAbsolutePath(), e);
@@ -57,7 +57,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.updateFile(username,file);
+            fileChangeQueue.put(username, file, FileChangeQueue.ChangeType.CHANGE);
             log.info("用户:{},修改文件:{}",username,file.getAbsolutePath());
         }catch (Exception e){
             log.error("修改文件后续操作失败", e);
@@ -74,7 +74,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.deleteFile(username,file);
+            fileChangeQueue.put(username, file, FileChangeQueue.ChangeType.DELETE);
             log.info("用户:{},删除文件:{}",username,file.getAbsolutePath());
         }catch (Exception e){
             log.error("删除文件后续操作失败", e);
@@ -91,7 +91,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.createFile(username,directory);
+            fileChangeQueue.put(username, directory, FileChangeQueue.ChangeType.CREATE);
             log.info("用户:{},新建目录:{}",username,directory.getAbsolutePath());
         }catch (Exception e){
             log.error("新建目录后续操作失败", e);
@@ -121,7 +121,7 @@ public class FileListener extends FileAlterationListenerAdaptor {
             if(CharSequenceUtil.isBlank(username)){
                 return;
             }
-            fileService.deleteFile(username,directory);
+            fileChangeQueue.put(username, directory, FileChangeQueue.ChangeType.DELETE);
             log.info("用户:{},删除目录:{}",username,directory.getAbsolutePath());
         }catch (Exception e){
             log.error("删除目录后续操作失败", e);
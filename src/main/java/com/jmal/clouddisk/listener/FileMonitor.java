@@ -6,7 +6,9 @@ import cn.hutool.core.io.file.PathUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.MongodbIndex;
+import com.jmal.clouddisk.service.impl.CommonFileService;
 import com.jmal.clouddisk.util.CaffeineUtil;
+import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -16,8 +18,11 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
@@ -40,10 +45,14 @@ public class FileMonitor {
 
     final IFileService fileService;
 
+    final CommonFileService commonFileService;
+
     private FileAlterationMonitor monitor;
 
     private FileAlterationObserver observer;
 
+    private WatchFileMonitor watchFileMonitor;
+
     private boolean isMonitor = false;
 
     /**
@@ -51,6 +60,11 @@ public class FileMonitor {
      */
     private static final Set<String> FILTER_DIR_SET = new CopyOnWriteArraySet<>();
 
+    /**
+     * 基于系统文件事件的监控方式
+     */
+    private static final String WATCH_MODE = "watch";
+
     @PostConstruct
     public void init() throws Exception {
         // 判断是否开启文件监控
@@ -59,9 +73,16 @@ public class FileMonitor {
         }
         Path rootDir = Paths.get(fileProperties.getRootDir());
         PathUtil.mkdir(rootDir);
+        FILTER_DIR_SET.add(fileProperties.getChunkFileDir());
+        if (isWatchMode()) {
+            newWatchFileMonitor();
+            log.info("\r\n文件监控服务已开启:\r\n监控方式:watch\n监控目录:{}\n忽略目录:{}", rootDir, rootDir + File.separator + fileProperties.getChunkFileDir());
+            // 检测mongo索引
+            mongodbIndex.checkMongoIndex();
+            return;
+        }
         // 轮询间隔(秒)
         long interval = TimeUnit.SECONDS.toMillis(fileProperties.getTimeInterval());
-        FILTER_DIR_SET.add(fileProperties.getChunkFileDir());
         newObserver();
         //创建文件变化监听器
         monitor = new FileAlterationMonitor(interval, observer);
@@ -81,7 +102,48 @@ public class FileMonitor {
         observer.addListener(fileListener);
     }
 
+    private boolean isWatchMode() {
+        return WATCH_MODE.equals(fileProperties.getMonitorMode());
+    }
+
+    private void newWatchFileMonitor() throws IOException {
+        TempDirFilter tempDirFilter = new TempDirFilter(fileProperties.getRootDir(), FILTER_DIR_SET);
+        Path rootDir = Paths.get(fileProperties.getRootDir());
+        watchFileMonitor = new WatchFileMonitor(rootDir, tempDirFilter, fileListener, dir -> getIndexedChildren(rootDir, dir));
+        watchFileMonitor.start();
+    }
+
+    /***
+     * 目录下已索引的文件和文件夹
+     * @param rootDir 监控的根目录
+     * @param dir 目录, 位于用户目录下
+     * @return key: 文件名, value: 是否为文件夹
+     */
+    private Map<String, Boolean> getIndexedChildren(Path rootDir, Path dir) {
+        Path relative = rootDir.relativize(dir);
+        if (relative.getNameCount() < 1 || relative.toString().isEmpty()) {
+            // 根目录下是用户目录, 没有索引
+            return Collections.emptyMap();
+        }
+        String username = relative.getName(0).toString();
+        StringBuilder relativePath = new StringBuilder(MyWebdavServlet.PATH_DELIMITER);
+        for (int i = 1; i < relative.getNameCount(); i++) {
+            relativePath.append(relative.getName(i)).append(MyWebdavServlet.PATH_DELIMITER);
+        }
+        return commonFileService.getIndexedChildren(username, relativePath.toString());
+    }
+
     private void reloadObserver() {
+        if (watchFileMonitor != null) {
+            try {
+                watchFileMonitor.stop();
+                newWatchFileMonitor();
+                log.info("reload WatchFileMonitor, filterDir: {}", FILTER_DIR_SET);
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+            return;
+        }
         if (monitor == null) {
             return;
         }
@@ -176,6 +238,10 @@ public class FileMonitor {
         // 临时目录
         Path tempPath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
         for (File username : FileUtil.ls(tempPath.toString())) {
+            if (fileProperties.isSharedTempDir(username.getName())) {
+                // 缩略图、图片、oss块等缓存目录由各自的缓存淘汰, 日志归档目录长期保存
+                continue;
+            }
             if (username.isDirectory()) {
                 for (File file : FileUtil.ls(username.getAbsolutePath())) {
                     // 是否为七天前的文件
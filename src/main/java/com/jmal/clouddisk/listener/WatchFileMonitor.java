@@ -0,0 +1,427 @@
+package com.jmal.clouddisk.listener;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.monitor.FileAlterationListener;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * @Description 基于 WatchService(Linux下为inotify) 的文件监控
+ * 递归注册目录, 不需要像 FileAlterationMonitor 那样定时扫描整个目录树
+ * 同一路径在合并窗口内的多次事件只回调一次, 回调与轮询方式相同的 FileAlterationListener
+ * @author jmal
+ */
+@Slf4j
+public class WatchFileMonitor {
+
+    /***
+     * 事件合并窗口(毫秒), 在该时间内没有新事件才分发
+     */
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    /***
+     * 事件最长等待时间(毫秒), 持续有事件时也不会一直等下去
+     */
+    private static final long MAX_DELAY_MILLIS = 3000;
+
+    /***
+     * 待分发事件达到该数量时不再等待合并窗口, 立即分发
+     * 只用于尽早分发, 不限制待分发事件的数量(同一路径只保留一个事件)
+     */
+    private static final int MAX_PENDING = 10000;
+
+    private final Path rootDir;
+
+    private final FileFilter fileFilter;
+
+    private final FileAlterationListener listener;
+
+    /***
+     * 目录下已索引的文件和文件夹, key: 文件名, value: 是否为文件夹
+     * 事件溢出后重新扫描时, 用于找出丢失了删除事件的文件
+     */
+    private final Function<Path, Map<String, Boolean>> indexedChildren;
+
+    private WatchService watchService;
+
+    /***
+     * 已注册的目录
+     */
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+    /***
+     * 待分发的事件, 同一路径只保留一个
+     */
+    private final Map<Path, WatchEvent.Kind<?>> pendingEvents = new LinkedHashMap<>();
+
+    /***
+     * 待分发事件中被删除的目录
+     */
+    private final Set<Path> deletedDirectories = ConcurrentHashMap.newKeySet();
+
+    /***
+     * 事件溢出后待重新扫描的目录, 由分发线程扫描, 不阻塞读取事件
+     */
+    private final Set<Path> overflowDirectories = ConcurrentHashMap.newKeySet();
+
+    /***
+     * 新建的目录, 由分发线程递归注册, 不阻塞读取事件
+     */
+    private final Set<Path> newDirectories = ConcurrentHashMap.newKeySet();
+
+    private long firstEventTime;
+
+    private long lastEventTime;
+
+    private volatile boolean running;
+
+    private Thread watchThread;
+
+    private Thread dispatchThread;
+
+    public WatchFileMonitor(Path rootDir, FileFilter fileFilter, FileAlterationListener listener, Function<Path, Map<String, Boolean>> indexedChildren) {
+        this.rootDir = rootDir;
+        this.fileFilter = fileFilter;
+        this.listener = listener;
+        this.indexedChildren = indexedChildren;
+    }
+
+    public void start() throws IOException {
+        watchService = rootDir.getFileSystem().newWatchService();
+        running = true;
+        registerAll(rootDir, false);
+        watchThread = ThreadUtil.newThread(this::watch, "file-watch", true);
+        dispatchThread = ThreadUtil.newThread(this::dispatch, "file-watch-dispatch", true);
+        watchThread.start();
+        dispatchThread.start();
+        log.info("已注册监控目录数: {}", directories.size());
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        if (dispatchThread != null) {
+            dispatchThread.interrupt();
+        }
+        watchKeys.clear();
+        directories.clear();
+    }
+
+    /***
+     * 只读取事件, 注册目录和重新扫描都在分发线程中进行
+     */
+    private void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchKeys.get(key);
+            if (dir == null) {
+                key.cancel();
+                continue;
+            }
+            try {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handleEvent(dir, event);
+                }
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+            if (!key.reset()) {
+                // 目录已经不存在了
+                watchKeys.remove(key);
+                directories.remove(dir, key);
+            }
+        }
+    }
+
+    private void handleEvent(Path dir, WatchEvent<?> event) {
+        WatchEvent.Kind<?> kind = event.kind();
+        if (kind == OVERFLOW) {
+            // 事件队列溢出, 该目录下的事件可能丢失了, 需要重新扫描
+            // Linux下inotify队列是所有目录共用的, 溢出时每个已注册的目录都会收到OVERFLOW, 即重新扫描整个目录树
+            if (overflowDirectories.add(dir)) {
+                synchronized (pendingEvents) {
+                    pendingEvents.notifyAll();
+                }
+            }
+            return;
+        }
+        Path path = dir.resolve((Path) event.context());
+        if (!fileFilter.accept(path.toFile())) {
+            return;
+        }
+        if (kind == ENTRY_CREATE) {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // 新目录(包括移动进来的目录), 由分发线程注册并补发其下已有文件的事件
+                if (newDirectories.add(path)) {
+                    synchronized (pendingEvents) {
+                        pendingEvents.notifyAll();
+                    }
+                }
+            } else {
+                addEvent(path, ENTRY_CREATE);
+            }
+        } else if (kind == ENTRY_DELETE) {
+            newDirectories.remove(path);
+            if (unregister(path)) {
+                deletedDirectories.add(path);
+            }
+            addEvent(path, ENTRY_DELETE);
+        } else if (kind == ENTRY_MODIFY && !directories.containsKey(path)) {
+            addEvent(path, ENTRY_MODIFY);
+        }
+    }
+
+    /***
+     * 重新扫描目录的直接子项
+     * 子目录有自己的WatchKey, 只有未注册的新目录才需要递归.
+     * 磁盘上已经不存在、但还在索引中的文件和文件夹补发删除事件
+     * @param dir 目录
+     */
+    private void rescan(Path dir) {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            // 目录本身已删除, 由上级目录的扫描处理
+            return;
+        }
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(path -> fileFilter.accept(path.toFile())).forEach(path -> {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!directories.containsKey(path)) {
+                        registerAll(path, true);
+                    }
+                } else {
+                    // createFile 会按大小判断是否为覆盖, 重复创建没有影响
+                    addEvent(path, ENTRY_CREATE);
+                }
+            });
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        Map<String, Boolean> indexed;
+        try {
+            indexed = indexedChildren.apply(dir);
+        } catch (Exception e) {
+            log.error("查询已索引的文件失败: {}, {}", dir, e.getMessage());
+            return;
+        }
+        indexed.forEach((name, isFolder) -> {
+            Path path = dir.resolve(name);
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+            if (Boolean.TRUE.equals(isFolder)) {
+                unregister(path);
+                deletedDirectories.add(path);
+            }
+            addEvent(path, ENTRY_DELETE);
+        });
+    }
+
+    /***
+     * 重新扫描事件溢出的目录, 每个目录只扫描一次
+     */
+    private void rescanOverflowDirectories() {
+        if (overflowDirectories.isEmpty()) {
+            return;
+        }
+        List<Path> dirs = new ArrayList<>(overflowDirectories);
+        overflowDirectories.removeAll(dirs);
+        log.warn("文件监控事件溢出, 重新扫描目录数: {}", dirs.size());
+        dirs.forEach(this::rescan);
+    }
+
+    /***
+     * 注册新建的目录
+     */
+    private void registerNewDirectories() {
+        if (newDirectories.isEmpty()) {
+            return;
+        }
+        List<Path> dirs = new ArrayList<>(newDirectories);
+        newDirectories.removeAll(dirs);
+        dirs.forEach(dir -> registerAll(dir, true));
+    }
+
+    /***
+     * 递归注册目录
+     * @param start 起始目录
+     * @param notify 是否为目录下已有的文件和目录补发创建事件
+     */
+    private void registerAll(Path start, boolean notify) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!fileFilter.accept(dir.toFile())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    register(dir);
+                    if (notify) {
+                        addEvent(dir, ENTRY_CREATE);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (notify && fileFilter.accept(file.toFile())) {
+                        addEvent(file, ENTRY_CREATE);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void register(Path dir) {
+        if (directories.containsKey(dir)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            watchKeys.put(key, dir);
+            directories.put(dir, key);
+        } catch (IOException e) {
+            // 一般是超出了 fs.inotify.max_user_watches 的限制
+            log.error("注册监控目录失败: {}, {}", dir, e.getMessage());
+        }
+    }
+
+    /***
+     * 取消注册目录及其子目录
+     * @param path 路径
+     * @return 是否为已注册的目录
+     */
+    private boolean unregister(Path path) {
+        if (!directories.containsKey(path)) {
+            return false;
+        }
+        directories.keySet().removeIf(dir -> {
+            if (!dir.startsWith(path)) {
+                return false;
+            }
+            WatchKey key = directories.get(dir);
+            if (key != null) {
+                key.cancel();
+                watchKeys.remove(key);
+            }
+            return true;
+        });
+        return true;
+    }
+
+    /***
+     * 添加待分发事件, 合并同一路径的事件
+     * 删除和创建会覆盖之前的事件, 修改不会覆盖之前的创建或删除
+     */
+    private void addEvent(Path path, WatchEvent.Kind<?> kind) {
+        synchronized (pendingEvents) {
+            WatchEvent.Kind<?> previous = pendingEvents.get(path);
+            if (kind != ENTRY_MODIFY || previous == null) {
+                pendingEvents.put(path, kind);
+            }
+            long now = System.currentTimeMillis();
+            if (pendingEvents.size() == 1) {
+                firstEventTime = now;
+            }
+            lastEventTime = now;
+            pendingEvents.notifyAll();
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            registerNewDirectories();
+            rescanOverflowDirectories();
+            List<Map.Entry<Path, WatchEvent.Kind<?>>> events;
+            synchronized (pendingEvents) {
+                try {
+                    while (running && newDirectories.isEmpty() && overflowDirectories.isEmpty() && !readyToDispatch()) {
+                        pendingEvents.wait(DEBOUNCE_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                events = new ArrayList<>(pendingEvents.entrySet());
+                pendingEvents.clear();
+            }
+            events.forEach(entry -> notifyListener(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private boolean readyToDispatch() {
+        if (pendingEvents.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        return now - lastEventTime >= DEBOUNCE_MILLIS || now - firstEventTime >= MAX_DELAY_MILLIS || pendingEvents.size() >= MAX_PENDING;
+    }
+
+    private void notifyListener(Path path, WatchEvent.Kind<?> kind) {
+        File file = path.toFile();
+        try {
+            if (kind == ENTRY_DELETE) {
+                if (deletedDirectories.remove(path)) {
+                    listener.onDirectoryDelete(file);
+                } else {
+                    listener.onFileDelete(file);
+                }
+                return;
+            }
+            deletedDirectories.remove(path);
+            if (Files.isDirectory(path)) {
+                if (kind == ENTRY_CREATE) {
+                    listener.onDirectoryCreate(file);
+                } else {
+                    listener.onDirectoryChange(file);
+                }
+            } else if (Files.isRegularFile(path)) {
+                if (kind == ENTRY_CREATE) {
+                    listener.onFileCreate(file);
+                } else {
+                    listener.onFileChange(file);
+                }
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+}
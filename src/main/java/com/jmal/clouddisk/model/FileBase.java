@@ -53,6 +53,10 @@ public class FileBase {
     @JSONField(format = "yyyy-MM-dd HH:mm:ss")
     @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss")
     private LocalDateTime updateDate;
+    /***
+     * 缩略图、封面等衍生数据是否还在生成中
+     */
+    private Boolean derivePending;
 
     /***
      * 格式化文件更新时间
@@ -1,6 +1,7 @@
 package com.jmal.clouddisk.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.jmal.clouddisk.service.impl.LogService;
 import lombok.Data;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
@@ -13,24 +14,12 @@ import java.time.LocalDateTime;
  * @author jmal
  */
 @Data
-@Document(collection = "log")
+@Document(collection = LogService.COLLECTION_NAME)
 @CompoundIndexes({
         @CompoundIndex(name = "createTime_1", def = "{'createTime': 1}"),
-        @CompoundIndex(name = "time_1", def = "{'time': 1}"),
-        @CompoundIndex(name = "username_1", def = "{'username': 1}"),
-        @CompoundIndex(name = "showName_1", def = "{'showName': 1}"),
-        @CompoundIndex(name = "ip_1", def = "{'ip': 1}"),
-        @CompoundIndex(name = "cityIp_1", def = "{'cityIp': 1}"),
-        @CompoundIndex(name = "url_1", def = "{'url': 1}"),
-        @CompoundIndex(name = "status_1", def = "{'status': 1}"),
-        @CompoundIndex(name = "operationModule_1", def = "{'operationModule': 1}"),
-        @CompoundIndex(name = "operationFun_1", def = "{'operationFun': 1}"),
-        @CompoundIndex(name = "deviceModel_1", def = "{'deviceModel': 1}"),
-        @CompoundIndex(name = "operatingSystem_1", def = "{'operatingSystem': 1}"),
-        @CompoundIndex(name = "browser_1", def = "{'operatingSystem': 1}"),
-        @CompoundIndex(name = "type_1", def = "{'type': 1}"),
+        @CompoundIndex(name = "username_createTime_1", def = "{'username': 1, 'createTime': 1}"),
+        @CompoundIndex(name = "ip_createTime_1", def = "{'ip': 1, 'createTime': 1}"),
         @CompoundIndex(name = "type_createTime_1", def = "{'type': 1, 'createTime': 1}"),
-        @CompoundIndex(name = "type_username_1", def = "{'type': 1, 'username': 1}"),
         @CompoundIndex(name = "type_username_createTime_1", def = "{'type': 1, 'username': 1, 'createTime': 1}"),
 })
 public class LogOperation {
@@ -13,4 +13,8 @@ public class Metadata {
      */
     String operator;
     Long size;
+    /**
+     * 分块去重后新增的存储大小
+     */
+    Long storedSize;
 }
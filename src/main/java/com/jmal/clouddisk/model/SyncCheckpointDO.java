@@ -0,0 +1,28 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.FileSyncService;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * @Description 同步检查点
+ * 记录同步过程中已经完成的目录, 同步中断后再次同步时跳过这些目录, 同步完成后删除
+ * @author jmal
+ */
+@Data
+@Accessors(chain = true)
+@Document(collection = FileSyncService.COLLECTION_NAME)
+@CompoundIndexes({
+        @CompoundIndex(name = "username_path", def = "{'username': 1, 'path': 1}"),
+})
+public class SyncCheckpointDO {
+    private String id;
+    private String username;
+    /***
+     * 已经完成的目录, 例如: /a/b/
+     */
+    private String path;
+}
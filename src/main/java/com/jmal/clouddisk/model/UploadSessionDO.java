@@ -0,0 +1,40 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.UploadSessionService;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * @Description 分片上传会话
+ * 记录一次分片上传的参数和已写入的分片, id为 username:identifier
+ * @author jmal
+ */
+@Data
+@Accessors(chain = true)
+@Document(collection = UploadSessionService.COLLECTION_NAME)
+public class UploadSessionDO {
+    private String id;
+    private String username;
+    /***
+     * 文件唯一标识
+     */
+    private String identifier;
+    private String filename;
+    private Long totalSize;
+    private Integer chunkSize;
+    private Integer totalChunks;
+    /***
+     * 分片位图, 每个元素记录64个分片, 第n个分片对应 chunks[(n-1)/64] 的第 (n-1)%64 位
+     */
+    private List<Long> chunks;
+    /***
+     * 已写入的分片数
+     */
+    private Integer uploadedCount;
+    private LocalDateTime createDate;
+    private LocalDateTime updateDate;
+}
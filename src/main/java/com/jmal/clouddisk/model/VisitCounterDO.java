@@ -0,0 +1,26 @@
+package com.jmal.clouddisk.model;
+
+import com.jmal.clouddisk.service.impl.VisitCounterService;
+import lombok.Data;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * @Description 访问计数, 按url和天汇总
+ * @author jmal
+ */
+@Data
+@Document(collection = VisitCounterService.COLLECTION_NAME)
+@CompoundIndexes({
+        @CompoundIndex(name = "url_day", def = "{'url': 1, 'day': 1}", unique = true),
+})
+public class VisitCounterDO {
+    private String id;
+    private String url;
+    /***
+     * 日期, 例如: 2023-05-10, 总数为 total
+     */
+    private String day;
+    private Long count;
+}
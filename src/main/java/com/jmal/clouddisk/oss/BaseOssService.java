@@ -11,10 +11,11 @@ import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import com.jmal.clouddisk.util.FileContentTypeUtils;
-import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
@@ -38,17 +39,9 @@ public class BaseOssService {
 
     private final FileProperties fileProperties;
     /**
-     * 目录下文件名列表缓存 </br>
-     * key: objectName </br>
-     * value: object下的文件名列表 </br>
-     */
-    private final Cache<String, List<FileInfo>> fileInfoListCache;
-    /**
-     * object缓存 </br>
-     * key: objectName </br>
-     * value: FileInfo </br>
+     * 目录列表和object的FileInfo缓存 </br>
      */
-    private final Cache<String, FileInfo> fileInfoCache;
+    private final OssListingCache listingCache;
     /**
      * 临时文件缓存 </br>
      * key: objectName </br>
@@ -69,6 +62,18 @@ public class BaseOssService {
      */
     private final Cache<String, Path> waitingUploadCache;
 
+    /**
+     * 上传失败的文件下次重试的时间 </br>
+     * key: objectName </br>
+     * value: 时间戳 </br>
+     */
+    private final Map<String, Long> uploadRetryTimeMap = new ConcurrentHashMap<>();
+
+    /**
+     * 上传失败后重试的间隔
+     */
+    private static final long UPLOAD_RETRY_DELAY = 60 * 1000L;
+
     private final Map<String, String> updateIdCache = new ConcurrentHashMap<>();
 
     private final Set<String> objectNameLock = new CopyOnWriteArraySet<>();
@@ -77,13 +82,18 @@ public class BaseOssService {
 
     private final IOssService ossService;
 
+    private final OssMultipartUploader multipartUploader;
+
+    private final OssBlockCache blockCache;
+
     public BaseOssService(IOssService ossService, String bucketName, FileProperties fileProperties, ScheduledThreadPoolExecutor scheduledThreadPoolExecutor, OssConfigDTO ossConfigDTO) {
         this.ossService = ossService;
         this.bucketName = bucketName;
         this.fileProperties = fileProperties;
+        this.multipartUploader = new OssMultipartUploader(ossService, bucketName);
+        this.blockCache = OssBlockCache.getInstance(fileProperties);
         scheduledThreadPoolExecutor.scheduleWithFixedDelay(this::checkUpload, 1, 1, TimeUnit.SECONDS);
-        this.fileInfoListCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
-        this.fileInfoCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
+        this.listingCache = new OssListingCache(bucketName, ossService::getFileInfoList, Boolean.TRUE.equals(fileProperties.getOssListingRevalidate()));
         this.tempFileCache = Caffeine.newBuilder().build();
         this.tempFileListCache = Caffeine.newBuilder().build();
         this.waitingUploadCache = Caffeine.newBuilder().build();
@@ -198,15 +208,7 @@ public class BaseOssService {
     }
 
     public List<FileInfo> getFileInfoListCache(String objectName) {
-        return fileInfoListCache.get(objectName, key -> {
-            List<FileInfo> fileInfos = ossService.getFileInfoList(objectName);
-            if (fileInfos != null && !fileInfos.isEmpty()) {
-                for (FileInfo fileInfo : fileInfos) {
-                    setFileInfoCache(fileInfo.getKey(), fileInfo);
-                }
-            }
-            return fileInfos;
-        });
+        return listingCache.getListing(objectName);
     }
 
     public AbstractOssObject getObject(String objectName) {
@@ -218,6 +220,47 @@ public class BaseOssService {
         return ossService.getAbstractOssObject(objectName);
     }
 
+    /**
+     * 读取文件, 还没上传的读取临时文件, 有eTag的经过本地块缓存, 否则直接读取oss
+     * @param objectName objectName
+     * @param rangeStart 开始位置, 为null时从头读取
+     * @param rangeEnd 结束位置(包含), 为null时读取到结尾
+     * @return InputStream, 文件不存在时返回null
+     */
+    public InputStream getInputStream(String objectName, Long rangeStart, Long rangeEnd) {
+        try {
+            Path path = getTempFileCache(objectName);
+            if (path != null) {
+                // 还没上传的临时文件
+                InputStream inputStream = Files.newInputStream(path);
+                if (rangeStart != null) {
+                    inputStream.skipNBytes(rangeStart);
+                }
+                return rangeStart != null && rangeEnd != null ? new BoundedInputStream(inputStream, rangeEnd - rangeStart + 1) : inputStream;
+            }
+            FileInfo fileInfo = getFileInfo(objectName);
+            if (fileInfo != null && CharSequenceUtil.isNotBlank(fileInfo.getETag())) {
+                long start = rangeStart == null ? 0 : rangeStart;
+                long end = rangeEnd == null ? fileInfo.getSize() - 1 : rangeEnd;
+                return blockCache.getInputStream(ossService, fileInfo, start, end);
+            }
+            // 没有eTag时不能确定缓存的块是否过期, 直接读取oss
+            AbstractOssObject object = ossService.getAbstractOssObject(objectName, rangeStart, rangeEnd);
+            if (object == null) {
+                return null;
+            }
+            return new FilterInputStream(object.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    object.close();
+                }
+            };
+        } catch (IOException e) {
+            log.warn(e.getMessage(), e);
+            return null;
+        }
+    }
+
     /**
      * 删除临时文件缓存
      * @param objectName objectName
@@ -235,40 +278,7 @@ public class BaseOssService {
      */
     private void onDeleteSuccess(String objectName) {
         log.info("delete success: {}", objectName);
-        FileInfo fileInfo = getFileInfoCache(objectName);
-        if (fileInfo != null) {
-            clearFileCache(objectName);
-            clearFileListCache(objectName);
-        }
-    }
-
-    private void clearFileListCache(String objectName) {
-        Path objectNamePath = Paths.get(objectName);
-        if (objectNamePath.getNameCount() > 1) {
-            String pathObjectName = objectNamePath.getParent().toString() + MyWebdavServlet.PATH_DELIMITER;
-            fileInfoListCache.invalidate(pathObjectName);
-            for (String key : fileInfoListCache.asMap().keySet()) {
-                if (key.startsWith(objectName)) {
-                    fileInfoListCache.invalidate(key);
-                }
-            }
-        } else {
-            fileInfoListCache.invalidate(objectName);
-            fileInfoListCache.invalidate("");
-        }
-    }
-
-    private void clearFileCache(String objectName) {
-        if (objectName.endsWith("/")) {
-            fileInfoCache.invalidate(objectName.substring(0,objectName.length() - 1));
-            for (String key : fileInfoCache.asMap().keySet()) {
-                if (key.startsWith(objectName)) {
-                    fileInfoCache.invalidate(key);
-                }
-            }
-        } else {
-            fileInfoCache.invalidate(objectName);
-        }
+        listingCache.remove(objectName);
     }
 
     /**
@@ -278,9 +288,8 @@ public class BaseOssService {
      */
     public void onUploadSuccess(String objectName, Path tempFileAbsolutePath) {
         log.info("upload success: {}", objectName);
+        listingCache.put(objectName, newFileInfo(objectName, tempFileAbsolutePath.toFile()));
         clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, tempFileAbsolutePath.toFile()));
-        clearFileListCache(objectName);
         removeWaitingUploadCache(objectName);
     }
 
@@ -292,8 +301,7 @@ public class BaseOssService {
     public void onUploadSuccess(String objectName, Long fileSize) {
         log.info("upload success: {}", objectName);
         clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, fileSize));
-        clearFileListCache(objectName);
+        listingCache.put(objectName, newFileInfo(objectName, fileSize));
         removeWaitingUploadCache(objectName);
     }
 
@@ -304,8 +312,7 @@ public class BaseOssService {
      */
     private void onMkdirSuccess(String objectName, FileInfo fileInfo) {
         log.info("mkdir success: {}", objectName);
-        setFileInfoCache(objectName, fileInfo);
-        clearFileListCache(objectName);
+        listingCache.put(objectName, fileInfo);
     }
 
     /**
@@ -345,31 +352,63 @@ public class BaseOssService {
         return fileNameList;
     }
 
+    /**
+     * 上传本地文件, 大文件并行分片上传
+     * @param file 本地文件
+     * @param objectName objectName
+     * @param listener 分片上传进度, 可以为null
+     * @return 是否上传成功
+     */
+    public boolean uploadFile(Path file, String objectName, OssMultipartUploader.PartListener listener) {
+        return multipartUploader.upload(file, objectName, listener);
+    }
+
     /**
      * <p>检查是否有需要上传的文件 </p>
-     * 有等待上传的文件且文件的最后修改时间大于5秒就上传 <br/>
+     * 有等待上传的文件且文件的最后修改时间大于5秒就上传, 大文件分片并行上传 <br/>
      * 该方法每秒执行一次 <br/>
      */
     private void checkUpload() {
+        long now = System.currentTimeMillis();
         getWaitingUploadCacheMap().forEach((objectName, tempFileAbsolutePath) -> {
+            Long retryTime = uploadRetryTimeMap.get(objectName);
+            if (retryTime != null && retryTime > now) {
+                return;
+            }
             long lastModified = tempFileAbsolutePath.toFile().lastModified();
             // 临时文件的最后修改时间大于5秒就上传
-            if ((System.currentTimeMillis() - lastModified) > 5000) {
+            if ((now - lastModified) > 5000) {
                 removeWaitingUploadCache(objectName);
-                ThreadUtil.execute(() -> ossService.uploadFile(tempFileAbsolutePath, objectName));
+                ThreadUtil.execute(() -> uploadTempFile(tempFileAbsolutePath, objectName));
             }
         });
     }
 
+    /**
+     * 上传临时文件, 失败时放回等待上传的缓存, 稍后重试
+     */
+    private void uploadTempFile(Path tempFileAbsolutePath, String objectName) {
+        try {
+            multipartUploader.upload(tempFileAbsolutePath, objectName);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        // 上传成功后会删除临时文件, 临时文件还在说明上传失败
+        if (getTempFileCache(objectName) != null && Files.exists(tempFileAbsolutePath)) {
+            log.warn("{}, 上传失败, {}秒后重试: {}", ossService.getPlatform().getValue(), UPLOAD_RETRY_DELAY / 1000, objectName);
+            uploadRetryTimeMap.put(objectName, System.currentTimeMillis() + UPLOAD_RETRY_DELAY);
+            getWaitingUploadCacheMap().putIfAbsent(objectName, tempFileAbsolutePath);
+        } else {
+            uploadRetryTimeMap.remove(objectName);
+        }
+    }
+
     public void addFileInfoList(String objectName, List<FileInfo> fileInfoList, S3ObjectSummary s3ObjectSummary) {
         if (!s3ObjectSummary.getKey().equals(objectName)) {
             FileInfo fileInfo = getFileInfo(s3ObjectSummary);
             fileInfoList.add(fileInfo);
         } else {
-            FileInfo fileInfo = getFileInfoCache(objectName);
-            if (fileInfo == null) {
-                setFileInfoCache(objectName, newFileInfo(objectName));
-            }
+            listingCache.putIfAbsent(objectName, newFileInfo(objectName));
         }
     }
 
@@ -432,18 +471,11 @@ public class BaseOssService {
         return objectParentName;
     }
 
-    private void setFileInfoCache(String key, FileInfo fileInfo) {
-        if (key.length() > 1 && key.endsWith("/")) {
-            key = key.substring(0, key.length() - 1);
-        }
-        fileInfoCache.put(key, fileInfo);
-    }
-
     private FileInfo getFileInfoCache(String key) {
         if (key.length() > 1 && key.endsWith("/")) {
             key = key.substring(0, key.length() - 1);
         }
-        FileInfo fileInfo = fileInfoCache.getIfPresent(key);
+        FileInfo fileInfo = listingCache.getFileInfo(key);
         if (fileInfo == null) {
             Path path = getTempFileCache(key);
             if (path != null) {
@@ -517,6 +549,8 @@ public class BaseOssService {
     }
 
     private void setWaitingUploadCache(String objectName, Path tempFileAbsolutePath) {
+        // 重新写入后不用等待上次失败的重试间隔
+        uploadRetryTimeMap.remove(objectName);
         waitingUploadCache.put(objectName, tempFileAbsolutePath);
     }
 
@@ -552,11 +586,15 @@ public class BaseOssService {
     }
 
     public void clearCache(String objectName) {
-        clearFileCache(objectName);
-        clearFileListCache(objectName);
+        listingCache.invalidate(objectName);
     }
 
     public void closePrint() {
         log.info("platform: {}, bucketName: {} shutdown... {}", this.ossService.getPlatform().getValue(), bucketName, this.ossService.hashCode());
     }
+
+    public void close() {
+        closePrint();
+        multipartUploader.shutdown();
+    }
 }
@@ -3,6 +3,8 @@ package com.jmal.clouddisk.oss;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import lombok.Data;
 
+import java.util.Objects;
+
 /**
  * @author jmal
  * @Description OSS BucketInfo
@@ -14,9 +16,25 @@ public class BucketInfo {
     String folderName;
     String username;
     PlatformOSS platform;
+    String endpoint;
+    String region;
+    /***
+     * accessKey和secretKey的摘要, 只用于判断是否为同一个账号
+     */
+    String credential;
 
     public String getWebPathPrefix() {
         return MyWebdavServlet.getPathDelimiter(username, folderName);
     }
 
+    /***
+     * 是否为同一个服务端的同一个账号, 只有这时才能使用服务端复制
+     */
+    public boolean isSameAccount(BucketInfo other) {
+        return other != null && platform == other.platform
+                && Objects.equals(endpoint, other.endpoint)
+                && Objects.equals(region, other.region)
+                && Objects.equals(credential, other.credential);
+    }
+
 }
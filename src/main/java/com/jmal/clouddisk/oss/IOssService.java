@@ -61,6 +61,15 @@ public interface IOssService {
     AbstractOssObject getObjectCache(String objectName);
 
 
+    /**
+     * 读取文件, 经过本地块缓存
+     * @param objectName object key
+     * @param rangeStart rangeStart 分段, 为null时从头读取
+     * @param rangeEnd rangeEnd 分段(包含), 为null时读取到结尾
+     * @return InputStream, 文件不存在时返回null
+     */
+    InputStream getInputStream(String objectName, Long rangeStart, Long rangeEnd);
+
     /**
      * 获取 AbstractOssObject
      * @param objectName object key
@@ -130,6 +139,15 @@ public interface IOssService {
      */
     void uploadFile(InputStream inputStream, String objectName, long inputStreamLength);
 
+    /**
+     * 上传本地文件到 OSS, 大文件并行分片上传
+     * @param file 本地文件
+     * @param objectName object key
+     * @param listener 分片上传进度, 可以为null
+     * @return 是否上传成功
+     */
+    boolean uploadFile(Path file, String objectName, OssMultipartUploader.PartListener listener);
+
     /**
      * 检查Bucket是否存在，并且验证配置是否可用，用于创建OSS配置时使用
      */
@@ -0,0 +1,351 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ExecutorBuilder;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.jmal.clouddisk.config.FileProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.stream.Stream;
+
+/**
+ * @author jmal
+ * @Description oss文件的本地块缓存
+ * 对象按固定大小分块, 以(bucket, objectName, eTag, 块号)为key缓存到 ${rootDir}/${chunkFileDir}/${ossBlockCache} 下,
+ * 总大小超过 ossBlockCacheSize 后淘汰最少使用的块. 对象修改后eTag变化, 旧的块不会再被读到, 随后被淘汰.
+ * 顺序读取时预读后面的块, 同一个块的并发读取只请求一次oss
+ */
+@Slf4j
+public class OssBlockCache {
+
+    /***
+     * 块大小
+     */
+    static final long BLOCK_SIZE = 4L * 1024 * 1024;
+
+    /***
+     * 顺序读取时预读的块数
+     */
+    private static final int READ_AHEAD = 2;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static volatile OssBlockCache instance;
+
+    private final Path cacheDir;
+
+    /***
+     * key: 相对于cacheDir的路径, value: 块大小
+     */
+    private final Cache<String, Long> cache;
+
+    /***
+     * 正在下载的块, 相同的块只下载一次
+     */
+    private final Map<String, CompletableFuture<Path>> loadingMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 预读线程池, 队列满时放弃预读
+     */
+    private final ExecutorService readAheadExecutor;
+
+    private OssBlockCache(FileProperties fileProperties) {
+        cacheDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getOssBlockCache());
+        long maximumWeight = Math.max(1L, fileProperties.getOssBlockCacheSize()) * 1024 * 1024;
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String key, Long size) -> (int) Math.max(1L, size))
+                .executor(Runnable::run)
+                .removalListener((String key, Long size, RemovalCause cause) -> {
+                    if (key != null && cause != RemovalCause.REPLACED) {
+                        delete(cacheDir.resolve(key));
+                    }
+                })
+                .build();
+        readAheadExecutor = ExecutorBuilder.create()
+                .setCorePoolSize(4)
+                .setMaxPoolSize(4)
+                .setWorkQueue(new LinkedBlockingQueue<>(64))
+                .setThreadFactory(ThreadUtil.newNamedThreadFactory("ossReadAhead-", true))
+                .setHandler(new ThreadPoolExecutor.DiscardPolicy())
+                .build();
+        ThreadUtil.execute(this::loadCacheDir);
+    }
+
+    public static OssBlockCache getInstance(FileProperties fileProperties) {
+        if (instance == null) {
+            synchronized (OssBlockCache.class) {
+                if (instance == null) {
+                    instance = new OssBlockCache(fileProperties);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 读取对象的一段, 经过本地块缓存
+     * @param ossService IOssService
+     * @param fileInfo 对象信息, 需要有eTag和大小
+     * @param rangeStart 开始位置
+     * @param rangeEnd 结束位置(包含)
+     * @return InputStream
+     */
+    public InputStream getInputStream(IOssService ossService, FileInfo fileInfo, long rangeStart, long rangeEnd) {
+        long end = Math.min(rangeEnd, fileInfo.getSize() - 1);
+        return new BlockInputStream(ossService, fileInfo, rangeStart, end);
+    }
+
+    /**
+     * 获取块, 本地没有时从oss下载
+     * @return 块文件
+     */
+    private Path getBlock(IOssService ossService, FileInfo fileInfo, long index) throws IOException {
+        String key = getKey(fileInfo, index);
+        Path block = cacheDir.resolve(key);
+        if (cache.getIfPresent(key) != null && Files.exists(block)) {
+            return block;
+        }
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> loading = loadingMap.putIfAbsent(key, future);
+        if (loading == null) {
+            // 当前线程下载
+            load(ossService, fileInfo, index, key, future);
+            loading = future;
+        }
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 预读块, 已缓存或正在下载时忽略
+     */
+    private void readAhead(IOssService ossService, FileInfo fileInfo, long index) {
+        String key = getKey(fileInfo, index);
+        if (cache.asMap().containsKey(key) || loadingMap.containsKey(key)) {
+            return;
+        }
+        readAheadExecutor.execute(() -> {
+            CompletableFuture<Path> future = new CompletableFuture<>();
+            if (loadingMap.putIfAbsent(key, future) == null) {
+                load(ossService, fileInfo, index, key, future);
+            }
+        });
+    }
+
+    private void load(IOssService ossService, FileInfo fileInfo, long index, String key, CompletableFuture<Path> future) {
+        try {
+            Path block = cacheDir.resolve(key);
+            if (!Files.exists(block)) {
+                download(ossService, fileInfo, index, block);
+            }
+            cache.put(key, Files.size(block));
+            future.complete(block);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        } finally {
+            loadingMap.remove(key);
+        }
+    }
+
+    private static void download(IOssService ossService, FileInfo fileInfo, long index, Path block) throws IOException {
+        long start = index * BLOCK_SIZE;
+        long end = Math.min(start + BLOCK_SIZE, fileInfo.getSize()) - 1;
+        Files.createDirectories(block.getParent());
+        Path tempFile = block.resolveSibling(block.getFileName() + TEMP_SUFFIX);
+        try (AbstractOssObject ossObject = ossService.getAbstractOssObject(fileInfo.getKey(), start, end)) {
+            if (ossObject == null) {
+                throw new IOException("读取oss对象失败: " + fileInfo.getKey());
+            }
+            if (!isSameETag(fileInfo.getETag(), ossObject.getFileInfo().getETag())) {
+                // 列表缓存中的eTag已过期, 对象已被覆盖, 新版本的块不能缓存在旧的eTag下
+                throw new IOException("oss对象已被修改: " + fileInfo.getKey());
+            }
+            try (InputStream inputStream = ossObject.getInputStream()) {
+                Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (Files.size(tempFile) != end - start + 1) {
+                // 对象已被修改
+                throw new IOException("oss对象大小不一致: " + fileInfo.getKey());
+            }
+            Files.move(tempFile, block, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /***
+     * 比较eTag, 忽略引号和大小写, 不知道响应的eTag时不比较
+     */
+    private static boolean isSameETag(String eTag, String responseETag) {
+        if (eTag == null || responseETag == null) {
+            return true;
+        }
+        return CharSequenceUtil.strip(eTag, "\"").equalsIgnoreCase(CharSequenceUtil.strip(responseETag, "\""));
+    }
+
+    private static String getKey(FileInfo fileInfo, long index) {
+        String hash = SecureUtil.md5(fileInfo.getBucketName() + ":" + fileInfo.getKey() + ":" + fileInfo.getETag());
+        return hash.substring(0, 2) + File.separator + hash + "_" + index;
+    }
+
+    /***
+     * 启动时加载已有的块, 先加载旧的, 超出大小时会先淘汰旧的
+     */
+    private void loadCacheDir() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(cacheDir)) {
+            List<File> files = stream.filter(Files::isRegularFile).map(Path::toFile).sorted(Comparator.comparingLong(File::lastModified)).toList();
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    delete(file.toPath());
+                } else {
+                    cache.get(cacheDir.relativize(file.toPath()).toString(), key -> file.length());
+                }
+            }
+            log.info("oss块缓存: {}个块", cache.estimatedSize());
+        } catch (IOException e) {
+            log.warn("加载oss块缓存失败: {}", e.getMessage());
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("删除oss块缓存失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 按块读取 [position, end], 进入下一个块时预读后面的块
+     */
+    private class BlockInputStream extends InputStream {
+
+        private final IOssService ossService;
+
+        private final FileInfo fileInfo;
+
+        private final long end;
+
+        private long position;
+
+        private long blockIndex = -1;
+
+        private FileChannel blockChannel;
+
+        BlockInputStream(IOssService ossService, FileInfo fileInfo, long start, long end) {
+            this.ossService = ossService;
+            this.fileInfo = fileInfo;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position > end) {
+                return -1;
+            }
+            long index = position / BLOCK_SIZE;
+            if (index != blockIndex) {
+                openBlock(index);
+            }
+            long blockEnd = Math.min((index + 1) * BLOCK_SIZE - 1, end);
+            int size = (int) Math.min(len, blockEnd - position + 1);
+            int n = blockChannel.read(ByteBuffer.wrap(b, off, size), position - index * BLOCK_SIZE);
+            if (n < 0) {
+                throw new IOException("oss块缓存不完整: " + fileInfo.getKey());
+            }
+            position += n;
+            return n;
+        }
+
+        private void openBlock(long index) throws IOException {
+            closeBlock();
+            long lastIndex = end / BLOCK_SIZE;
+            for (long i = index + 1; i <= Math.min(index + READ_AHEAD, lastIndex); i++) {
+                readAhead(ossService, fileInfo, i);
+            }
+            try {
+                blockChannel = FileChannel.open(getBlock(ossService, fileInfo, index), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // 刚好被淘汰, 重新下载
+                cache.invalidate(getKey(fileInfo, index));
+                blockChannel = FileChannel.open(getBlock(ossService, fileInfo, index), StandardOpenOption.READ);
+            }
+            blockIndex = index;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position + 1));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            if (blockChannel == null || position > end || position / BLOCK_SIZE != blockIndex) {
+                return 0;
+            }
+            return (int) (Math.min((blockIndex + 1) * BLOCK_SIZE - 1, end) - position + 1);
+        }
+
+        private void closeBlock() throws IOException {
+            if (blockChannel != null) {
+                blockChannel.close();
+                blockChannel = null;
+                blockIndex = -1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeBlock();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.jmal.clouddisk.oss;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.ReUtil;
+import cn.hutool.crypto.SecureUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
@@ -121,6 +122,9 @@ public class OssConfigService {
         bucketInfo.setBucketName(ossConfigDTO.getBucket());
         bucketInfo.setUsername(ossConfigDTO.getUsername());
         bucketInfo.setFolderName(ossConfigDTO.getFolderName());
+        bucketInfo.setEndpoint(ossConfigDTO.getEndpoint());
+        bucketInfo.setRegion(ossConfigDTO.getRegion());
+        bucketInfo.setCredential(SecureUtil.sha256(ossConfigDTO.getAccessKey() + ":" + ossConfigDTO.getSecretKey()));
         String webPathPrefix = bucketInfo.getWebPathPrefix();
         // 销毁掉之前的IOssService
         destroyOssService(webPathPrefix);
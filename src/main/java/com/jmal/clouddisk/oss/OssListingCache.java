@@ -0,0 +1,437 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.thread.ExecutorBuilder;
+import cn.hutool.core.thread.ThreadUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.jmal.clouddisk.webdav.MyWebdavServlet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author jmal
+ * @Description oss目录列表缓存
+ * 按目录层级组成一棵树, 每个节点缓存该目录的列表和对象本身的FileInfo. 按前缀清除时找到节点后摘掉整棵子树, 复杂度为目录深度.
+ * mkdir、上传、删除成功后直接更新所在目录的列表, 不需要清除, 所以有效期可以更长.
+ * 超过有效期后先返回旧的, 同时在后台重新列举并按eTag更新(同一目录同时只列举一次), 超过最长过期时间才同步列举
+ */
+@Slf4j
+public class OssListingCache {
+
+    /***
+     * 有效期
+     */
+    static final long FRESH_MILLIS = 30 * 1000L;
+
+    /***
+     * 最长过期时间, 超过后不再返回旧的
+     */
+    static final long MAX_STALE_MILLIS = 5 * 60 * 1000L;
+
+    /***
+     * 最多缓存的目录列表数, 超过后淘汰最少使用的
+     */
+    private static final int MAX_LISTINGS = 1024;
+
+    public interface Lister {
+        /**
+         * 列举目录
+         * @param objectName 目录的objectName
+         * @return 目录下的文件和文件夹, 为null时不缓存
+         */
+        List<FileInfo> list(String objectName);
+    }
+
+    private final Node root = new Node(null, "");
+
+    private final Lister lister;
+
+    /***
+     * 为false时过期后同步列举, 不返回旧的
+     */
+    private final boolean revalidate;
+
+    /***
+     * 有列表的节点, 用于限制缓存的目录数
+     */
+    private final Cache<Node, Boolean> listingNodes;
+
+    /***
+     * 后台列举线程池, 和oss的连接数相比不需要太多
+     */
+    private final ExecutorService refreshExecutor;
+
+    public OssListingCache(String bucketName, Lister lister, boolean revalidate) {
+        this.lister = lister;
+        this.revalidate = revalidate;
+        this.listingNodes = Caffeine.newBuilder()
+                .maximumSize(MAX_LISTINGS)
+                .executor(Runnable::run)
+                .removalListener((Node node, Boolean value, RemovalCause cause) -> {
+                    if (node != null && cause.wasEvicted()) {
+                        prune(node);
+                    }
+                })
+                .build();
+        this.refreshExecutor = ExecutorBuilder.create()
+                .setCorePoolSize(2)
+                .setMaxPoolSize(2)
+                .setWorkQueue(new LinkedBlockingQueue<>(64))
+                .setThreadFactory(ThreadUtil.newNamedThreadFactory("ossListing-" + bucketName + "-", true))
+                .build();
+    }
+
+    /**
+     * 获取目录列表, 没有缓存或超过最长过期时间时同步列举
+     * @param objectName 目录的objectName, 结尾的"/"可以省略, 根目录为""或"/"
+     * @return 目录下的文件和文件夹
+     */
+    public List<FileInfo> getListing(String objectName) {
+        Node node = getNode(objectName, true);
+        List<FileInfo> listing = getListing(node);
+        if (listing != null) {
+            return listing;
+        }
+        synchronized (node.loadLock) {
+            // 其他线程可能刚列举完
+            listing = getListing(node);
+            if (listing != null) {
+                return listing;
+            }
+            return load(node);
+        }
+    }
+
+    private List<FileInfo> getListing(Node node) {
+        Map<String, FileInfo> listing = node.listing;
+        if (listing == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - node.listingTime;
+        if (age >= FRESH_MILLIS) {
+            if (!revalidate || age >= MAX_STALE_MILLIS) {
+                return null;
+            }
+            refreshAsync(node);
+        }
+        listingNodes.getIfPresent(node);
+        return new ArrayList<>(listing.values());
+    }
+
+    /**
+     * 获取对象的FileInfo, 过期时在后台重新列举所在的目录
+     * @param objectName objectName
+     * @return 没有缓存时返回null
+     */
+    public FileInfo getFileInfo(String objectName) {
+        Node node = getNode(objectName, false);
+        if (node == null || node.fileInfo == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - node.fileInfoTime;
+        if (age >= FRESH_MILLIS) {
+            if (!revalidate || age >= MAX_STALE_MILLIS) {
+                return null;
+            }
+            if (node.parent != null && node.parent.listing != null) {
+                refreshAsync(node.parent);
+            }
+        }
+        return node.fileInfo;
+    }
+
+    /**
+     * 缓存FileInfo, 同时更新所在目录的列表
+     * @param objectName objectName
+     * @param fileInfo FileInfo
+     */
+    public void put(String objectName, FileInfo fileInfo) {
+        String[] names = objectName.split(MyWebdavServlet.PATH_DELIMITER);
+        int last = names.length - 1;
+        while (last >= 0 && names[last].isEmpty()) {
+            last--;
+        }
+        if (last < 0) {
+            return;
+        }
+        Node parent = root;
+        StringBuilder dirKey = new StringBuilder();
+        for (int i = 0; i < last && parent != null; i++) {
+            if (names[i].isEmpty()) {
+                continue;
+            }
+            dirKey.append(names[i]).append(MyWebdavServlet.PATH_DELIMITER);
+            // 上级目录不在它的上级目录的列表里时(例如在不存在的目录下上传), 清除该列表
+            Map<String, FileInfo> listing = parent.listing;
+            if (listing != null && !listing.containsKey(dirKey.toString())) {
+                parent.dropListing();
+            }
+            parent = parent.getChild(names[i], false);
+        }
+        if (parent == null) {
+            // 所在目录没有缓存
+            return;
+        }
+        // 所在目录的列表没有缓存时不创建节点, 这样的节点不在listingNodes中, 不会被淘汰
+        Node node = parent.getChild(names[last], parent.listing != null);
+        if (node != null) {
+            node.setFileInfo(fileInfo);
+        }
+        // 列表为null时只增加版本号, 正在进行的列举不会被缓存
+        parent.putEntry(fileInfo);
+    }
+
+    /**
+     * 列举目录时缓存目录本身的FileInfo, 不更新列表
+     * @param objectName 目录的objectName
+     * @param fileInfo FileInfo
+     */
+    public void putIfAbsent(String objectName, FileInfo fileInfo) {
+        Node node = getNode(objectName, true);
+        if (node.fileInfo == null) {
+            node.setFileInfo(fileInfo);
+        }
+    }
+
+    /**
+     * 删除对象后, 摘掉对象的节点(包括下面所有的缓存), 并从所在目录的列表中删除
+     * @param objectName objectName
+     */
+    public void remove(String objectName) {
+        Node node = detach(objectName);
+        if (node != null && node.parent != null) {
+            node.parent.removeEntry(node.getKey());
+        }
+    }
+
+    /**
+     * 清除对象及以下的所有缓存, 以及所在目录的列表
+     * @param objectName objectName
+     */
+    public void invalidate(String objectName) {
+        Node node = detach(objectName);
+        if (node == null) {
+            return;
+        }
+        if (node.parent != null) {
+            node.parent.dropListing();
+        } else {
+            node.dropListing();
+        }
+    }
+
+    private Node detach(String objectName) {
+        Node node = getNode(objectName, false);
+        if (node == null) {
+            return null;
+        }
+        if (node.parent != null) {
+            node.parent.children.remove(node.name, node);
+        } else {
+            node.children.clear();
+        }
+        listingNodes.invalidate(node);
+        return node;
+    }
+
+    /**
+     * 同步列举, 列举期间目录被修改时不缓存本次的结果, 以免覆盖修改
+     */
+    private List<FileInfo> load(Node node) {
+        long version = node.version.get();
+        List<FileInfo> fileInfoList = lister.list(node.getKey());
+        if (fileInfoList == null) {
+            return null;
+        }
+        if (node.version.get() == version) {
+            setListing(node, fileInfoList);
+        }
+        return fileInfoList;
+    }
+
+    private void refreshAsync(Node node) {
+        if (!node.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        String objectName = node.getKey();
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    synchronized (node.loadLock) {
+                        load(node);
+                    }
+                } catch (Exception e) {
+                    log.warn("列举失败: {}, {}", objectName, e.getMessage());
+                } finally {
+                    node.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            node.refreshing.set(false);
+        }
+    }
+
+    /**
+     * 更新列表和其中对象的FileInfo, eTag没变的对象保留原来的FileInfo, 已不存在的对象摘掉节点
+     */
+    private void setListing(Node node, List<FileInfo> fileInfoList) {
+        Map<String, FileInfo> listing = new LinkedHashMap<>(fileInfoList.size() * 2);
+        Set<String> names = new HashSet<>(fileInfoList.size() * 2);
+        for (FileInfo fileInfo : fileInfoList) {
+            listing.put(fileInfo.getKey(), fileInfo);
+            names.add(fileInfo.getName());
+            Node child = node.getChild(fileInfo.getName(), true);
+            FileInfo old = child.fileInfo;
+            if (old == null || !Objects.equals(old.getETag(), fileInfo.getETag()) || old.getSize() != fileInfo.getSize()) {
+                child.setFileInfo(fileInfo);
+            } else {
+                child.fileInfoTime = System.currentTimeMillis();
+            }
+        }
+        Map<String, FileInfo> oldListing = node.listing;
+        if (oldListing != null) {
+            // 已被删除的对象
+            for (FileInfo fileInfo : oldListing.values()) {
+                if (!names.contains(fileInfo.getName())) {
+                    node.children.remove(fileInfo.getName());
+                }
+            }
+        }
+        synchronized (node) {
+            node.listing = listing;
+            node.listingTime = System.currentTimeMillis();
+        }
+        listingNodes.put(node, Boolean.TRUE);
+    }
+
+    /**
+     * 按目录层级找到节点
+     * @param objectName objectName, 目录结尾可以带"/"
+     * @param create 不存在时是否创建
+     */
+    private Node getNode(String objectName, boolean create) {
+        Node node = root;
+        for (String name : objectName.split(MyWebdavServlet.PATH_DELIMITER)) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            node = node.getChild(name, create);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * 列表被淘汰后, 去掉没有列表也没有子节点的节点, 并向上检查
+     */
+    private static void prune(Node node) {
+        node.dropListing();
+        node.children.values().removeIf(child -> child.listing == null && child.children.isEmpty());
+        for (Node dir = node; dir.parent != null && dir.listing == null && dir.children.isEmpty(); dir = dir.parent) {
+            dir.parent.children.remove(dir.name, dir);
+        }
+    }
+
+    private static class Node {
+
+        private final Node parent;
+
+        private final String name;
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>(8);
+
+        private final Object loadLock = new Object();
+
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        /***
+         * 列表的修改次数
+         */
+        private final AtomicLong version = new AtomicLong(0);
+
+        /***
+         * key: 对象的key, 写时复制
+         */
+        private volatile Map<String, FileInfo> listing;
+
+        private volatile long listingTime;
+
+        private volatile FileInfo fileInfo;
+
+        private volatile long fileInfoTime;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        Node getChild(String childName, boolean create) {
+            if (create) {
+                return children.computeIfAbsent(childName, key -> new Node(this, key));
+            }
+            return children.get(childName);
+        }
+
+        /***
+         * 目录的key, 结尾带"/", 根目录为""
+         */
+        String getKey() {
+            if (parent == null) {
+                return "";
+            }
+            return parent.getKey() + name + MyWebdavServlet.PATH_DELIMITER;
+        }
+
+        void setFileInfo(FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+            this.fileInfoTime = System.currentTimeMillis();
+        }
+
+        synchronized void putEntry(FileInfo fileInfo) {
+            version.incrementAndGet();
+            if (listing == null) {
+                return;
+            }
+            Map<String, FileInfo> newListing = new LinkedHashMap<>(listing);
+            newListing.put(fileInfo.getKey(), fileInfo);
+            listing = newListing;
+        }
+
+        synchronized void removeEntry(String dirKey) {
+            version.incrementAndGet();
+            if (listing == null) {
+                return;
+            }
+            // 文件的key结尾不带"/"
+            String fileKey = dirKey.substring(0, dirKey.length() - 1);
+            if (!listing.containsKey(dirKey) && !listing.containsKey(fileKey)) {
+                return;
+            }
+            Map<String, FileInfo> newListing = new LinkedHashMap<>(listing);
+            newListing.remove(dirKey);
+            newListing.remove(fileKey);
+            listing = newListing;
+        }
+
+        synchronized void dropListing() {
+            version.incrementAndGet();
+            listing = null;
+        }
+    }
+}
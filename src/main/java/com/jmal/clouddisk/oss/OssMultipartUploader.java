@@ -0,0 +1,295 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author jmal
+ * @Description 临时文件分片上传
+ * 大文件切分为分片, 在每个bucket独立的线程池中并行上传, 失败的分片重试,
+ * 所有分片都上传成功后才合并, 否则取消本次分片上传, oss上不会出现不完整的对象
+ */
+@Slf4j
+public class OssMultipartUploader {
+
+    /***
+     * 默认分片大小
+     */
+    private static final long PART_SIZE = 8L * 1024 * 1024;
+
+    /***
+     * 小于该大小的文件直接上传
+     */
+    private static final long MULTIPART_THRESHOLD = 2 * PART_SIZE;
+
+    /***
+     * 最多分片数, minio列举分片时一次最多返回1000个
+     */
+    private static final int MAX_PARTS = 1000;
+
+    /***
+     * 每个分片的最多尝试次数
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /***
+     * 每个bucket同时上传的分片数
+     */
+    private static final int PARALLELISM = 4;
+
+    private final IOssService ossService;
+
+    private final ExecutorService executorService;
+
+    /***
+     * 分片上传进度
+     */
+    public interface PartListener {
+
+        /***
+         * 分片上传成功
+         * @param size 分片大小
+         */
+        void onPartUploaded(long size);
+
+        /***
+         * 是否已取消, 取消后不再上传剩下的分片
+         */
+        boolean isCancelled();
+    }
+
+    public OssMultipartUploader(IOssService ossService, String bucketName) {
+        this.ossService = ossService;
+        this.executorService = ThreadUtil.newFixedExecutor(PARALLELISM, Integer.MAX_VALUE, "ossUpload-" + bucketName + "-", true);
+    }
+
+    /**
+     * 上传临时文件, 大文件分片上传
+     * @param tempFileAbsolutePath 临时文件绝对路径
+     * @param objectName objectName
+     */
+    public void upload(Path tempFileAbsolutePath, String objectName) {
+        upload(tempFileAbsolutePath, objectName, null);
+    }
+
+    /**
+     * 上传本地文件, 大文件分片上传
+     * @param tempFileAbsolutePath 文件绝对路径
+     * @param objectName objectName
+     * @param listener 分片上传进度, 可以为null
+     * @return 是否上传成功
+     */
+    public boolean upload(Path tempFileAbsolutePath, String objectName, PartListener listener) {
+        if (!PathUtil.exists(tempFileAbsolutePath, false)) {
+            return false;
+        }
+        long fileSize = tempFileAbsolutePath.toFile().length();
+        if (fileSize < MULTIPART_THRESHOLD) {
+            ossService.uploadFile(tempFileAbsolutePath, objectName);
+            if (listener != null) {
+                listener.onPartUploaded(fileSize);
+            }
+            return true;
+        }
+        long lastModified = tempFileAbsolutePath.toFile().lastModified();
+        long partSize = getPartSize(fileSize);
+        int partCount = (int) ((fileSize + partSize - 1) / partSize);
+        String uploadId = null;
+        try {
+            uploadId = ossService.initiateMultipartUpload(objectName);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        if (uploadId == null) {
+            log.warn("{}, 初始化分片上传失败: {}", ossService.getPlatform().getValue(), objectName);
+            return false;
+        }
+        log.info("{}, 分片上传: {}, 大小: {}, 分片数: {}", ossService.getPlatform().getValue(), objectName, fileSize, partCount);
+        boolean completed = false;
+        try (FileChannel fileChannel = FileChannel.open(tempFileAbsolutePath, StandardOpenOption.READ)) {
+            if (uploadParts(fileChannel, objectName, uploadId, fileSize, partSize, partCount, listener)
+                    && isUnchanged(tempFileAbsolutePath, fileSize, lastModified)
+                    && ossService.getListParts(objectName, uploadId).size() == partCount) {
+                // 合并成功后会删除临时文件
+                ossService.completeMultipartUpload(objectName, uploadId, fileSize);
+                completed = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            if (!completed) {
+                log.warn("{}, 分片上传失败: {}", ossService.getPlatform().getValue(), objectName);
+                ossService.abortMultipartUpload(objectName, uploadId);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 并行上传所有分片, 有一个分片失败或已取消时不再上传剩下的分片
+     * @return 是否全部上传成功
+     */
+    private boolean uploadParts(FileChannel fileChannel, String objectName, String uploadId, long fileSize, long partSize, int partCount, PartListener listener) throws InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<Boolean>> futures = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            int partNumber = i + 1;
+            long position = i * partSize;
+            int size = (int) Math.min(partSize, fileSize - position);
+            futures.add(executorService.submit(() -> {
+                if (failed.get() || (listener != null && listener.isCancelled())) {
+                    failed.set(true);
+                    return false;
+                }
+                boolean success = uploadPart(fileChannel, objectName, uploadId, partNumber, position, size);
+                if (!success) {
+                    failed.set(true);
+                } else if (listener != null) {
+                    listener.onPartUploaded(size);
+                }
+                return success;
+            }));
+        }
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                success &= Boolean.TRUE.equals(future.get());
+            } catch (ExecutionException | CancellationException e) {
+                failed.set(true);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private boolean uploadPart(FileChannel fileChannel, String objectName, String uploadId, int partNumber, long position, int size) throws InterruptedException {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try (InputStream inputStream = new PartInputStream(fileChannel, position, size)) {
+                if (ossService.uploadPart(inputStream, objectName, size, partNumber, uploadId)) {
+                    return true;
+                }
+            } catch (Exception e) {
+                log.warn("{}, 上传分片失败: {}, partNumber: {}, {}", ossService.getPlatform().getValue(), objectName, partNumber, e.getMessage());
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                // 1s, 2s 后重试
+                Thread.sleep(1000L << (attempt - 1));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 上传过程中临时文件又被修改时放弃本次上传, 修改后的文件会重新上传
+     */
+    private static boolean isUnchanged(Path tempFileAbsolutePath, long fileSize, long lastModified) throws IOException {
+        return Files.exists(tempFileAbsolutePath)
+                && Files.size(tempFileAbsolutePath) == fileSize
+                && Files.getLastModifiedTime(tempFileAbsolutePath).toMillis() == lastModified;
+    }
+
+    /**
+     * 分片大小, 至少为PART_SIZE, 分片数不超过MAX_PARTS, 按1M对齐
+     */
+    static long getPartSize(long fileSize) {
+        long partSize = Math.max(PART_SIZE, (fileSize + MAX_PARTS - 1) / MAX_PARTS);
+        long unit = 1024L * 1024;
+        return (partSize + unit - 1) / unit * unit;
+    }
+
+    public void shutdown() {
+        // 取消还没开始的分片, 让等待的上传结束
+        executorService.shutdownNow().forEach(runnable -> {
+            if (runnable instanceof Future<?> future) {
+                future.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * 读取文件的一段, 多个分片共用一个FileChannel, 按位置读取互不影响; 支持mark/reset, 便于SDK重试
+     */
+    private static class PartInputStream extends InputStream {
+
+        private final FileChannel fileChannel;
+
+        private final long end;
+
+        private long position;
+
+        private long mark;
+
+        PartInputStream(FileChannel fileChannel, long position, long size) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.mark = position;
+            this.end = position + size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = fileChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+    }
+}
@@ -81,6 +81,11 @@ public class AliyunOssService implements IOssService {
         return baseOssService.getObject(objectName);
     }
 
+    @Override
+    public InputStream getInputStream(String objectName, Long rangeStart, Long rangeEnd) {
+        return baseOssService.getInputStream(objectName, rangeStart, rangeEnd);
+    }
+
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName) {
         return getAbstractOssObject(objectName, null, null);
@@ -406,6 +411,11 @@ public class AliyunOssService implements IOssService {
         }
     }
 
+    @Override
+    public boolean uploadFile(Path file, String objectName, OssMultipartUploader.PartListener listener) {
+        return baseOssService.uploadFile(file, objectName, listener);
+    }
+
     @Override
     public void uploadFile(InputStream inputStream, String objectName, long inputStreamLength) {
         try {
@@ -431,7 +441,7 @@ public class AliyunOssService implements IOssService {
     public List<String> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
         baseOssService.setObjectNameLock(sourceBucketName);
         baseOssService.setObjectNameLock(destinationBucketName);
-        List<String> copiedList = new ArrayList<>();
+        List<String> copiedList = new CopyOnWriteArrayList<>();
         try {
             if (sourceKey.endsWith("/")) {
                 // 复制文件夹
@@ -476,6 +486,8 @@ public class AliyunOssService implements IOssService {
         if (contentLength < 1024 * 1024 * 10L) {
             // 小文件执行普通拷贝
             ossClient.copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+            baseOssService.printOperation(getPlatform().getKey(), "copyObject complete" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
+            return;
         }
 
         // 设置分片大小为10 MB。单位为字节。
@@ -494,24 +506,30 @@ public class AliyunOssService implements IOssService {
 
         // 分片拷贝。
         List<PartETag> partETags = new ArrayList<>();
-        for (int i = 0; i < partCount; i++) {
-            // 计算每个分片的大小。
-            long skipBytes = partSize * i;
-            long size = Math.min(partSize, contentLength - skipBytes);
-            // 创建UploadPartCopyRequest。可以通过UploadPartCopyRequest指定限定条件。
-            UploadPartCopyRequest uploadPartCopyRequest = new UploadPartCopyRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
-            uploadPartCopyRequest.setUploadId(uploadId);
-            uploadPartCopyRequest.setPartSize(size);
-            uploadPartCopyRequest.setBeginIndex(skipBytes);
-            uploadPartCopyRequest.setPartNumber(i + 1);
-            UploadPartCopyResult uploadPartCopyResult = ossClient.uploadPartCopy(uploadPartCopyRequest);
-            // 将返回的分片ETag保存到partETags中。
-            partETags.add(uploadPartCopyResult.getPartETag());
+        try {
+            for (int i = 0; i < partCount; i++) {
+                // 计算每个分片的大小。
+                long skipBytes = partSize * i;
+                long size = Math.min(partSize, contentLength - skipBytes);
+                // 创建UploadPartCopyRequest。可以通过UploadPartCopyRequest指定限定条件。
+                UploadPartCopyRequest uploadPartCopyRequest = new UploadPartCopyRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+                uploadPartCopyRequest.setUploadId(uploadId);
+                uploadPartCopyRequest.setPartSize(size);
+                uploadPartCopyRequest.setBeginIndex(skipBytes);
+                uploadPartCopyRequest.setPartNumber(i + 1);
+                UploadPartCopyResult uploadPartCopyResult = ossClient.uploadPartCopy(uploadPartCopyRequest);
+                // 将返回的分片ETag保存到partETags中。
+                partETags.add(uploadPartCopyResult.getPartETag());
+            }
+            // 提交分片拷贝任务。
+            CompleteMultipartUploadRequest completeMultipartUploadRequest = new CompleteMultipartUploadRequest(
+                    destinationBucketName, destinationKey, uploadId, partETags);
+            ossClient.completeMultipartUpload(completeMultipartUploadRequest);
+        } catch (OSSException | ClientException e) {
+            // 取消分片拷贝, 不留下不完整的分片
+            ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(destinationBucketName, destinationKey, uploadId));
+            throw e;
         }
-        // 提交分片拷贝任务。
-        CompleteMultipartUploadRequest completeMultipartUploadRequest = new CompleteMultipartUploadRequest(
-                destinationBucketName, destinationKey, uploadId, partETags);
-        ossClient.completeMultipartUpload(completeMultipartUploadRequest);
         baseOssService.printOperation(getPlatform().getKey(), "copyObject complete" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
     }
 
@@ -546,7 +564,7 @@ public class AliyunOssService implements IOssService {
 
     @Override
     public void close() {
-        baseOssService.closePrint();
+        baseOssService.close();
         if (this.ossClient != null) {
             this.ossClient.shutdown();
         }
@@ -1,5 +1,6 @@
 package com.jmal.clouddisk.oss.minio;
 
+import cn.hutool.core.text.CharSequenceUtil;
 import com.jmal.clouddisk.oss.AbstractOssObject;
 import com.jmal.clouddisk.oss.FileInfo;
 import com.jmal.clouddisk.oss.IOssService;
@@ -55,7 +56,9 @@ public class MinIOObject extends AbstractOssObject {
         fileInfo.setSize(this.statObjectResponse.size());
         fileInfo.setKey(this.statObjectResponse.object());
         fileInfo.setLastModified(Date.from(this.statObjectResponse.lastModified().toInstant()));
-        fileInfo.setETag(this.statObjectResponse.etag());
+        // 以读取时响应的eTag为准, statObject和getObject之间对象可能被修改
+        String eTag = this.getObjectResponse.headers().get("ETag");
+        fileInfo.setETag(eTag != null ? CharSequenceUtil.strip(eTag, "\"") : this.statObjectResponse.etag());
         fileInfo.setBucketName(this.statObjectResponse.bucket());
         return fileInfo;
     }
@@ -6,6 +6,8 @@ import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
 import com.google.common.collect.HashMultimap;
 import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.interceptor.FileInterceptor;
 import com.jmal.clouddisk.oss.*;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
@@ -101,6 +103,11 @@ public class MinIOService implements IOssService {
         return baseOssService.getObject(objectName);
     }
 
+    @Override
+    public InputStream getInputStream(String objectName, Long rangeStart, Long rangeEnd) {
+        return baseOssService.getInputStream(objectName, rangeStart, rangeEnd);
+    }
+
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName) {
         return getAbstractOssObject(objectName, null, null);
@@ -278,6 +285,11 @@ public class MinIOService implements IOssService {
         }
     }
 
+    @Override
+    public boolean uploadFile(Path file, String objectName, OssMultipartUploader.PartListener listener) {
+        return baseOssService.uploadFile(file, objectName, listener);
+    }
+
     @Override
     public void uploadFile(InputStream inputStream, String objectName, long inputStreamLength) {
         try {
@@ -407,6 +419,8 @@ public class MinIOService implements IOssService {
             baseOssService.onUploadSuccess(objectName, fileTotalSize);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
+            // 和其他平台一致, 合并失败时抛出异常
+            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
         }
     }
 
@@ -509,7 +523,7 @@ public class MinIOService implements IOssService {
 
     @Override
     public void close() {
-        baseOssService.closePrint();
+        baseOssService.close();
         if (scheduledThreadPoolExecutor != null) {
             scheduledThreadPoolExecutor.shutdown();
         }
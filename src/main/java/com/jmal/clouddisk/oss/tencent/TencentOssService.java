@@ -114,6 +114,11 @@ public class TencentOssService implements IOssService {
         return baseOssService.getObject(objectName);
     }
 
+    @Override
+    public InputStream getInputStream(String objectName, Long rangeStart, Long rangeEnd) {
+        return baseOssService.getInputStream(objectName, rangeStart, rangeEnd);
+    }
+
     @Override
     public AbstractOssObject getAbstractOssObject(String objectName) {
         return getAbstractOssObject(objectName, null, null);
@@ -400,13 +405,13 @@ public class TencentOssService implements IOssService {
     public List<String> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
         baseOssService.setObjectNameLock(sourceBucketName);
         baseOssService.setObjectNameLock(destinationBucketName);
-        List<String> copiedList = new ArrayList<>();
+        List<String> copiedList = new CopyOnWriteArrayList<>();
         try {
             if (sourceKey.endsWith("/")) {
                 // 复制文件夹
                 ListObjectsRequest listObjectsRequest = new ListObjectsRequest();
                 // 设置 bucket 名称
-                listObjectsRequest.setBucketName(bucketName);
+                listObjectsRequest.setBucketName(sourceBucketName);
                 // prefix 表示列出的对象名以 prefix 为前缀
                 // 这里填要列出的目录的相对 bucket 的路径
                 listObjectsRequest.setPrefix(sourceKey);
@@ -503,6 +508,11 @@ public class TencentOssService implements IOssService {
         }
     }
 
+    @Override
+    public boolean uploadFile(Path file, String objectName, OssMultipartUploader.PartListener listener) {
+        return baseOssService.uploadFile(file, objectName, listener);
+    }
+
     @Override
     public void uploadFile(InputStream inputStream, String objectName, long inputStreamLength) {
         baseOssService.printOperation(getPlatform().getKey(), "uploadFile inputStream", objectName);
@@ -552,7 +562,7 @@ public class TencentOssService implements IOssService {
 
     @Override
     public void close() {
-        baseOssService.closePrint();
+        baseOssService.close();
         if (this.cosClient != null) {
             this.cosClient.shutdown();
         }
@@ -5,11 +5,13 @@ import com.jmal.clouddisk.annotation.Permission;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.oss.OssConfigService;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
+import com.jmal.clouddisk.service.impl.UserLoginHolder;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.RequiredArgsConstructor;
+import org.bson.Document;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
@@ -26,6 +28,10 @@ public class OssController {
 
     public final WebOssService webOssService;
 
+    private final OssTransferService ossTransferService;
+
+    private final UserLoginHolder userLoginHolder;
+
     @Operation(summary = "获取支持的平台的列表")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
     @GetMapping("getPlatformList")
@@ -58,4 +64,20 @@ public class OssController {
         return ossConfigService.deleteOssConfig(id);
     }
 
+    @Operation(summary = "正在进行的复制/移动任务")
+    @GetMapping("transfer/list")
+    @Permission("cloud:file:update")
+    public ResponseResult<List<Document>> transferList() {
+        return ResultUtil.success(ossTransferService.getJobs(userLoginHolder.getUsername()));
+    }
+
+    @Operation(summary = "取消复制/移动")
+    @GetMapping("transfer/cancel")
+    @Permission("cloud:file:update")
+    public ResponseResult<Object> cancelTransfer(@RequestParam String taskId) {
+        if (!ossTransferService.cancel(userLoginHolder.getUsername(), taskId)) {
+            return ResultUtil.warning("任务不存在或已完成");
+        }
+        return ResultUtil.success();
+    }
 }
@@ -0,0 +1,323 @@
+package com.jmal.clouddisk.oss.web;
+
+import cn.hutool.core.date.TimeInterval;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.oss.OssMultipartUploader;
+import com.jmal.clouddisk.service.impl.CommonFileService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author jmal
+ * @Description oss复制/移动的传输任务
+ * 一次复制/移动是一个任务, 任务中的文件在共用的线程池中并行传输, 每个任务同时传输的文件数有上限.
+ * 传输的进度和速度通过websocket推送, 可以取消, 已传输完的文件会保留
+ */
+@Service
+@Slf4j
+public class OssTransferService {
+
+    /***
+     * 推送消息的url
+     */
+    public static final String TRANSFER = "transfer";
+
+    /***
+     * 每个任务同时传输的文件数
+     */
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private static final long PUSH_INTERVAL_MILLIS = 1000;
+
+    @Autowired
+    CommonFileService commonFileService;
+
+    private final Map<String, TransferJob> jobMap = new ConcurrentHashMap<>(16);
+
+    private ExecutorService executor;
+
+    public interface TransferAction {
+        void run() throws Exception;
+    }
+
+    @PostConstruct
+    public void init() {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        executor = ThreadUtil.newFixedExecutor(threads, Integer.MAX_VALUE, "ossTransfer", true);
+    }
+
+    /***
+     * 创建传输任务
+     * @param username 用户名
+     * @param name 复制/移动的文件名
+     */
+    public TransferJob newJob(String username, String name) {
+        return new TransferJob(username, name);
+    }
+
+    /***
+     * 执行任务, 当前线程等待所有文件传输结束
+     * @param job 任务
+     * @return 是否全部完成, 取消时返回false
+     * @throws CommonException 有文件传输失败
+     */
+    public boolean run(TransferJob job) {
+        TimeInterval timeInterval = new TimeInterval();
+        jobMap.put(job.id, job);
+        Semaphore semaphore = new Semaphore(MAX_IN_FLIGHT);
+        List<Future<?>> futures = new ArrayList<>(job.tasks.size());
+        try {
+            job.push("running");
+            for (TransferTask task : job.tasks) {
+                semaphore.acquire();
+                if (job.isStopped()) {
+                    semaphore.release();
+                    break;
+                }
+                futures.add(executor.submit(() -> {
+                    try {
+                        task.action.run();
+                        if (!job.isStopped()) {
+                            job.doneFiles.incrementAndGet();
+                            job.updateProgress();
+                        }
+                    } catch (Exception e) {
+                        log.warn("传输失败: {}, {}", task.name, e.getMessage());
+                        job.fail(e);
+                    } finally {
+                        semaphore.release();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            job.cancelled.set(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            job.fail(e.getCause());
+        } finally {
+            jobMap.remove(job.id);
+        }
+        String status = "done";
+        if (job.error != null) {
+            status = "failed";
+        } else if (job.cancelled.get()) {
+            status = "cancelled";
+        }
+        job.push(status);
+        log.info("传输{}: {}, 文件数: {}/{}, 大小: {}, 耗时: {}ms", status, job.name, job.doneFiles.get(), job.tasks.size(), job.doneBytes.get(), timeInterval.intervalMs());
+        if (job.error != null) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), job.error);
+        }
+        return !job.cancelled.get();
+    }
+
+    /***
+     * 取消任务, 正在传输的文件会中断, 已传输完的文件会保留
+     * @param username 用户名
+     * @param jobId 任务id
+     * @return 任务不存在时返回false
+     */
+    public boolean cancel(String username, String jobId) {
+        TransferJob job = jobMap.get(jobId);
+        if (job == null || !job.username.equals(username)) {
+            return false;
+        }
+        job.cancelled.set(true);
+        return true;
+    }
+
+    /***
+     * 用户正在进行的任务
+     * @param username 用户名
+     */
+    public List<Document> getJobs(String username) {
+        return jobMap.values().stream().filter(job -> job.username.equals(username)).map(TransferJob::getProgress).toList();
+    }
+
+    private record TransferTask(String name, TransferAction action) {
+    }
+
+    public class TransferJob implements OssMultipartUploader.PartListener {
+
+        private final String id = IdUtil.fastSimpleUUID();
+
+        private final String username;
+
+        private final String name;
+
+        private final List<TransferTask> tasks = new ArrayList<>();
+
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        private volatile String error;
+
+        private long totalBytes;
+
+        private final AtomicLong doneBytes = new AtomicLong(0);
+
+        private final AtomicInteger doneFiles = new AtomicInteger(0);
+
+        private final long startTime = System.currentTimeMillis();
+
+        private volatile long lastPushTime;
+
+        TransferJob(String username, String name) {
+            this.username = username;
+            this.name = name;
+        }
+
+        /***
+         * 添加要传输的文件, 在run之前调用
+         * @param name 文件名
+         * @param size 文件大小
+         * @param action 传输文件
+         */
+        public void add(String name, long size, TransferAction action) {
+            tasks.add(new TransferTask(name, action));
+            totalBytes += Math.max(0, size);
+        }
+
+        /***
+         * 已取消或已失败
+         */
+        public boolean isStopped() {
+            return cancelled.get() || error != null;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isStopped();
+        }
+
+        @Override
+        public void onPartUploaded(long size) {
+            addBytes(size);
+        }
+
+        /***
+         * 没有经过 wrap 传输的文件(服务端复制、分片上传), 传输完后计入进度
+         */
+        public void addBytes(long size) {
+            doneBytes.addAndGet(size);
+            updateProgress();
+        }
+
+        /***
+         * 读取时计入进度, 取消后中断读取
+         */
+        public InputStream wrap(InputStream inputStream) {
+            return new TransferInputStream(inputStream, this);
+        }
+
+        private void fail(Throwable e) {
+            if (cancelled.get()) {
+                // 取消导致的失败
+                return;
+            }
+            if (error == null) {
+                String message = e instanceof CommonException commonException ? commonException.getMsg() : e.getMessage();
+                error = message == null ? "传输失败" : message;
+            }
+        }
+
+        private void updateProgress() {
+            if (System.currentTimeMillis() - lastPushTime < PUSH_INTERVAL_MILLIS) {
+                return;
+            }
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (now - lastPushTime >= PUSH_INTERVAL_MILLIS) {
+                    lastPushTime = now;
+                    push("running");
+                }
+            }
+        }
+
+        private Document getProgress() {
+            long bytes = doneBytes.get();
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            Document progress = new Document("taskId", id);
+            progress.put("name", name);
+            progress.put("totalFiles", tasks.size());
+            progress.put("doneFiles", doneFiles.get());
+            progress.put("totalBytes", totalBytes);
+            progress.put("doneBytes", bytes);
+            progress.put("percent", totalBytes <= 0 ? 0 : (int) Math.min(99, bytes * 100 / totalBytes));
+            // 字节/秒
+            progress.put("speed", bytes * 1000 / elapsed);
+            return progress;
+        }
+
+        private void push(String status) {
+            Document message = getProgress();
+            if (!"running".equals(status)) {
+                message.put("percent", 100);
+            }
+            message.put("status", status);
+            if (error != null) {
+                message.put("msg", error);
+            }
+            commonFileService.pushMessage(username, message, TRANSFER);
+        }
+    }
+
+    private static class TransferInputStream extends FilterInputStream {
+
+        private final TransferJob job;
+
+        TransferInputStream(InputStream in, TransferJob job) {
+            super(in);
+            this.job = job;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            int b = super.read();
+            if (b != -1) {
+                job.addBytes(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                job.addBytes(n);
+            }
+            return n;
+        }
+
+        private void checkCancelled() throws IOException {
+            if (job.isStopped()) {
+                throw new IOException("传输已取消");
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.oss.*;
+import com.jmal.clouddisk.oss.web.OssTransferService.TransferJob;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.impl.CommonFileService;
 import com.jmal.clouddisk.util.CaffeineUtil;
@@ -14,10 +15,10 @@ import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.file.SimplePathVisitor;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileVisitResult;
@@ -25,11 +26,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Service
 @Slf4j
 public class WebOssCopyFileService extends WebOssCommonService {
 
+    private static final String TRANSFER_CANCELLED = "已取消, 已传输的文件会保留";
+
+    @Autowired
+    OssTransferService ossTransferService;
+
     /**
      * 从 oss 复制 到 oss
      *
@@ -66,107 +73,113 @@ public class WebOssCopyFileService extends WebOssCommonService {
             return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
         }
 
-        if (ossServiceFrom.getPlatform() == ossServiceTo.getPlatform()) {
-            // 同平台间复制
-            List<String> copiedList = ossServiceFrom.copyObject(bucketInfoFrom.getBucketName(), objectNameFrom, bucketInfoTo.getBucketName(), objectNameTo);
-            for (String objectName : copiedList) {
-                afterUploadComplete(objectName, ossPathTo, null);
-            }
-            if (copiedList.isEmpty()) {
-                throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制失败");
-            }
-        } else {
+        // 同一个服务端的同一个账号先尝试服务端复制, 不同的endpoint或账号只能流式复制
+        AtomicBoolean serverSideCopy = new AtomicBoolean(bucketInfoFrom.isSameAccount(bucketInfoTo));
+        TransferJob job = ossTransferService.newJob(getUsernameByOssPath(ossPathTo), Paths.get(objectNameTo).getFileName().toString());
+        boolean completed;
+        // 锁对象
+        ossServiceFrom.lock(objectNameFrom);
+        try {
             if (isFolder) {
                 // 复制文件夹
-                copyDir(ossServiceFrom, ossServiceTo, objectNameFrom, objectNameTo, ossPathTo);
+                addCopyDir(job, serverSideCopy, ossServiceFrom, bucketInfoFrom.getBucketName(), ossServiceTo, bucketInfoTo.getBucketName(), objectNameFrom, objectNameTo, ossPathTo);
             } else {
                 // 复制文件
-                copyFile(ossServiceFrom, ossServiceTo, objectNameFrom, objectNameTo, ossPathTo);
+                FileInfo fileInfo = ossServiceFrom.getFileInfo(objectNameFrom);
+                long size = fileInfo == null ? 0 : fileInfo.getSize();
+                String destObjectName = objectNameTo;
+                job.add(objectNameFrom, size, () -> copyObject(job, serverSideCopy, ossServiceFrom, bucketInfoFrom.getBucketName(), ossServiceTo, bucketInfoTo.getBucketName(), objectNameFrom, destObjectName, size, ossPathTo));
             }
+            completed = ossTransferService.run(job);
+        } finally {
+            // 解锁对象
+            ossServiceFrom.unlock(objectNameFrom);
+        }
+        ossServiceTo.clearCache(objectNameTo);
+        notifyCreateFile(getUsernameByOssPath(ossPathTo), objectNameTo, getOssRootFolderName(ossPathTo));
+        if (!completed) {
+            return ResultUtil.warning(TRANSFER_CANCELLED);
         }
-        String finalObjectNameTo = objectNameTo;
         // 复制成功
-        ossServiceTo.clearCache(finalObjectNameTo);
-        notifyCreateFile(getUsernameByOssPath(ossPathTo), finalObjectNameTo, getOssRootFolderName(ossPathTo));
         String operation = isMove ? "移动" : "复制";
         Path fromPath = Paths.get(getOssRootFolderName(ossPathFrom), objectNameFrom);
-        Path toPath = Paths.get(getOssRootFolderName(ossPathTo), finalObjectNameTo);
+        Path toPath = Paths.get(getOssRootFolderName(ossPathTo), objectNameTo);
         commonFileService.pushMessageOperationFileSuccess(fromPath.toString(), toPath.toString(), getUsernameByOssPath(ossPathFrom), operation);
         return ResultUtil.success();
     }
 
     /**
-     * 不同oss平台间的文件夹复制
-     * 复制完成需要解锁 源objectName
+     * oss间的文件夹复制, 先创建文件夹, 再把文件加入传输任务
      *
+     * @param job            传输任务
+     * @param serverSideCopy 是否使用服务端复制
      * @param ossServiceFrom 源ossService
+     * @param bucketFrom     源Bucket
      * @param ossServiceTo   目标ossService
+     * @param bucketTo       目标Bucket
      * @param objectNameFrom 源objectName
      * @param objectNameTo   目标objectName
      * @param ossPathTo      目标ossPath
      */
-    private void copyDir(IOssService ossServiceFrom, IOssService ossServiceTo, String objectNameFrom, String objectNameTo, String ossPathTo) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try {
-            // 首先在目标oss创建文件夹
-            if (ossServiceTo.mkdir(objectNameTo)) {
-                // 列出源objectName下的所有文件/文件夹
-                List<FileInfo> fileInfoList = ossServiceFrom.getAllObjectsWithPrefix(objectNameFrom);
-                // 先创建文件夹
-                fileInfoList.stream().filter(FileInfo::isFolder).parallel().forEach(fileInfo -> {
-                    String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                    // 目标objectName
-                    String destObjectName = objectNameTo + relativePath;
+    private void addCopyDir(TransferJob job, AtomicBoolean serverSideCopy, IOssService ossServiceFrom, String bucketFrom, IOssService ossServiceTo, String bucketTo, String objectNameFrom, String objectNameTo, String ossPathTo) {
+        // 首先在目标oss创建文件夹
+        if (!ossServiceTo.mkdir(objectNameTo)) {
+            return;
+        }
+        // 列出源objectName下的所有文件/文件夹
+        List<FileInfo> fileInfoList = ossServiceFrom.getAllObjectsWithPrefix(objectNameFrom);
+        for (FileInfo fileInfo : fileInfoList) {
+            String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
+            // 目标objectName
+            String destObjectName = objectNameTo + relativePath;
+            if (fileInfo.isFolder()) {
+                if (!relativePath.isEmpty()) {
                     ossServiceTo.mkdir(destObjectName);
                     afterUploadComplete(destObjectName, ossPathTo, null);
-                });
-                // 再复制文件
-                fileInfoList.stream().filter(fileInfo -> !fileInfo.isFolder()).parallel().forEach(fileInfo -> {
-                    String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                    // 目标objectName
-                    String destObjectName = objectNameTo + relativePath;
-                    try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(fileInfo.getKey());
-                         InputStream inputStream = abstractOssObject.getInputStream()) {
-                        // 上传文件
-                        ossServiceTo.uploadFile(inputStream, destObjectName, abstractOssObject.getContentLength());
-                        afterUploadComplete(destObjectName, ossPathTo, null);
-                    } catch (Exception e) {
-                        throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-                    }
-                });
+                }
+                continue;
             }
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
+            job.add(fileInfo.getKey(), fileInfo.getSize(), () -> copyObject(job, serverSideCopy, ossServiceFrom, bucketFrom, ossServiceTo, bucketTo, fileInfo.getKey(), destObjectName, fileInfo.getSize(), ossPathTo));
         }
     }
 
     /**
-     * 不同oss平台间的文件复制
-     * 复制完成需要解锁 源objectName
+     * oss间的文件复制
+     * 同平台时使用服务端复制(大文件由各平台分片复制), 服务端复制失败后(例如不同账号)改为经过本机复制
      *
+     * @param job            传输任务
+     * @param serverSideCopy 是否使用服务端复制
      * @param ossServiceFrom 源ossService
+     * @param bucketFrom     源Bucket
      * @param ossServiceTo   目标ossService
+     * @param bucketTo       目标Bucket
      * @param objectNameFrom 源objectName
      * @param objectNameTo   目标objectName
+     * @param size           文件大小
      * @param ossPathTo      目标ossPath
      */
-    private void copyFile(IOssService ossServiceFrom, IOssService ossServiceTo, String objectNameFrom, String objectNameTo, String ossPathTo) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(objectNameFrom);
-             InputStream inputStream = abstractOssObject.getInputStream()) {
-            // 上传文件
-            ossServiceTo.uploadFile(inputStream, objectNameTo, abstractOssObject.getContentLength());
+    private void copyObject(TransferJob job, AtomicBoolean serverSideCopy, IOssService ossServiceFrom, String bucketFrom, IOssService ossServiceTo, String bucketTo, String objectNameFrom, String objectNameTo, long size, String ossPathTo) throws IOException {
+        if (serverSideCopy.get()) {
+            if (!ossServiceFrom.copyObject(bucketFrom, objectNameFrom, bucketTo, objectNameTo).isEmpty()) {
+                job.addBytes(size);
+                afterUploadComplete(objectNameTo, ossPathTo, null);
+                return;
+            }
+            if (serverSideCopy.compareAndSet(true, false)) {
+                log.warn("服务端复制失败, 改为经过本机复制: {} -> {}", objectNameFrom, objectNameTo);
+            }
+        }
+        try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(objectNameFrom)) {
+            if (abstractOssObject == null) {
+                throw new CommonException(ExceptionType.FILE_NOT_FIND);
+            }
+            try (InputStream inputStream = job.wrap(abstractOssObject.getInputStream())) {
+                // 上传文件
+                ossServiceTo.uploadFile(inputStream, objectNameTo, abstractOssObject.getContentLength());
+            }
+        }
+        if (!job.isStopped()) {
             afterUploadComplete(objectNameTo, ossPathTo, null);
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
         }
     }
 
@@ -196,17 +209,34 @@ public class WebOssCopyFileService extends WebOssCommonService {
             }
         }
         destFileDocument.setUsername(getUsernameByOssPath(ossPathFrom));
-        if (isFolder) {
-            // 复制文件夹
-            copyDir(ossServiceFrom, objectNameFrom, destFileDocument);
-        } else {
-            // 复制文件
-            copyFile(ossServiceFrom, objectNameFrom, destFileDocument);
+        TransferJob job = ossTransferService.newJob(destFileDocument.getUsername(), Paths.get(objectNameFrom).getFileName().toString());
+        boolean completed;
+        // 锁对象
+        ossServiceFrom.lock(objectNameFrom);
+        try {
+            Path destPath = Paths.get(fileProperties.getRootDir(), destFileDocument.getUsername(), destFileDocument.getPath(), destFileDocument.getName());
+            if (isFolder) {
+                // 复制文件夹
+                addCopyDir(job, ossServiceFrom, objectNameFrom, destPath, destFileDocument.getUsername());
+            } else {
+                // 复制文件
+                PathUtil.mkdir(destPath);
+                FileInfo fileInfo = ossServiceFrom.getFileInfo(objectNameFrom);
+                File destFile = destPath.resolve(Paths.get(objectNameFrom).getFileName().toString()).toFile();
+                job.add(objectNameFrom, fileInfo == null ? 0 : fileInfo.getSize(), () -> downloadObject(job, ossServiceFrom, objectNameFrom, destFile, destFileDocument.getUsername()));
+            }
+            completed = ossTransferService.run(job);
+        } finally {
+            // 解锁对象
+            ossServiceFrom.unlock(objectNameFrom);
+        }
+        commonFileService.pushMessage(destFileDocument.getUsername(), destFileDocument, "createFile");
+        if (!completed) {
+            return ResultUtil.warning(TRANSFER_CANCELLED);
         }
         String operation = isMove ? "移动" : "复制";
         // 复制成功
         log.info(operation + "成功, from: {}, to: {}", objectNameFrom, destFileDocument.getName());
-        commonFileService.pushMessage(destFileDocument.getUsername(), destFileDocument, "createFile");
         Path fromPath = Paths.get(getOssRootFolderName(ossPathFrom), objectNameFrom);
         Path toPath = Paths.get(destFileDocument.getPath(), destFileDocument.getName(), Paths.get(objectNameFrom).getFileName().toString());
         commonFileService.pushMessageOperationFileSuccess(fromPath.toString(), toPath.toString(), destFileDocument.getUsername(), operation);
@@ -214,77 +244,59 @@ public class WebOssCopyFileService extends WebOssCommonService {
     }
 
     /**
-     * 从oss复制文件夹到本地
+     * 从oss复制文件夹到本地, 先创建文件夹, 再把文件加入传输任务
      *
-     * @param ossServiceFrom   源ossService
-     * @param objectNameFrom   源objectName
-     * @param destFileDocument 目标fileDocument
+     * @param job            传输任务
+     * @param ossServiceFrom 源ossService
+     * @param objectNameFrom 源objectName
+     * @param destDir        目标目录
+     * @param username       用户名
      */
-    private void copyDir(IOssService ossServiceFrom, String objectNameFrom, FileDocument destFileDocument) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try {
-            String destDir = Paths.get(fileProperties.getRootDir(), destFileDocument.getUsername(), destFileDocument.getPath(), destFileDocument.getName()).toString();
-            String destDirPath = Paths.get(destDir, Paths.get(objectNameFrom).getFileName().toString()).toString();
-            // 首先创建文件夹
-            FileUtil.mkdir(destDirPath);
-            // 列出源objectName下的所有文件/文件夹
-            List<FileInfo> fileInfoList = ossServiceFrom.getAllObjectsWithPrefix(objectNameFrom);
-            // 先创建文件夹
-            fileInfoList.stream().filter(FileInfo::isFolder).parallel().forEach(fileInfo -> {
-                String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                // 目标目录
-                Path destPath = Paths.get(destDirPath, relativePath);
+    private void addCopyDir(TransferJob job, IOssService ossServiceFrom, String objectNameFrom, Path destDir, String username) {
+        Path destDirPath = destDir.resolve(Paths.get(objectNameFrom).getFileName().toString());
+        // 首先创建文件夹
+        PathUtil.mkdir(destDirPath);
+        // 列出源objectName下的所有文件/文件夹
+        List<FileInfo> fileInfoList = ossServiceFrom.getAllObjectsWithPrefix(objectNameFrom);
+        for (FileInfo fileInfo : fileInfoList) {
+            String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
+            // 目标文件/目录
+            Path destPath = Paths.get(destDirPath.toString(), relativePath);
+            if (fileInfo.isFolder()) {
                 PathUtil.mkdir(destPath);
-                commonFileService.createFile(destFileDocument.getUsername(), destPath.toFile(), null, null);
-            });
-            // 再复制文件
-            fileInfoList.stream().filter(fileInfo -> !fileInfo.isFolder()).parallel().forEach(fileInfo -> {
-                String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                // 目标objectName
-                try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(fileInfo.getKey());
-                     InputStream inputStream = abstractOssObject.getInputStream()) {
-                    // 目标文件
-                    File destFile = Paths.get(destDirPath, relativePath).toFile();
-                    FileUtil.writeFromStream(inputStream, destFile);
-                    commonFileService.createFile(destFileDocument.getUsername(), destFile, null, null);
-                } catch (Exception e) {
-                    throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-                }
-            });
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
+                commonFileService.createFile(username, destPath.toFile(), null, null);
+                continue;
+            }
+            job.add(fileInfo.getKey(), fileInfo.getSize(), () -> downloadObject(job, ossServiceFrom, fileInfo.getKey(), destPath.toFile(), username));
         }
     }
 
     /**
-     * 从oss复制文件到本地
+     * 从oss复制文件到本地, 取消或失败时删除写了一半的文件
      *
-     * @param ossServiceFrom   源ossService
-     * @param objectNameFrom   源objectName
-     * @param destFileDocument 目标fileDocument
+     * @param job            传输任务
+     * @param ossServiceFrom 源ossService
+     * @param objectNameFrom 源objectName
+     * @param destFile       目标文件
+     * @param username       用户名
      */
-    private void copyFile(IOssService ossServiceFrom, String objectNameFrom, FileDocument destFileDocument) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(objectNameFrom);
-             InputStream inputStream = abstractOssObject.getInputStream()) {
-            // 上传文件
-            Path destPath = Paths.get(fileProperties.getRootDir(), destFileDocument.getUsername(), destFileDocument.getPath(), destFileDocument.getName());
-            PathUtil.mkdir(destPath);
-            // 目标文件
-            File destFile = Paths.get(destPath.toString(), Paths.get(objectNameFrom).getFileName().toString()).toFile();
-            FileUtil.writeFromStream(inputStream, destFile);
-            commonFileService.createFile(destFileDocument.getUsername(), destFile, null, null);
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
+    private void downloadObject(TransferJob job, IOssService ossServiceFrom, String objectNameFrom, File destFile, String username) throws IOException {
+        try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(objectNameFrom)) {
+            if (abstractOssObject == null) {
+                throw new CommonException(ExceptionType.FILE_NOT_FIND);
+            }
+            try (InputStream inputStream = job.wrap(abstractOssObject.getInputStream())) {
+                FileUtil.writeFromStream(inputStream, destFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            FileUtil.del(destFile);
+            throw e;
+        }
+        if (job.isStopped()) {
+            FileUtil.del(destFile);
+            return;
         }
+        commonFileService.createFile(username, destFile, null, null);
     }
 
     /**
@@ -309,89 +321,84 @@ public class WebOssCopyFileService extends WebOssCommonService {
         if (ossServiceTo.doesObjectExist(objectNameTo)) {
             return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
         }
-        if (isFolder) {
-            // 复制文件夹
-            copyDir(fromFileDocument, ossServiceTo, objectNameTo, ossPathTo);
-        } else {
-            // 复制文件
-            copyFile(fromFileDocument, ossServiceTo, objectNameTo, ossPathTo);
+        TransferJob job = ossTransferService.newJob(fromFileDocument.getUsername(), fromFileDocument.getName());
+        Path fromPath = Paths.get(fileProperties.getRootDir(), fromFileDocument.getUsername(), fromFileDocument.getPath(), fromFileDocument.getName());
+        boolean completed;
+        // 锁文件
+        CommonFileService.lockFile(fromFileDocument);
+        try {
+            if (isFolder) {
+                // 复制文件夹
+                addCopyDir(job, fromPath, ossServiceTo, objectNameTo, ossPathTo);
+            } else {
+                // 复制文件
+                job.add(fromPath.toString(), fromPath.toFile().length(), () -> uploadLocalFile(job, fromPath, ossServiceTo, objectNameTo, ossPathTo));
+            }
+            completed = ossTransferService.run(job);
+        } finally {
+            // 解锁文件
+            CommonFileService.unLockFile(fromFileDocument);
         }
         notifyCreateFile(fromFileDocument.getUsername(), objectNameTo, getOssRootFolderName(ossPathTo));
-        Path fromPath = Paths.get(fromFileDocument.getPath(), fromFileDocument.getName());
+        if (!completed) {
+            return ResultUtil.warning(TRANSFER_CANCELLED);
+        }
         Path toPath = Paths.get(getOssRootFolderName(ossPathTo), objectNameTo);
-        commonFileService.pushMessageOperationFileSuccess(fromPath.toString(), toPath.toString(), fromFileDocument.getUsername(), isMove ? "移动" : "复制");
+        commonFileService.pushMessageOperationFileSuccess(Paths.get(fromFileDocument.getPath(), fromFileDocument.getName()).toString(), toPath.toString(), fromFileDocument.getUsername(), isMove ? "移动" : "复制");
         return ResultUtil.success();
     }
 
     /**
-     * 从本地复制文件夹到oss
+     * 从本地复制文件夹到oss, 先创建文件夹, 再把文件加入传输任务
      *
-     * @param fromFileDocument 源FileDocument
-     * @param ossServiceTo     目标ossService
-     * @param objectNameTo     目标objectName
-     * @param ossPathTo        目标ossPath
+     * @param job          传输任务
+     * @param fromPath     源目录
+     * @param ossServiceTo 目标ossService
+     * @param objectNameTo 目标objectName
+     * @param ossPathTo    目标ossPath
      */
-    private void copyDir(FileDocument fromFileDocument, IOssService ossServiceTo, String objectNameTo, String ossPathTo) {
-        // 锁文件
-        CommonFileService.lockFile(fromFileDocument);
-        Path fromPath = Paths.get(fileProperties.getRootDir(), fromFileDocument.getUsername(), fromFileDocument.getPath(), fromFileDocument.getName());
-        try {
-            // 首先在目标oss创建文件夹
-            if (ossServiceTo.mkdir(objectNameTo)) {
-                // 遍历fromPath下的所有目录和文件上传至目标oss
-                PathUtil.walkFiles(fromPath, new SimplePathVisitor() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        if (!dir.equals(fromPath)) {
-                            String objectName = objectNameTo + dir.toString().substring(fromPath.toString().length());
-                            ossServiceTo.mkdir(objectName);
-                            afterUploadComplete(objectName, ossPathTo, null);
-                        }
-                        return super.preVisitDirectory(dir, attrs);
-                    }
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        String objectName = objectNameTo + file.toString().substring(fromPath.toString().length());
-                        File fromFile = file.toFile();
-                        try (InputStream inputStream = new FileInputStream(fromFile)) {
-                            ossServiceTo.uploadFile(inputStream, objectName, fromFile.length());
-                            afterUploadComplete(objectName, ossPathTo, null);
-                        } catch (Exception e) {
-                            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-                        }
-                        return super.visitFile(file, attrs);
-                    }
-                });
-            }
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁文件
-            CommonFileService.unLockFile(fromFileDocument);
+    private void addCopyDir(TransferJob job, Path fromPath, IOssService ossServiceTo, String objectNameTo, String ossPathTo) {
+        // 首先在目标oss创建文件夹
+        if (!ossServiceTo.mkdir(objectNameTo)) {
+            return;
         }
+        // 遍历fromPath下的所有目录和文件
+        PathUtil.walkFiles(fromPath, new SimplePathVisitor() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(fromPath)) {
+                    String objectName = objectNameTo + dir.toString().substring(fromPath.toString().length());
+                    ossServiceTo.mkdir(objectName);
+                    afterUploadComplete(objectName, ossPathTo, null);
+                }
+                return super.preVisitDirectory(dir, attrs);
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String objectName = objectNameTo + file.toString().substring(fromPath.toString().length());
+                job.add(file.toString(), attrs.size(), () -> uploadLocalFile(job, file, ossServiceTo, objectName, ossPathTo));
+                return super.visitFile(file, attrs);
+            }
+        });
     }
 
     /**
-     * 从本地复制文件到oss
+     * 从本地复制文件到oss, 大文件并行分片上传
      *
-     * @param fromFileDocument 源FileDocument
-     * @param ossServiceTo     目标ossService
-     * @param objectNameTo     目标objectName
-     * @param ossPathTo        目标ossPath
+     * @param job          传输任务
+     * @param file         源文件
+     * @param ossServiceTo 目标ossService
+     * @param objectNameTo 目标objectName
+     * @param ossPathTo    目标ossPath
      */
-    private void copyFile(FileDocument fromFileDocument, IOssService ossServiceTo, String objectNameTo, String ossPathTo) {
-        // 锁文件
-        CommonFileService.lockFile(fromFileDocument);
-        // 上传文件
-        File fromFile = Paths.get(fileProperties.getRootDir(), fromFileDocument.getUsername(), fromFileDocument.getPath(), fromFileDocument.getName()).toFile();
-        try (InputStream intStream = new FileInputStream(fromFile)) {
-            ossServiceTo.uploadFile(intStream, objectNameTo, fromFile.length());
-            afterUploadComplete(objectNameTo, ossPathTo, null);
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁文件
-            CommonFileService.unLockFile(fromFileDocument);
+    private void uploadLocalFile(TransferJob job, Path file, IOssService ossServiceTo, String objectNameTo, String ossPathTo) {
+        boolean success = ossServiceTo.uploadFile(file, objectNameTo, job);
+        if (job.isStopped()) {
+            return;
+        }
+        if (!success) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "上传失败: " + objectNameTo);
         }
+        afterUploadComplete(objectNameTo, ossPathTo, null);
     }
 }
@@ -90,14 +90,6 @@ public class WebOssService extends WebOssCommonService {
         return URLUtil.decode(name);
     }
 
-    public ResponseResult<Object> searchFileAndOpenOssFolder(Path prePth, UploadApiParamDTO upload) {
-        String ossPath = CaffeineUtil.getOssPath(prePth);
-        if (ossPath == null) {
-            return ResultUtil.success().setData(new ArrayList<>(0)).setCode(0);
-        }
-        return getOssFileList(ossPath, prePth, upload);
-    }
-
     public ResponseResult<Object> getOssFileList(String ossPath, Path prePth, UploadApiParamDTO upload) {
         ResponseResult<Object> result = ResultUtil.genResult();
         result.setData(Collections.emptyList());
@@ -673,16 +665,17 @@ public class WebOssService extends WebOssCommonService {
     public void download(String ossPath, Path prePth, HttpServletRequest request, HttpServletResponse response) {
         IOssService ossService = OssConfigService.getOssStorageService(ossPath);
         String objectName = getObjectName(prePth, ossPath, false);
-        try (AbstractOssObject abstractOssObject = ossService.getAbstractOssObject(objectName);
-             InputStream inputStream = abstractOssObject.getInputStream();
-             InputStream inStream = new BufferedInputStream(inputStream, 2048);
-             OutputStream outputStream = response.getOutputStream()) {
-            FileInfo fileInfo = ossService.getFileInfo(objectName);
+        FileInfo fileInfo = ossService.getFileInfo(objectName);
+        if (fileInfo == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try (OutputStream outputStream = response.getOutputStream()) {
             String encodedFilename = URLEncoder.encode(fileInfo.getName(), StandardCharsets.UTF_8);
             String suffix = FileUtil.getSuffix(encodedFilename);
             // 设置响应头
             response.setContentType(FileContentTypeUtils.getContentType(suffix));
-            long fileSize = abstractOssObject.getContentLength();
+            long fileSize = fileInfo.getSize();
             String range = request.getHeader(HttpHeaders.RANGE);
             if (CharSequenceUtil.isNotBlank(range)) {
                 // 处理 Range 请求
@@ -690,7 +683,12 @@ public class WebOssService extends WebOssCommonService {
             } else {
                 response.setStatus(HttpServletResponse.SC_OK);
                 response.setContentLengthLong(fileSize);
-                IoUtil.copy(inStream, outputStream);
+                // 经过本地块缓存读取
+                try (InputStream inputStream = ossService.getInputStream(objectName, null, null)) {
+                    if (inputStream != null) {
+                        IoUtil.copy(inputStream, outputStream);
+                    }
+                }
             }
         } catch (ClientAbortException ignored) {
             // ignored error
@@ -714,8 +712,11 @@ public class WebOssService extends WebOssCommonService {
         long[] ranges = parseRange(range, fileSize);
         long start = ranges[0];
         long end = ranges[1] == -1 ? fileSize - 1 : ranges[1];
-        try (AbstractOssObject rangeObject = ossService.getAbstractOssObject(objectName, start, end);
-             InputStream rangeIn = rangeObject.getInputStream()) {
+        try (InputStream rangeIn = ossService.getInputStream(objectName, start, end)) {
+            if (rangeIn == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
             response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "inline;filename=" + encodedFilename);
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
             String contentRange = "bytes " + start + "-" + end + "/" + fileSize;
@@ -8,6 +8,7 @@ public class Constants {
     public static final String DRAFT = "draft";
     public static final String IS_FOLDER = "isFolder";
     public static final String IS_FAVORITE = "isFavorite";
+    public static final String DERIVE_PENDING = "derivePending";
     public static final String TOTAL_SIZE = "totalSize"; //totalSize
 
     private Constants() { }
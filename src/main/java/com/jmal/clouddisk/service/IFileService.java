@@ -177,6 +177,16 @@ public interface IFileService {
      */
     Optional<FileDocument> thumbnail(String id);
 
+    /**
+     * 显示缩略图(缩略图目录中的文件, 不支持时和 thumbnail(id) 一样)
+     * @param id fileId
+     * @param size 缩略图尺寸
+     * @param request HttpServletRequest
+     * @param response HttpServletResponse
+     * @return 已直接输出缩略图时返回null
+     */
+    ResponseEntity<Object> thumbnail(String id, Integer size, HttpServletRequest request, HttpServletResponse response);
+
     /**
      * 显示缩略图(媒体文件封面)
      * @param id fileId
@@ -276,6 +286,13 @@ public interface IFileService {
      */
     ResponseResult<Object> unzip(String fileId, String destFileId);
 
+    /**
+     * 取消解压
+     * @param taskId 解压任务id
+     * @return ResponseResult<Object>
+     */
+    ResponseResult<Object> cancelUnzip(String taskId);
+
     /**
      * 获取目录下的文件
      * @param path 文件目录路径
@@ -11,6 +11,7 @@ import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBo
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -92,6 +93,12 @@ public interface IFileVersionService {
      */
     void deleteOne(String id);
 
+    /**
+     * 当前用户历史版本的去重统计
+     * @return 版本数、原始大小、实际存储大小和去重比
+     */
+    Map<String, Object> getStats();
+
     /**
      * 重命名后的需要修改历史文件中 filename
      * @param sourceFileId 修改前的filename
@@ -1,7 +1,9 @@
 package com.jmal.clouddisk.service;
 
 import com.jmal.clouddisk.service.impl.CommonFileService;
+import com.jmal.clouddisk.service.impl.LogService;
 import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.IndexModel;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
@@ -22,6 +24,15 @@ public class MongodbIndex {
 
     private final MongoTemplate mongoTemplate;
 
+    /***
+     * 以前创建的、现在不需要的日志索引, 只删除这些, 不动其他索引(例如手动创建的)
+     */
+    private static final List<String> OBSOLETE_LOG_INDEXES = List.of(
+            "time_1", IUserService.USERNAME + "_1", "showName_1", "ip_1", "cityIp_1", "url_1", "status_1",
+            "operationModule_1", "operationFun_1", "deviceModel_1", "operatingSystem_1", "type_1",
+            "type_1_" + Constants.CREATE_TIME + "_1_" + IUserService.USERNAME + "_1",
+            "type_1_" + IUserService.USERNAME + "_1");
+
     public MongodbIndex(MongoTemplate mongoTemplate) {
         this.mongoTemplate = mongoTemplate;
     }
@@ -35,56 +46,39 @@ public class MongodbIndex {
 
     }
 
+    /***
+     * 日志只保留查询用到的索引, 每多一个索引写入日志就多一次索引更新
+     */
     private void logIndex() {
         List<IndexModel> indexLogList = new ArrayList<>();
 
         indexLogList.add(new IndexModel(new Document(Constants.CREATE_TIME, 1)));
 
-        indexLogList.add(new IndexModel(new Document("time", 1)));
-
-        indexLogList.add(new IndexModel(new Document(IUserService.USERNAME, 1)));
-
-        indexLogList.add(new IndexModel(new Document("showName", 1)));
-
-        indexLogList.add(new IndexModel(new Document("ip", 1)));
-
-        indexLogList.add(new IndexModel(new Document("cityIp", 1)));
-
-        indexLogList.add(new IndexModel(new Document("url", 1)));
-
-        indexLogList.add(new IndexModel(new Document("status", 1)));
-
-        indexLogList.add(new IndexModel(new Document("operationModule", 1)));
-
-        indexLogList.add(new IndexModel(new Document("operationFun", 1)));
-
-        indexLogList.add(new IndexModel(new Document("deviceModel", 1)));
+        Document indexUsernameCreateTime = new Document(IUserService.USERNAME, 1);
+        indexUsernameCreateTime.put(Constants.CREATE_TIME, 1);
+        indexLogList.add(new IndexModel(indexUsernameCreateTime));
 
-        indexLogList.add(new IndexModel(new Document("operatingSystem", 1)));
-
-        indexLogList.add(new IndexModel(new Document("type", 1)));
+        Document indexIpCreateTime = new Document("ip", 1);
+        indexIpCreateTime.put(Constants.CREATE_TIME, 1);
+        indexLogList.add(new IndexModel(indexIpCreateTime));
 
         Document indexTypeCreateTime = new Document("type", 1);
         indexTypeCreateTime.put(Constants.CREATE_TIME, 1);
         indexLogList.add(new IndexModel(indexTypeCreateTime));
 
         Document indexTypeUsernameCreateTime = new Document("type", 1);
-        indexTypeUsernameCreateTime.put(Constants.CREATE_TIME, 1);
         indexTypeUsernameCreateTime.put(IUserService.USERNAME, 1);
+        indexTypeUsernameCreateTime.put(Constants.CREATE_TIME, 1);
         indexLogList.add(new IndexModel(indexTypeUsernameCreateTime));
 
-        Document indexTypeUsername = new Document("type", 1);
-        indexTypeUsername.put(IUserService.USERNAME, 1);
-        indexLogList.add(new IndexModel(indexTypeUsername));
-
-        long indexCount = 0;
-        for (var ignored : mongoTemplate.getCollection("log").listIndexes()) {
-            indexCount++;
-        }
-
-        if (indexCount < 2) {
-            mongoTemplate.getCollection("log").createIndexes(indexLogList);
+        MongoCollection<Document> collection = mongoTemplate.getCollection(LogService.COLLECTION_NAME);
+        for (Document index : collection.listIndexes().into(new ArrayList<>())) {
+            String name = index.getString("name");
+            if (OBSOLETE_LOG_INDEXES.contains(name)) {
+                collection.dropIndex(name);
+            }
         }
+        collection.createIndexes(indexLogList);
 
     }
 
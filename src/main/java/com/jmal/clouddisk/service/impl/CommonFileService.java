@@ -1,14 +1,17 @@
 package com.jmal.clouddisk.service.impl;
 
+import cn.hutool.core.collection.ListUtil;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.date.TimeInterval;
 import cn.hutool.core.io.CharsetDetector;
 import cn.hutool.core.io.FileUtil;
-import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.ReUtil;
 import com.alibaba.fastjson2.JSONObject;
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
@@ -22,17 +25,19 @@ import com.jmal.clouddisk.util.*;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import com.jmal.clouddisk.websocket.SocketManager;
 import com.luciad.imageio.webp.WebPWriteParam;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.result.UpdateResult;
 import lombok.extern.slf4j.Slf4j;
-import net.coobird.thumbnailator.Thumbnails;
-import net.coobird.thumbnailator.tasks.UnsupportedFormatException;
 import org.bson.BsonNull;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -52,7 +57,6 @@ import javax.imageio.ImageWriter;
 import javax.imageio.stream.FileImageOutputStream;
 import javax.validation.constraints.NotNull;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -68,11 +72,14 @@ import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.mongodb.client.model.Accumulators.sum;
 import static com.mongodb.client.model.Aggregates.group;
 import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
 
 /**
  * @author jmal
@@ -91,6 +98,16 @@ public class CommonFileService {
 
     public static final String COLLECTION_NAME = "fileDocument";
 
+    /***
+     * 用户已使用的空间(计数器)
+     */
+    public static final String TAKE_UP_SPACE = "takeUpSpace";
+
+    /***
+     * 校准用户已使用的空间时, 计数器被并发修改后最多重新统计的次数
+     */
+    private static final int RESET_SPACE_ATTEMPTS = 3;
+
     @Autowired
     MongoTemplate mongoTemplate;
 
@@ -103,6 +120,18 @@ public class CommonFileService {
     @Autowired
     private VideoProcessService videoProcessService;
 
+    @Autowired
+    private MediaDerivationService mediaDerivationService;
+
+    @Autowired
+    ThumbnailService thumbnailService;
+
+    @Autowired
+    ImageProcessService imageProcessService;
+
+    @Autowired
+    LuceneService luceneService;
+
     /***
      * 上传文件夹的写入锁缓存
      */
@@ -110,6 +139,16 @@ public class CommonFileService {
 
     protected static final Set<String> FILE_PATH_LOCK = new CopyOnWriteArraySet<>();
 
+    /***
+     * 用户已使用空间的锁, key: userId
+     * 写入文件记录并累加空间时持有读锁, 重新统计空间时持有写锁, 统计结果已经包含的文件不会再被累加一次
+     */
+    private final Cache<String, ReentrantReadWriteLock> spaceLockCache = Caffeine.newBuilder().weakValues().build();
+
+    private ReentrantReadWriteLock getSpaceLock(String userId) {
+        return spaceLockCache.get(userId, key -> new ReentrantReadWriteLock());
+    }
+
     public ResponseEntity<Object> getObjectResponseEntity(Optional<FileDocument> file) {
         return file.<ResponseEntity<Object>>map(fileDocument ->
                 ResponseEntity.ok()
@@ -274,16 +313,6 @@ public class CommonFileService {
             }
         }
         String fileName = file.getName();
-        String suffix = FileUtil.extName(fileName);
-        String contentType = FileContentTypeUtils.getContentType(suffix);
-        if (contentType.startsWith(Constants.CONTENT_TYPE_IMAGE)) {
-            // 换成webp格式的图片
-            file = replaceWebp(userId, file);
-        }
-        fileName = file.getName();
-        suffix = FileUtil.extName(fileName);
-        contentType = FileContentTypeUtils.getContentType(suffix);
-
         String fileAbsolutePath = file.getAbsolutePath();
         Lock lock = null;
         if (file.isDirectory()) {
@@ -303,28 +332,31 @@ public class CommonFileService {
             Query query = new Query();
             FileDocument fileExists = getFileDocument(userId, fileName, relativePath, query);
             if (fileExists != null) {
+                if (file.isFile() && fileExists.getSize() != file.length()) {
+                    // 覆盖已存在的文件
+                    modifyFile(username, file);
+                }
                 return fileExists.getId();
             }
-            Update update = new Update();
-            // 设置创建时间和修改时间
-            setDateTime(file, update);
-            update.set(IUserService.USER_ID, userId);
-            update.set("name", fileName);
-            update.set("path", relativePath);
-            update.set(Constants.IS_FOLDER, file.isDirectory());
-            update.set(Constants.IS_FAVORITE, false);
-            if (isPublic != null) {
-                update.set("isPublic", true);
-            }
-            if (file.isFile()) {
-                setFileConfig(username, file, fileName, suffix, contentType, relativePath, update);
-            } else {
-                // 检查目录是否为OSS目录
-                checkOSSPath(username, relativePath, fileName, update);
+            Update update = getCreateUpdate(username, file, userId, relativePath, isPublic);
+            Lock spaceLock = getSpaceLock(userId).readLock();
+            spaceLock.lock();
+            try {
+                updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
+                if (file.isFile() && null != updateResult.getUpsertedId()) {
+                    // 累加上级目录的大小和用户已使用的空间
+                    updateSize(userId, relativePath, file.length());
+                }
+            } finally {
+                spaceLock.unlock();
+            }
+            if (file.isFile() && null != updateResult.getUpsertedId()) {
+                // 异步生成缩略图、封面等
+                mediaDerivationService.submit(username, userId, relativePath, file);
+                if (needIndex(file)) {
+                    luceneService.pushCreateIndexQueue(updateResult.getUpsertedId().asObjectId().getValue().toHexString());
+                }
             }
-            // 检查该文件的上级目录是否有已经分享的目录
-            checkShareBase(update, relativePath);
-            updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
             pushMessage(username, update.getUpdateObject(), "createFile");
         } finally {
             if (lock != null) {
@@ -337,6 +369,43 @@ public class CommonFileService {
         return null;
     }
 
+    /***
+     * 新建文件索引的内容
+     * @param username 用户名
+     * @param file File
+     * @param userId 用户Id
+     * @param relativePath 文件所在目录
+     * @param isPublic 是否为公共文件
+     * @return Update
+     */
+    private Update getCreateUpdate(String username, File file, String userId, String relativePath, Boolean isPublic) {
+        String fileName = file.getName();
+        String suffix = FileUtil.extName(fileName);
+        String contentType = FileContentTypeUtils.getContentType(suffix);
+        Update update = new Update();
+        // 设置创建时间和修改时间
+        setDateTime(file, update);
+        update.set(IUserService.USER_ID, userId);
+        update.set("name", fileName);
+        update.set("path", relativePath);
+        update.set(Constants.IS_FOLDER, file.isDirectory());
+        update.set(Constants.IS_FAVORITE, false);
+        if (isPublic != null) {
+            update.set("isPublic", true);
+        }
+        if (file.isFile()) {
+            setFileConfig(file, fileName, suffix, contentType, relativePath, update);
+        } else {
+            // 检查目录是否为OSS目录
+            checkOSSPath(username, relativePath, fileName, update);
+            // 文件夹大小, 之后由其下文件的增删改增量维护
+            update.set("size", getFolderSize(userId, relativePath + fileName + MyWebdavServlet.PATH_DELIMITER));
+        }
+        // 检查该文件的上级目录是否有已经分享的目录
+        checkShareBase(update, relativePath);
+        return update;
+    }
+
     private static void setDateTime(File file, Update update) {
         LocalDateTime updateDateTime;
         LocalDateTime uploadDateTime;
@@ -376,17 +445,23 @@ public class CommonFileService {
             return file;
         }
         File outputFile = new File(file.getPath() + Constants.POINT_SUFFIX_WEBP);
-        // 从某处获取图像进行编码
-        BufferedImage image;
         try {
-            image = ImageIO.read(file);
-            if (image == null) {
+            // 解码和编码在图片处理线程池中执行
+            boolean converted = imageProcessService.execute(ImageProcessService.estimatePixels(file), () -> {
+                BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    return false;
+                }
+                imageFileToWebp(outputFile, image);
+                return true;
+            });
+            if (!converted) {
                 return file;
             }
-            imageFileToWebp(outputFile, image);
             FileUtil.del(file);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
+            FileUtil.del(outputFile);
             return file;
         }
         return outputFile;
@@ -399,31 +474,80 @@ public class CommonFileService {
         WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
         writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
         // 在ImageWriter上配置输出
-        writer.setOutput(new FileImageOutputStream(outputFile));
-        // 编码
-        writer.write(null, new IIOImage(image, null, null), writeParam);
+        try (FileImageOutputStream output = new FileImageOutputStream(outputFile)) {
+            writer.setOutput(output);
+            // 编码
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
     }
 
-    private void setFileConfig(String username, File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
+    private static void setFileConfig(File file, String fileName, String suffix, String contentType, String relativePath, Update update) {
         long size = file.length();
         update.set("size", size);
         update.set("md5", size + relativePath + fileName);
         update.set(Constants.CONTENT_TYPE, getContentType(file, contentType));
         update.set(Constants.SUFFIX, suffix);
-        if (contentType.contains(Constants.AUDIO)) {
-            setMusic(file, update);
+        if (MediaDerivationService.getJobType(contentType, suffix) != null) {
+            // 缩略图、封面、音频信息、markdown内容等由 MediaDerivationService 异步生成
+            update.set(Constants.DERIVE_PENDING, true);
         }
-        if (contentType.contains(Constants.VIDEO)) {
-            setMediaCover(username, fileName, relativePath, update);
+    }
+
+    /***
+     * 生成文件的衍生数据, 由 MediaDerivationService 的线程池调用
+     * @param jobType 任务类型
+     * @param username 用户名
+     * @param userId userId
+     * @param relativePath 文件所在目录
+     * @param fileName 文件名
+     */
+    public void derive(MediaDerivationService.JobType jobType, String username, String userId, String relativePath, String fileName) {
+        File file = Paths.get(fileProperties.getRootDir(), username, relativePath, fileName).toFile();
+        Query query = getQuery(relativePath, fileName, userId);
+        Update update = new Update();
+        update.unset(Constants.DERIVE_PENDING);
+        if (!file.isFile()) {
+            mongoTemplate.updateFirst(query, update, COLLECTION_NAME);
+            return;
         }
-        if (contentType.startsWith(Constants.CONTENT_TYPE_IMAGE) && (!"ico".equals(suffix) && !"svg".equals(suffix))) {
-            generateThumbnail(file, update);
+        long sizeDelta = 0;
+        switch (jobType) {
+            case IMAGE -> {
+                long originalSize = file.length();
+                // 换成webp格式的图片
+                File webpFile = replaceWebp(userId, file);
+                if (!webpFile.equals(file)) {
+                    // 同名的webp文件已被覆盖
+                    FileDocument webpDocument = mongoTemplate.findAndRemove(getQuery(relativePath, webpFile.getName(), userId), FileDocument.class, COLLECTION_NAME);
+                    if (webpDocument != null) {
+                        sizeDelta -= webpDocument.getSize();
+                    }
+                    String suffix = FileUtil.extName(webpFile.getName());
+                    update.set("name", webpFile.getName());
+                    update.set("size", webpFile.length());
+                    update.set("md5", webpFile.length() + relativePath + webpFile.getName());
+                    update.set(Constants.SUFFIX, suffix);
+                    update.set(Constants.CONTENT_TYPE, getContentType(webpFile, FileContentTypeUtils.getContentType(suffix)));
+                    sizeDelta += webpFile.length() - originalSize;
+                }
+                setImageSize(webpFile, update);
+            }
+            case AUDIO -> setMusic(file, update);
+            case VIDEO -> setMediaCover(username, fileName, relativePath, file, update);
+            default -> update.set("contentText", FileUtil.readString(file, MyFileUtils.getFileCharset(file)));
         }
-        if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
-            // 写入markdown内容
-            String markDownContent = FileUtil.readString(file, MyFileUtils.getFileCharset(file));
-            update.set("contentText", markDownContent);
+        FindAndModifyOptions options = FindAndModifyOptions.options().returnNew(true);
+        FileDocument fileDocument = mongoTemplate.findAndModify(query, update, options, FileDocument.class, COLLECTION_NAME);
+        if (fileDocument == null) {
+            return;
         }
+        // 更新上级目录的大小和用户已使用的空间
+        updateSize(userId, relativePath, sizeDelta);
+        fileDocument.setContent(null);
+        fileDocument.setContentText(null);
+        pushMessage(username, fileDocument, "updateFile");
     }
 
     public static String getContentType(File file, String contentType) {
@@ -455,39 +579,28 @@ public class CommonFileService {
         update.set("music", music);
     }
 
-    private void setMediaCover(String username, String fileName, String relativePath, Update update) {
-        String coverPath = videoProcessService.getVideoCover(username, relativePath, fileName);
-        if (!CharSequenceUtil.isBlank(coverPath)) {
-            if (update == null) {
-                update = new Update();
-            }
-            update.set("content", PathUtil.readBytes(Paths.get(coverPath)));
+    private void setMediaCover(String username, String fileName, String relativePath, File file, Update update) {
+        // 封面存放在缩略图目录
+        if (thumbnailService.getRendition(file, ThumbnailService.DEFAULT_SIZE) != null) {
             videoProcessService.convertToM3U8(username, relativePath, fileName);
             update.set("mediaCover", true);
-            FileUtil.del(coverPath);
         } else {
             update.set("mediaCover", false);
         }
     }
 
     /***
-     * 生成缩略图
+     * 读取图片的宽高, 缩略图由 ThumbnailService 在第一次请求时生成
      * @param file File
      * @param update org.springframework.data.mongodb.core.query.UpdateDefinition
      */
-    private void generateThumbnail(File file, Update update) {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Thumbnails.Builder<? extends File> thumbnail = Thumbnails.of(file);
-            thumbnail.size(256, 256);
-            thumbnail.toOutputStream(out);
+    private static void setImageSize(File file, Update update) {
+        try {
             FastImageInfo imageInfo = new FastImageInfo(file);
             update.set("w", imageInfo.getWidth());
             update.set("h", imageInfo.getHeight());
-            update.set("content", out.toByteArray());
-        } catch (UnsupportedFormatException e) {
-            log.warn(e.getMessage() + file.getAbsolutePath());
         } catch (Exception e) {
-            log.error(e.getMessage() + file.getAbsolutePath());
+            log.warn(e.getMessage() + file.getAbsolutePath());
         }
     }
 
@@ -534,28 +647,239 @@ public class CommonFileService {
         pushMessage(username, msg, "operationFile");
     }
 
+    /***
+     * 用户已使用的空间, 读取用户的空间计数器
+     * @param userId userId
+     * @return 已使用的空间
+     */
     public long occupiedSpace(String userId) {
+        ConsumerDO consumerDO = userService.userInfoById(userId);
+        if (consumerDO == null) {
+            return 0;
+        }
+        if (consumerDO.getTakeUpSpace() == null) {
+            // 计数器还未初始化
+            return resetOccupiedSpace(userId);
+        }
+        checkSpaceFull(userId, consumerDO.getQuota(), consumerDO.getTakeUpSpace());
+        return consumerDO.getTakeUpSpace();
+    }
+
+    /***
+     * 重新统计用户已使用的空间(聚合查询), 用于初始化和定时校准计数器
+     * 只有计数器在统计期间没有被修改时才写入, 否则重新统计, 避免覆盖统计期间的增量
+     * @param userId userId
+     * @return 已使用的空间
+     */
+    public long resetOccupiedSpace(String userId) {
+        ReentrantReadWriteLock spaceLock = getSpaceLock(userId);
+        // 计数器还未初始化时, 写入文件记录的线程会在持有读锁时调用, 这时不能再获取写锁
+        boolean locked = spaceLock.getReadHoldCount() == 0;
+        if (locked) {
+            spaceLock.writeLock().lock();
+        }
+        try {
+            return doResetOccupiedSpace(userId);
+        } finally {
+            if (locked) {
+                spaceLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long doResetOccupiedSpace(String userId) {
         long space = 0;
+        for (int attempt = 1; attempt <= RESET_SPACE_ATTEMPTS; attempt++) {
+            Query userQuery = Query.query(Criteria.where("_id").is(userId));
+            userQuery.fields().include(TAKE_UP_SPACE);
+            ConsumerDO before = mongoTemplate.findOne(userQuery, ConsumerDO.class, UserServiceImpl.COLLECTION_NAME);
+            if (before == null) {
+                return 0;
+            }
+            space = 0;
+            List<Bson> list = Arrays.asList(
+                    match(and(eq(IUserService.USER_ID, userId), eq(Constants.IS_FOLDER, false))),
+                    group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
+            AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
+            Document doc = aggregateIterable.first();
+            if (doc != null) {
+                space = Convert.toLong(doc.get(Constants.TOTAL_SIZE), 0L);
+            }
+            Query query = new Query();
+            query.addCriteria(Criteria.where("_id").is(userId));
+            // 计数器不存在时也匹配null
+            query.addCriteria(Criteria.where(TAKE_UP_SPACE).is(before.getTakeUpSpace()));
+            Update update = new Update();
+            update.set(TAKE_UP_SPACE, space);
+            ConsumerDO consumerDO = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), ConsumerDO.class, UserServiceImpl.COLLECTION_NAME);
+            if (consumerDO != null) {
+                checkSpaceFull(userId, consumerDO.getQuota(), space);
+                return space;
+            }
+        }
+        log.warn("校准用户已使用的空间失败, 统计期间计数器一直在变化, userId: {}", userId);
+        return space;
+    }
+
+    /***
+     * 增量更新用户已使用的空间
+     * @param userId userId
+     * @param delta 空间的变化量
+     */
+    public void incOccupiedSpace(String userId, long delta) {
+        if (delta == 0 || CharSequenceUtil.isBlank(userId)) {
+            return;
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(userId));
+        query.addCriteria(Criteria.where(TAKE_UP_SPACE).exists(true));
+        Update update = new Update();
+        update.inc(TAKE_UP_SPACE, delta);
+        ConsumerDO consumerDO = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), ConsumerDO.class, UserServiceImpl.COLLECTION_NAME);
+        if (consumerDO == null) {
+            // 计数器还未初始化
+            resetOccupiedSpace(userId);
+            return;
+        }
+        checkSpaceFull(userId, consumerDO.getQuota(), consumerDO.getTakeUpSpace());
+    }
+
+    /***
+     * 检查用户空间是否已满
+     * @param userId userId
+     * @param quota 配额(G)
+     * @param space 已使用的空间
+     */
+    private static void checkSpaceFull(String userId, Integer quota, Long space) {
+        if (quota == null || space == null) {
+            return;
+        }
+        if (space >= quota * 1024L * 1024L * 1024L) {
+            // 空间已满
+            CaffeineUtil.setSpaceFull(userId);
+        } else {
+            if (CaffeineUtil.spaceFull(userId)) {
+                CaffeineUtil.removeSpaceFull(userId);
+            }
+        }
+    }
+
+    /***
+     * 文件大小变化后, 增量更新上级目录的大小和用户已使用的空间
+     * @param userId userId
+     * @param relativePath 文件所在目录, 例如: /a/b/
+     * @param delta 大小的变化量
+     */
+    public void updateSize(String userId, String relativePath, long delta) {
+        updateFolderSize(userId, relativePath, delta);
+        incOccupiedSpace(userId, delta);
+    }
+
+    /***
+     * 统计文件夹的大小(聚合查询, 仅在新建文件夹或补全旧数据时使用)
+     * @param userId userId
+     * @param path 文件夹路径, 以"/"结尾
+     */
+    public long getFolderSize(String userId, String path) {
         List<Bson> list = Arrays.asList(
-                match(eq(IUserService.USER_ID, userId)),
+                match(and(eq(IUserService.USER_ID, userId),
+                        eq(Constants.IS_FOLDER, false), regex("path", "^" + ReUtil.escape(path)))),
                 group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
-        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
-        Document doc = aggregateIterable.first();
+        AggregateIterable<Document> aggregate = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
+        long totalSize = 0;
+        Document doc = aggregate.first();
         if (doc != null) {
-            space = Convert.toLong(doc.get(Constants.TOTAL_SIZE), 0L);
+            totalSize = Convert.toLong(doc.get(Constants.TOTAL_SIZE), 0L);
         }
-        ConsumerDO consumerDO = userService.userInfoById(userId);
-        if (consumerDO != null && consumerDO.getQuota() != null) {
-            if (space >= consumerDO.getQuota() * 1024L * 1024L * 1024L) {
-                // 空间已满
-                CaffeineUtil.setSpaceFull(userId);
-            } else {
-                if (CaffeineUtil.spaceFull(userId)) {
-                    CaffeineUtil.removeSpaceFull(userId);
-                }
+        return totalSize;
+    }
+
+    /***
+     * 增量更新所有上级目录的大小
+     * @param userId userId
+     * @param relativePath 文件所在目录, 例如: /a/b/
+     * @param delta 大小的变化量
+     */
+    public void updateFolderSize(String userId, String relativePath, long delta) {
+        if (delta == 0 || CharSequenceUtil.isBlank(userId) || CharSequenceUtil.isBlank(relativePath)) {
+            return;
+        }
+        Path path = Paths.get(relativePath);
+        StringBuilder pathStr = new StringBuilder(MyWebdavServlet.PATH_DELIMITER);
+        List<Criteria> parentList = new ArrayList<>(path.getNameCount());
+        for (int i = 0; i < path.getNameCount(); i++) {
+            String filename = path.getName(i).toString();
+            parentList.add(Criteria.where("path").is(pathStr.toString()).and("name").is(filename));
+            pathStr.append(filename).append(MyWebdavServlet.PATH_DELIMITER);
+        }
+        if (parentList.isEmpty()) {
+            return;
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(true));
+        query.addCriteria(new Criteria().orOperator(parentList));
+        Update update = new Update();
+        update.inc("size", delta);
+        mongoTemplate.updateMulti(query, update, COLLECTION_NAME);
+    }
+
+    /***
+     * 批量增量更新上级目录的大小, 同一个目录的变化量合并后只更新一次
+     * @param userId userId
+     * @param deltaMap key: 文件所在目录, 例如: /a/b/, value: 大小的变化量
+     */
+    public void updateFolderSize(String userId, Map<String, Long> deltaMap) {
+        // key: 上级目录的path + name, value: 该目录大小的变化量
+        Map<String, Long> folderDeltaMap = new HashMap<>(16);
+        deltaMap.forEach((relativePath, delta) -> {
+            Path path = Paths.get(relativePath);
+            StringBuilder pathStr = new StringBuilder(MyWebdavServlet.PATH_DELIMITER);
+            for (int i = 0; i < path.getNameCount(); i++) {
+                String filename = path.getName(i).toString();
+                folderDeltaMap.merge(pathStr + filename, delta, Long::sum);
+                pathStr.append(filename).append(MyWebdavServlet.PATH_DELIMITER);
             }
+        });
+        folderDeltaMap.values().removeIf(delta -> delta == 0);
+        if (folderDeltaMap.isEmpty()) {
+            return;
         }
-        return space;
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        folderDeltaMap.forEach((folder, delta) -> {
+            int index = folder.lastIndexOf(MyWebdavServlet.PATH_DELIMITER) + 1;
+            Query query = new Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(true));
+            query.addCriteria(Criteria.where("path").is(folder.substring(0, index)));
+            query.addCriteria(Criteria.where("name").is(folder.substring(index)));
+            Update update = new Update();
+            update.inc("size", delta);
+            bulkOperations.updateOne(query, update);
+        });
+        bulkOperations.execute();
+    }
+
+    /***
+     * 补全旧版本数据中没有大小的文件夹
+     */
+    public void initFolderSize() {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(true));
+        query.addCriteria(Criteria.where("size").exists(false));
+        query.fields().include(IUserService.USER_ID).include("path").include("name");
+        List<FileDocument> folderList = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
+        if (folderList.isEmpty()) {
+            return;
+        }
+        TimeInterval timeInterval = new TimeInterval();
+        for (FileDocument folder : folderList) {
+            long size = getFolderSize(folder.getUserId(), folder.getPath() + folder.getName() + MyWebdavServlet.PATH_DELIMITER);
+            Update update = new Update();
+            update.set("size", size);
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(folder.getId())), update, COLLECTION_NAME);
+        }
+        log.info("补全文件夹大小完成, 文件夹数: {}, 耗时: {}ms", folderList.size(), timeInterval.intervalMs());
     }
 
     /**
@@ -736,32 +1060,305 @@ public class CommonFileService {
         query.addCriteria(Criteria.where("path").is(relativePath));
         query.addCriteria(Criteria.where("name").is(fileName));
 
-        String suffix = FileUtil.extName(fileName);
+        // 修改并返回修改前的文件, 大小的变化量以修改前的大小为准, 并发修改时不会重复累加
+        LocalDateTime updateDate = LocalDateTime.now(TimeUntils.ZONE_ID);
+        FileDocument fileDocument;
+        Lock spaceLock = getSpaceLock(userId).readLock();
+        spaceLock.lock();
+        try {
+            fileDocument = mongoTemplate.findAndModify(query, getModifyUpdate(file, updateDate), FindAndModifyOptions.options().returnNew(false), FileDocument.class, COLLECTION_NAME);
+            if (fileDocument == null) {
+                return null;
+            }
+            // 更新上级目录的大小和用户已使用的空间
+            updateSize(userId, relativePath, file.length() - fileDocument.getSize());
+        } finally {
+            spaceLock.unlock();
+        }
+        if (isMarkdown(file)) {
+            mediaDerivationService.submit(username, userId, relativePath, file);
+        }
+        fileDocument.setSize(file.length());
+        fileDocument.setUpdateDate(updateDate);
+        if (needIndex(file)) {
+            luceneService.pushCreateIndexQueue(fileDocument.getId());
+        }
+        pushMessage(username, fileDocument, "updateFile");
+        return fileDocument.getId();
+    }
+
+    /***
+     * 修改文件索引的内容
+     * @param file File
+     * @param updateDate 修改时间
+     * @return Update
+     */
+    private static Update getModifyUpdate(File file, LocalDateTime updateDate) {
+        String suffix = FileUtil.extName(file.getName());
         String contentType = FileContentTypeUtils.getContentType(suffix);
+        Update update = new Update();
+        update.set("size", file.length());
+        update.set(Constants.SUFFIX, suffix);
+        update.set(Constants.CONTENT_TYPE, getContentType(file, contentType));
+        update.set("updateDate", updateDate);
+        if (isMarkdown(file)) {
+            // markdown内容由 MediaDerivationService 异步读取
+            update.set(Constants.DERIVE_PENDING, true);
+        }
+        return update;
+    }
 
-        // 文件是否存在
-        FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, COLLECTION_NAME);
-        if (fileDocument != null) {
-            Update update = new Update();
-            update.set("size", file.length());
-            update.set(Constants.SUFFIX, suffix);
-            update.set(Constants.CONTENT_TYPE, getContentType(file, contentType));
-            LocalDateTime updateDate = LocalDateTime.now(TimeUntils.ZONE_ID);
-            update.set("updateDate", updateDate);
-            UpdateResult updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
-            fileDocument.setSize(file.length());
-            fileDocument.setUpdateDate(updateDate);
-            if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
-                // 写入markdown内容
-                String markDownContent = FileUtil.readString(file, MyFileUtils.getFileCharset(file));
-                update.set("contentText", markDownContent);
-            }
-            pushMessage(username, fileDocument, "updateFile");
-            if (null != updateResult.getUpsertedId()) {
-                return updateResult.getUpsertedId().asObjectId().getValue().toHexString();
+    /***
+     * 是否需要更新索引, 需要抽取内容的文件和markdown文章(发布后索引文章内容)
+     */
+    private boolean needIndex(File file) {
+        return luceneService.isIndexable(FileUtil.extName(file.getName())) || isMarkdown(file);
+    }
+
+    private static boolean isMarkdown(File file) {
+        String suffix = FileUtil.extName(file.getName());
+        return MediaDerivationService.getJobType(FileContentTypeUtils.getContentType(suffix), suffix) == MediaDerivationService.JobType.MARKDOWN;
+    }
+
+    /***
+     * 批量更新文件索引(文件监控事件的批处理)
+     * 一个批次只查询一次已存在的文件, 新建的文件用bulkWrite批量插入, 修改和删除逐个写入并返回写入前的文件,
+     * 大小的变化量以实际写入的结果为准(并发的createFile、modifyFile已经写入的不重复累加), 上级目录的大小合并后一起更新, 每个目录只推送一次消息
+     * @param username 用户名
+     * @param createFiles 新建的文件
+     * @param changeFiles 修改的文件
+     * @param deleteFiles 删除的文件
+     */
+    public void batchFileChange(String username, List<File> createFiles, List<File> changeFiles, List<File> deleteFiles) {
+        String userId = userService.getUserIdByUserName(username);
+        if (CharSequenceUtil.isBlank(userId)) {
+            return;
+        }
+        Lock spaceLock = getSpaceLock(userId).readLock();
+        spaceLock.lock();
+        try {
+            batchFileChange(username, userId, createFiles, changeFiles, deleteFiles);
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private void batchFileChange(String username, String userId, List<File> createFiles, List<File> changeFiles, List<File> deleteFiles) {
+        List<File> upsertFiles = new ArrayList<>(createFiles.size() + changeFiles.size());
+        upsertFiles.addAll(createFiles);
+        upsertFiles.addAll(changeFiles);
+        Set<File> changeFileSet = new HashSet<>(changeFiles);
+        List<File> allFiles = new ArrayList<>(upsertFiles);
+        allFiles.addAll(deleteFiles);
+        Map<String, FileDocument> existsMap = getFileDocumentMap(username, userId, allFiles);
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, COLLECTION_NAME);
+        // 批量插入的文件, 和bulkWrite中的操作顺序一致
+        List<File> insertFiles = new ArrayList<>();
+        List<String> insertPaths = new ArrayList<>();
+        // 需要修改的文件
+        List<File> modifyFiles = new ArrayList<>();
+        // key: 文件所在目录, value: 该目录下文件大小的变化量
+        Map<String, Long> deltaMap = new HashMap<>(16);
+        // key: 文件所在目录, value: 推送给该目录的消息
+        Map<String, Document> messageMap = new LinkedHashMap<>(16);
+        // 新建的文件, value: 文件所在目录
+        Map<File, String> createdFileMap = new LinkedHashMap<>(16);
+        // 需要更新索引的文件
+        List<String> updateIndexIds = new ArrayList<>();
+        // 需要删除索引的文件
+        List<String> deleteIndexIds = new ArrayList<>();
+        for (File file : upsertFiles) {
+            String relativePath = getRelativePath(username, file);
+            if (relativePath == null || !file.exists()) {
+                continue;
+            }
+            String fileName = file.getName();
+            FileDocument fileDocument = existsMap.get(relativePath + fileName);
+            if (fileDocument == null) {
+                // 只在不存在时插入, 并发插入的文件不会被覆盖
+                // 新建文件夹时统计的是该批次写入之前的大小, 该批次内其下文件的大小在下面累加
+                bulkOperations.upsert(getQuery(relativePath, fileName, userId), toSetOnInsert(getCreateUpdate(username, file, userId, relativePath, null)));
+                insertFiles.add(file);
+                insertPaths.add(relativePath);
+            } else if (file.isFile() && (changeFileSet.contains(file) || fileDocument.getSize() != file.length())) {
+                modifyFiles.add(file);
             }
         }
-        return null;
+        if (!insertFiles.isEmpty()) {
+            BulkWriteResult bulkWriteResult = bulkOperations.execute();
+            // 只有实际插入的文件才累加大小
+            for (BulkWriteUpsert upsert : bulkWriteResult.getUpserts()) {
+                File file = insertFiles.get(upsert.getIndex());
+                String relativePath = insertPaths.get(upsert.getIndex());
+                if (file.isFile()) {
+                    deltaMap.merge(relativePath, file.length(), Long::sum);
+                    createdFileMap.put(file, relativePath);
+                    if (needIndex(file)) {
+                        updateIndexIds.add(upsert.getId().asObjectId().getValue().toHexString());
+                    }
+                }
+                countMessage(messageMap, relativePath, "created");
+            }
+        }
+        for (File file : modifyFiles) {
+            String relativePath = getRelativePath(username, file);
+            Query query = getQuery(relativePath, file.getName(), userId);
+            query.fields().include("size");
+            FileDocument before = mongoTemplate.findAndModify(query, getModifyUpdate(file, LocalDateTime.now(TimeUntils.ZONE_ID)), FindAndModifyOptions.options().returnNew(false), FileDocument.class, COLLECTION_NAME);
+            if (before == null) {
+                continue;
+            }
+            deltaMap.merge(relativePath, file.length() - before.getSize(), Long::sum);
+            if (isMarkdown(file)) {
+                mediaDerivationService.submit(username, userId, relativePath, file);
+            }
+            if (needIndex(file)) {
+                updateIndexIds.add(before.getId());
+            }
+            countMessage(messageMap, relativePath, "updated");
+        }
+        // 先处理上级目录, 已经删除的文件夹下的文件不用再单独删除
+        List<File> sortedDeleteFiles = deleteFiles.stream().sorted(Comparator.comparingInt(file -> file.getAbsolutePath().length())).toList();
+        List<String> deletedFolders = new ArrayList<>();
+        for (File file : sortedDeleteFiles) {
+            String relativePath = getRelativePath(username, file);
+            if (relativePath == null || file.exists() || deletedFolders.stream().anyMatch(relativePath::startsWith)) {
+                continue;
+            }
+            String fileName = file.getName();
+            if (!existsMap.containsKey(relativePath + fileName)) {
+                continue;
+            }
+            Query query = getQuery(relativePath, fileName, userId);
+            query.fields().include("size").include(Constants.IS_FOLDER);
+            FileDocument fileDocument = mongoTemplate.findAndRemove(query, FileDocument.class, COLLECTION_NAME);
+            if (fileDocument == null) {
+                // 已经被并发删除
+                continue;
+            }
+            videoProcessService.deleteVideoCache(username, relativePath, fileName);
+            deleteIndexIds.add(fileDocument.getId());
+            if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
+                // 删除文件夹及其下的所有文件
+                String folderPath = relativePath + fileName + MyWebdavServlet.PATH_DELIMITER;
+                deletedFolders.add(folderPath);
+                deleteIndexIds.addAll(getFileIdsUnderFolder(userId, folderPath));
+                Query folderQuery = new Query();
+                folderQuery.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+                folderQuery.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(folderPath)));
+                mongoTemplate.remove(folderQuery, COLLECTION_NAME);
+            }
+            deltaMap.merge(relativePath, -fileDocument.getSize(), Long::sum);
+            countMessage(messageMap, relativePath, "deleted");
+        }
+        if (messageMap.isEmpty()) {
+            return;
+        }
+        // 更新上级目录的大小和用户已使用的空间
+        updateFolderSize(userId, deltaMap);
+        incOccupiedSpace(userId, deltaMap.values().stream().mapToLong(Long::longValue).sum());
+        // 异步生成缩略图、封面等
+        createdFileMap.forEach((file, relativePath) -> mediaDerivationService.submit(username, userId, relativePath, file));
+        updateIndexIds.forEach(luceneService::pushCreateIndexQueue);
+        luceneService.deleteIndexDocuments(deleteIndexIds);
+        messageMap.forEach((relativePath, message) -> {
+            String url = "createFile";
+            if (!message.containsKey("created")) {
+                url = message.containsKey("updated") ? "updateFile" : "deleteFile";
+            }
+            pushMessage(username, message, url);
+        });
+    }
+
+    /***
+     * 把$set转为$setOnInsert, 文件已存在时不修改
+     */
+    private static Update toSetOnInsert(Update update) {
+        Update insertUpdate = new Update();
+        Object set = update.getUpdateObject().get("$set");
+        if (set instanceof Document setDocument) {
+            setDocument.forEach(insertUpdate::setOnInsert);
+        }
+        return insertUpdate;
+    }
+
+    private static void countMessage(Map<String, Document> messageMap, String relativePath, String key) {
+        Document message = messageMap.computeIfAbsent(relativePath, path -> new Document("path", path));
+        message.merge(key, 1, (oldValue, value) -> (int) oldValue + 1);
+    }
+
+    /***
+     * 目录下已索引的本地文件和文件夹, 不包括oss目录和挂载的文件
+     * @param username 用户名
+     * @param relativePath 目录(相对于用户目录), 例如: /a/b/
+     * @return key: 文件名, value: 是否为文件夹
+     */
+    public Map<String, Boolean> getIndexedChildren(String username, String relativePath) {
+        String userId = userService.getUserIdByUserName(username);
+        if (CharSequenceUtil.isBlank(userId) || CaffeineUtil.getOssPath(username + relativePath) != null) {
+            return Collections.emptyMap();
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").is(relativePath));
+        query.addCriteria(Criteria.where("ossFolder").exists(false));
+        query.addCriteria(Criteria.where("mountFileId").exists(false));
+        query.fields().include("name").include(Constants.IS_FOLDER);
+        Map<String, Boolean> children = new HashMap<>(16);
+        mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME).forEach(fileDocument -> children.put(fileDocument.getName(), BooleanUtil.isTrue(fileDocument.getIsFolder())));
+        return children;
+    }
+
+    /***
+     * 文件夹下所有文件的id(包括子文件夹)
+     * @param userId userId
+     * @param folderPath 文件夹路径, 例如: /a/b/
+     * @return fileId列表
+     */
+    public List<String> getFileIdsUnderFolder(String userId, String folderPath) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(folderPath)));
+        query.fields().include("_id");
+        return mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME).stream().map(FileDocument::getId).toList();
+    }
+
+    /***
+     * 批量查询已存在的文件
+     * @return key: path + name
+     */
+    private Map<String, FileDocument> getFileDocumentMap(String username, String userId, List<File> files) {
+        List<Criteria> criteriaList = new ArrayList<>(files.size());
+        for (File file : files) {
+            String relativePath = getRelativePath(username, file);
+            if (relativePath != null) {
+                criteriaList.add(Criteria.where("path").is(relativePath).and("name").is(file.getName()));
+            }
+        }
+        Map<String, FileDocument> fileDocumentMap = new HashMap<>(files.size());
+        for (List<Criteria> list : ListUtil.partition(criteriaList, 500)) {
+            Query query = new Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(new Criteria().orOperator(list));
+            query.fields().include("path").include("name").include("size").include(Constants.IS_FOLDER);
+            mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME).forEach(fileDocument -> fileDocumentMap.put(fileDocument.getPath() + fileDocument.getName(), fileDocument));
+        }
+        return fileDocumentMap;
+    }
+
+    /***
+     * 文件所在目录(相对于用户目录)
+     * @return 例如: /a/b/, 用户目录本身返回null
+     */
+    private String getRelativePath(String username, File file) {
+        String fileAbsolutePath = file.getAbsolutePath();
+        int startIndex = fileProperties.getRootDir().length() + username.length() + 1;
+        int endIndex = fileAbsolutePath.length() - file.getName().length();
+        if (startIndex >= endIndex) {
+            return null;
+        }
+        return fileAbsolutePath.substring(startIndex, endIndex);
     }
 
     public List<FileIntroVO> sortByFileName(UploadApiParamDTO upload, List<FileIntroVO> fileIntroVOList, String order) {
@@ -25,7 +25,7 @@ import com.jmal.clouddisk.service.IFileVersionService;
 import com.jmal.clouddisk.service.video.VideoProcessService;
 import com.jmal.clouddisk.util.*;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
-import com.mongodb.client.AggregateIterable;
+import jakarta.annotation.PostConstruct;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -34,9 +34,6 @@ import org.apache.commons.compress.utils.Lists;
 import org.apache.tika.mime.MimeType;
 import org.apache.tika.mime.MimeTypeException;
 import org.apache.tika.mime.MimeTypes;
-import org.bson.BsonNull;
-import org.bson.Document;
-import org.bson.conversions.Bson;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,6 +41,10 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
@@ -60,14 +61,11 @@ import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
 import static com.jmal.clouddisk.service.IUserService.USER_ID;
-import static com.mongodb.client.model.Accumulators.sum;
-import static com.mongodb.client.model.Aggregates.group;
-import static com.mongodb.client.model.Aggregates.match;
-import static com.mongodb.client.model.Filters.*;
 
 
 /**
@@ -95,6 +93,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     @Autowired
     IFileVersionService fileVersionService;
 
+    @Autowired
+    UnzipService unzipService;
+
     /***
      * 前端文件夹树的第一级的文件Id
      */
@@ -102,13 +103,18 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
 
     private static final AES aes = SecureUtil.aes();
 
+    @PostConstruct
+    public void init() {
+        // 补全旧版本数据中文件夹的大小
+        ThreadUtil.execute(this::initFolderSize);
+    }
+
     @Override
     public ResponseResult<Object> listFiles(UploadApiParamDTO upload) throws CommonException {
         ResponseResult<Object> result = ResultUtil.genResult();
-        Path path = Paths.get(upload.getUsername(), upload.getCurrentDirectory());
-        String ossPath = CaffeineUtil.getOssPath(path);
+        String ossPath = CaffeineUtil.getOssPath(upload.getUsername() + MyWebdavServlet.PATH_DELIMITER + upload.getCurrentDirectory());
         if (ossPath != null) {
-            return webOssService.searchFileAndOpenOssFolder(path, upload);
+            return webOssService.getOssFileList(ossPath, Paths.get(upload.getUsername(), upload.getCurrentDirectory()), upload);
         }
         String currentDirectory = getUserDirectory(upload.getCurrentDirectory());
 
@@ -174,6 +180,19 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return occupiedSpace(userId);
     }
 
+    /**
+     * 定时校准用户已使用的空间
+     * 每天凌晨3点执行
+     */
+    @Scheduled(cron = "0 0 3 * * ?")
+    public void reconcileOccupiedSpace() {
+        Query query = new Query();
+        query.fields().include("_id");
+        List<ConsumerDO> userList = mongoTemplate.find(query, ConsumerDO.class, UserServiceImpl.COLLECTION_NAME);
+        userList.forEach(consumerDO -> resetOccupiedSpace(consumerDO.getId()));
+        log.info("校准用户已使用的空间完成, 用户数: {}", userList.size());
+    }
+
     /***
      * 通过查询条件获取文件数
      * @param upload UploadApiParamDTO
@@ -210,11 +229,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             LocalDateTime updateDate = fileDocument.getUpdateDate();
             long update = TimeUntils.getMilli(updateDate);
             fileDocument.setAgoTime(now - update);
-            if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
-                String path = fileDocument.getPath() + fileDocument.getName() + File.separator;
-                long size = getFolderSize(fileDocument.getUserId(), path);
-                fileDocument.setSize(size);
-            }
             FileIntroVO fileIntroVO = new FileIntroVO();
             BeanUtils.copyProperties(fileDocument, fileIntroVO);
             return fileIntroVO;
@@ -280,10 +294,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         setMountAttributes(upload, id, folder);
 
         // 判断是否为ossPath
-        Path path = Paths.get(upload.getUsername(), upload.getCurrentDirectory());
-        String ossPath = CaffeineUtil.getOssPath(path);
+        String ossPath = CaffeineUtil.getOssPath(upload.getUsername() + MyWebdavServlet.PATH_DELIMITER + upload.getCurrentDirectory());
         if (ossPath != null) {
-            return webOssService.searchFileAndOpenOssFolder(path, upload);
+            return webOssService.getOssFileList(ossPath, Paths.get(upload.getUsername(), upload.getCurrentDirectory()), upload);
         }
 
         FileDocument fileDocument = mongoTemplate.findById(id, FileDocument.class, COLLECTION_NAME);
@@ -293,10 +306,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         String currentDirectory = getUserDirectory(fileDocument.getPath() + fileDocument.getName());
 
         // 判断是否为ossPath
-        path = Paths.get(upload.getUsername(), currentDirectory);
-        ossPath = CaffeineUtil.getOssPath(path);
+        ossPath = CaffeineUtil.getOssPath(upload.getUsername() + MyWebdavServlet.PATH_DELIMITER + currentDirectory);
         if (ossPath != null) {
-            return webOssService.searchFileAndOpenOssFolder(path, upload);
+            return webOssService.getOssFileList(ossPath, Paths.get(upload.getUsername(), currentDirectory), upload);
         }
 
         Criteria criteria = Criteria.where("path").is(currentDirectory);
@@ -311,7 +323,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         if (CharSequenceUtil.isNotBlank(folder)) {
             Path path = Paths.get(folder);
             String username = path.subpath(0, 1).toString();
-            String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
+            String ossPath = CaffeineUtil.getOssPath(id);
             if (ossPath != null) {
                 upload.setCurrentDirectory(path.subpath(1, path.getNameCount()).toString());
             }
@@ -355,10 +367,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     public ResponseResult<Object> queryFileTree(UploadApiParamDTO upload, String fileId) {
         upload.setJustShowFolder(true);
         if (!CharSequenceUtil.isBlank(fileId) && BooleanUtil.isFalse(upload.getHideMountFile())) {
-            Path path = Paths.get(fileId);
-            String ossPath = CaffeineUtil.getOssPath(path);
+            String ossPath = CaffeineUtil.getOssPath(fileId);
             if (ossPath != null) {
-                return webOssService.searchFileAndOpenOssFolder(path, upload);
+                return webOssService.getOssFileList(ossPath, Paths.get(fileId), upload);
             }
         }
 
@@ -368,10 +379,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             assert fileDocument != null;
 
             if (fileDocument.getOssFolder() != null && BooleanUtil.isFalse(upload.getHideMountFile())) {
-                Path path = Paths.get(upload.getUsername(), fileDocument.getOssFolder());
-                String ossPath = CaffeineUtil.getOssPath(path);
+                String ossPath = CaffeineUtil.getOssPath(upload.getUsername() + MyWebdavServlet.PATH_DELIMITER + fileDocument.getOssFolder());
                 if (ossPath != null) {
-                    return webOssService.searchFileAndOpenOssFolder(path, upload);
+                    return webOssService.getOssFileList(ossPath, Paths.get(upload.getUsername(), fileDocument.getOssFolder()), upload);
                 }
             }
 
@@ -413,26 +423,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         }
     }
 
-    /***
-     * 统计文件夹的大小
-     */
-    private long getFolderSize(String userId, String path) {
-        List<Bson> list = Arrays.asList(
-                match(and(eq(USER_ID, userId),
-                        eq(Constants.IS_FOLDER, false), regex("path", "^" + ReUtil.escape(path)))),
-                group(new BsonNull(), sum(Constants.TOTAL_SIZE, "$size")));
-        AggregateIterable<Document> aggregate = mongoTemplate.getCollection(COLLECTION_NAME).aggregate(list);
-        long totalSize = 0;
-        Document doc = aggregate.first();
-        if (doc != null) {
-            Object object = doc.get(Constants.TOTAL_SIZE);
-            if (object != null) {
-                totalSize = Long.parseLong(object.toString());
-            }
-        }
-        return totalSize;
-    }
-
     @Override
     public Optional<FileDocument> getById(String id, Boolean content) {
         FileDocument fileDocument = mongoTemplate.findById(id, FileDocument.class, COLLECTION_NAME);
@@ -513,16 +503,8 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     @NotNull
     private static StreamingResponseBody getStreamingResponseBody(File file) {
         return outputStream -> {
-            Charset charset = MyFileUtils.getFileCharset(file);
-            try (InputStream inputStream = FileUtil.getInputStream(file);
-                 InputStreamReader inputStreamReader = new InputStreamReader(inputStream, charset);
-                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
-                String line;
-                while ((line = bufferedReader.readLine()) != null) {
-                    outputStream.write(line.getBytes(charset));
-                    outputStream.write("\n".getBytes(charset));
-                    outputStream.flush();
-                }
+            try {
+                LocalFileSender.writeText(file, outputStream);
             } catch (ClientAbortException ignored) {
                 // ignored
             } catch (IOException e) {
@@ -548,6 +530,22 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return Optional.empty();
     }
 
+    @Override
+    public ResponseEntity<Object> thumbnail(String id, Integer size, HttpServletRequest request, HttpServletResponse response) {
+        Query query = new Query(Criteria.where("_id").is(id));
+        query.fields().include(USER_ID).include("path").include("name");
+        FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, COLLECTION_NAME);
+        if (fileDocument == null) {
+            return getObjectResponseEntity(Optional.empty());
+        }
+        String username = userService.getUserNameById(fileDocument.getUserId());
+        File file = Paths.get(fileProperties.getRootDir(), username, fileDocument.getPath(), fileDocument.getName()).toFile();
+        if (thumbnailService.writeThumbnail(file, size, request, response)) {
+            return null;
+        }
+        return getObjectResponseEntity(thumbnail(id));
+    }
+
     @Override
     public Optional<FileDocument> coverOfMedia(String id, String username) throws CommonException {
         FileDocument fileDocument = getFileDocumentById(id);
@@ -559,7 +557,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         } else {
             CaffeineUtil.setThumbnailRequestCache(id);
         }
-        String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
+        String ossPath = CaffeineUtil.getOssPath(id);
         if (ossPath != null) {
             // S3存储
             if (fileDocument == null) {
@@ -572,6 +570,9 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         } else {
             // 本地储存
             if (fileDocument != null) {
+                if (setLocalVideoCover(username, fileDocument)) {
+                    return Optional.of(fileDocument);
+                }
                 setMediaCover(id, username, fileDocument, true);
             } else {
                 return Optional.empty();
@@ -580,6 +581,25 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return Optional.of(fileDocument);
     }
 
+    /***
+     * 本地视频的封面从缩略图目录读取, 不再存入mongo
+     * @return 是否已设置封面
+     */
+    private boolean setLocalVideoCover(String username, FileDocument fileDocument) {
+        if (fileDocument.getContentType() == null || !fileDocument.getContentType().contains(Constants.VIDEO)) {
+            return false;
+        }
+        File file = Paths.get(fileProperties.getRootDir(), username, fileDocument.getPath(), fileDocument.getName()).toFile();
+        Path rendition = thumbnailService.getRendition(file, ThumbnailService.DEFAULT_SIZE);
+        if (rendition == null) {
+            return false;
+        }
+        fileDocument.setContent(PathUtil.readBytes(rendition));
+        fileDocument.setContentType(FileContentTypeUtils.getContentType(FileUtil.extName(rendition.toFile())));
+        fileDocument.setName("cover");
+        return true;
+    }
+
     private void setMediaCover(String id, String username, FileDocument fileDocument, boolean hasOldFileDocument) {
         String contentType = fileDocument.getContentType();
         if (contentType.contains(Constants.VIDEO)) {
@@ -643,24 +663,59 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         query.addCriteria(Criteria.where("_id").in(fileIdList));
         List<FileDocument> fileDocuments = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
         // 选中的文件
-        List<String> selectNameList;
-        selectNameList = fileDocuments.stream().map(FileBase::getName).toList();
-        List<String> finalSelectNameList = selectNameList;
-        File[] excludeFiles = srcDir.toFile().listFiles(file -> !finalSelectNameList.contains(file.getName()));
-        List<Path> excludeFilePathList = new ArrayList<>();
-        if (excludeFiles != null) {
-            for (File excludeFile : excludeFiles) {
-                excludeFilePathList.add(excludeFile.toPath());
-            }
-        }
+        List<Path> selectPathList = fileDocuments.stream().map(document -> srcDir.resolve(document.getName())).toList();
         // 压缩传输
         try {
-            CompressUtils.zip(srcDir, excludeFilePathList, response.getOutputStream());
+            ZipPackager zipPackager = ZipPackager.of(srcDir, selectPathList);
+            if (zipPackager.isStored()) {
+                writeStoredZip(request, response, zipPackager);
+            } else {
+                zipPackager.writeParallel(response.getOutputStream());
+            }
+        } catch (ClientAbortException ignored) {
+            // ignored error
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
     }
 
+    /***
+     * 输出全部使用STORED的压缩包, 带上Content-Length并支持Range断点续传
+     * @param zipPackager ZipPackager
+     */
+    private static void writeStoredZip(HttpServletRequest request, HttpServletResponse response, ZipPackager zipPackager) throws IOException {
+        long length = zipPackager.getLength();
+        String etag = zipPackager.getETag();
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        // If-Range 不一致说明文件有变化, 返回整个压缩包
+        if (CharSequenceUtil.isNotBlank(range) && (CharSequenceUtil.isBlank(ifRange) || etag.equals(ifRange))) {
+            long start;
+            long end;
+            try {
+                List<HttpRange> httpRanges = HttpRange.parseRanges(range);
+                if (httpRanges.size() != 1) {
+                    throw new IllegalArgumentException(range);
+                }
+                start = httpRanges.get(0).getRangeStart(length);
+                end = httpRanges.get(0).getRangeEnd(length);
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            response.setContentLengthLong(end - start + 1);
+            zipPackager.write(response.getOutputStream(), start, end);
+            return;
+        }
+        response.setContentLengthLong(length);
+        zipPackager.write(response.getOutputStream(), 0, length - 1);
+    }
+
     /***
      * 对下载的文件名转码 解决不同浏览器压缩包名字含有中文时乱码的问题
      * @param request HttpServletRequest
@@ -736,7 +791,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         String operator = userLoginHolder.getUsername();
         ThreadUtil.execute(() -> {
             try {
-                String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
+                String ossPath = CaffeineUtil.getOssPath(id);
                 if (ossPath != null) {
                     // oss 重命名
                     webOssService.rename(ossPath, id, newFileName, operator);
@@ -807,6 +862,8 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
      * @param newFileName newFileName
      */
     private void afterRenameFile(String fileId, String newFileName) {
+        // 更新索引中的文件名
+        luceneService.pushCreateIndexQueue(fileId);
         // 修改关联的分享配置
         Query shareQuery = new Query();
         shareQuery.addCriteria(Criteria.where("fileId").is(fileId));
@@ -962,18 +1019,20 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             return;
         }
         videoProcessService.deleteVideoCache(username, relativePath, fileName);
-        Query query = new Query();
-        // 文件是否存在
-        FileDocument fileDocument = getFileDocument(userId, fileName, relativePath, query);
+        // 删除并返回删除前的文件, 并发删除时只有一方更新大小
+        FileDocument fileDocument = mongoTemplate.findAndRemove(getQuery(relativePath, fileName, userId), FileDocument.class, COLLECTION_NAME);
         if (fileDocument != null) {
-            mongoTemplate.remove(query, COLLECTION_NAME);
+            luceneService.deleteIndexDocuments(Collections.singletonList(fileDocument.getId()));
             if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
+                luceneService.deleteIndexDocuments(getFileIdsUnderFolder(userId, fileDocument.getPath() + fileDocument.getName() + MyWebdavServlet.PATH_DELIMITER));
                 Query query1 = new Query();
                 query1.addCriteria(Criteria.where(USER_ID).is(userId));
                 query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
                 mongoTemplate.remove(query1, COLLECTION_NAME);
             }
+            // 更新上级目录的大小和用户已使用的空间
+            updateSize(userId, relativePath, -fileDocument.getSize());
         }
         pushMessage(username, fileDocument, "deleteFile");
     }
@@ -1014,22 +1073,35 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 }
                 isWrite = true;
             }
-            CompressUtils.decompress(filePath, destDir, isWrite);
-            return ResultUtil.success(listFile(username, destDir, !isWrite));
+            if (isWrite) {
+                // 后台解压, 进度通过websocket推送
+                return ResultUtil.success(unzipService.submit(username, new File(filePath), Paths.get(destDir)));
+            }
+            unzipService.preview(new File(filePath), Paths.get(destDir));
+            return ResultUtil.success(listFile(username, destDir, true));
+        } catch (CommonException e) {
+            return ResultUtil.error(e.getMsg());
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             return ResultUtil.error("解压失败!");
         }
     }
 
+    @Override
+    public ResponseResult<Object> cancelUnzip(String taskId) {
+        if (!unzipService.cancel(userLoginHolder.getUsername(), taskId)) {
+            return ResultUtil.warning("解压任务不存在或已完成");
+        }
+        return ResultUtil.success();
+    }
+
     @Override
     public ResponseResult<Object> listFiles(String path, String username, boolean tempDir) {
-        Path prePth = Paths.get(username, path);
-        String ossPath = CaffeineUtil.getOssPath(prePth);
+        String ossPath = CaffeineUtil.getOssPath(username + MyWebdavServlet.PATH_DELIMITER + path);
         if (ossPath != null) {
             UploadApiParamDTO uploadApiParamDTO = new UploadApiParamDTO();
             uploadApiParamDTO.setPathAttachFileName(true);
-            return webOssService.searchFileAndOpenOssFolder(prePth, uploadApiParamDTO);
+            return webOssService.getOssFileList(ossPath, Paths.get(username, path), uploadApiParamDTO);
         }
         String dirPath;
         if (tempDir) {
@@ -1197,6 +1269,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             Query query = new Query();
             query.addCriteria(Criteria.where(USER_ID).in(userId));
             mongoTemplate.remove(query, COLLECTION_NAME);
+            luceneService.deleteIndexDocumentsByUserId(userId);
         });
     }
 
@@ -1743,16 +1816,22 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             isDel = FileUtil.del(file);
             if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
+                luceneService.deleteIndexDocuments(getFileIdsUnderFolder(userLoginHolder.getUserId(), fileDocument.getPath() + fileDocument.getName() + MyWebdavServlet.PATH_DELIMITER));
                 Query query1 = new Query();
                 query1.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
                 query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
                 mongoTemplate.remove(query1, COLLECTION_NAME);
                 isDel = true;
             }
+            if (isDel) {
+                // 更新上级目录的大小和用户已使用的空间
+                updateSize(fileDocument.getUserId(), fileDocument.getPath(), -fileDocument.getSize());
+            }
             pushMessage(username, fileDocument, "deleteFile");
         }
         if (isDel) {
             mongoTemplate.remove(query, COLLECTION_NAME);
+            luceneService.deleteIndexDocuments(fileIds);
             // delete history version
             fileVersionService.deleteAll(fileIds);
             // delete share
@@ -0,0 +1,325 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.date.TimeInterval;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.SyncCheckpointDO;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.CaffeineUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Description 把磁盘上的文件同步到数据库
+ * 多线程(ForkJoin)按目录遍历, 每个目录只查询一次数据库, 按(name, size, updateDate)比较后只批量写入有变化的文件,
+ * 并删除磁盘上已经不存在的文件. 每完成一个目录记录一个检查点, 同步中断后再次同步会跳过已完成的目录
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class FileSyncService {
+
+    public static final String COLLECTION_NAME = "syncCheckpoint";
+
+    /***
+     * 每次批量写入的最大文件数
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /***
+     * 攒够多少个检查点再写入数据库
+     */
+    private static final int CHECKPOINT_BATCH_SIZE = 500;
+
+    public static final String SYNCED = "synced";
+
+    @Autowired
+    FileProperties fileProperties;
+
+    @Autowired
+    CommonFileService commonFileService;
+
+    @Autowired
+    IUserService userService;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    /***
+     * 正在同步的用户, value: 同步进度
+     */
+    private static final Map<String, SyncTask> SYNC_TASK_MAP = new ConcurrentHashMap<>(16);
+
+    /***
+     * 磁盘上不存在需要删除的文件, OSS目录和挂载的文件夹只存在于数据库中, 不删除
+     * @param fileDocuments 磁盘上不存在的文件
+     * @return 文件名列表
+     */
+    static List<String> getDeletedFileNames(Collection<FileDocument> fileDocuments) {
+        return fileDocuments.stream()
+                .filter(fileDocument -> fileDocument.getOssFolder() == null && fileDocument.getMountFileId() == null)
+                .map(FileDocument::getName)
+                .toList();
+    }
+
+    @PostConstruct
+    public void init() {
+        // 启动时继续上次中断的同步
+        ThreadUtil.execute(() -> {
+            List<String> usernameList = mongoTemplate.findDistinct(new Query(), "username", COLLECTION_NAME, String.class);
+            usernameList.forEach(username -> {
+                log.info("继续上次中断的同步, username: {}", username);
+                sync(username);
+            });
+        });
+    }
+
+    /***
+     * 开始同步, 同一用户同时只有一个同步任务
+     * @param username 用户名
+     */
+    public void sync(String username) {
+        SYNC_TASK_MAP.computeIfAbsent(username, key -> {
+            SyncTask syncTask = new SyncTask(username);
+            ThreadUtil.execute(syncTask::run);
+            return syncTask;
+        });
+    }
+
+    /***
+     * 同步进度
+     * @param username 用户名
+     * @return 0 ~ 100, 没有在同步返回100
+     */
+    public int getPercent(String username) {
+        SyncTask syncTask = SYNC_TASK_MAP.get(username);
+        if (syncTask == null) {
+            return 100;
+        }
+        return syncTask.percent.get();
+    }
+
+    private class SyncTask {
+
+        private final String username;
+
+        private final Path userRoot;
+
+        private String userId;
+
+        /***
+         * 上次同步已完成的目录
+         */
+        private Set<String> checkpointSet = Collections.emptySet();
+
+        /***
+         * 待写入的检查点
+         */
+        private final List<SyncCheckpointDO> pendingCheckpoints = new ArrayList<>();
+
+        private final AtomicLong discoveredDirCount = new AtomicLong(1);
+
+        private final AtomicLong doneDirCount = new AtomicLong(0);
+
+        private final AtomicInteger percent = new AtomicInteger(0);
+
+        SyncTask(String username) {
+            this.username = username;
+            this.userRoot = Paths.get(fileProperties.getRootDir(), username);
+        }
+
+        void run() {
+            TimeInterval timeInterval = new TimeInterval();
+            boolean completed = false;
+            ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+            try {
+                userId = userService.getUserIdByUserName(username);
+                if (CharSequenceUtil.isBlank(userId) || !Files.isDirectory(userRoot)) {
+                    return;
+                }
+                Query query = Query.query(Criteria.where("username").is(username));
+                query.fields().include("path");
+                checkpointSet = new HashSet<>(mongoTemplate.find(query, SyncCheckpointDO.class, COLLECTION_NAME).stream().map(SyncCheckpointDO::getPath).toList());
+                log.info("开始同步, username: {}, 已完成的目录数: {}", username, checkpointSet.size());
+                commonFileService.pushMessage(username, 1, SYNCED);
+                pool.invoke(new SyncDirAction(userRoot));
+                completed = true;
+            } catch (Exception e) {
+                log.error("同步失败, username: " + username, e);
+            } finally {
+                pool.shutdown();
+                if (completed) {
+                    // 同步完成, 删除检查点
+                    mongoTemplate.remove(Query.query(Criteria.where("username").is(username)), COLLECTION_NAME);
+                } else {
+                    flushCheckpoints(true);
+                }
+                SYNC_TASK_MAP.remove(username);
+                log.info("同步{}, username: {}, 目录数: {}, 耗时: {}s", completed ? "完成" : "中断", username, doneDirCount.get(), timeInterval.intervalSecond());
+                commonFileService.pushMessage(username, 100, SYNCED);
+            }
+        }
+
+        private class SyncDirAction extends RecursiveAction {
+
+            private final Path dir;
+
+            SyncDirAction(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                List<Path> subDirList = Collections.emptyList();
+                try {
+                    subDirList = syncDirectory(dir);
+                } catch (Exception e) {
+                    log.error("同步目录失败: " + dir, e);
+                }
+                discoveredDirCount.addAndGet(subDirList.size());
+                doneDirCount.incrementAndGet();
+                updatePercent();
+                // 当前目录已写入数据库后再处理子目录, 保证新建文件夹的大小统计正确
+                invokeAll(subDirList.stream().map(SyncDirAction::new).toList());
+            }
+        }
+
+        /***
+         * 同步一个目录下的文件
+         * @param dir 目录
+         * @return 子目录
+         */
+        private List<Path> syncDirectory(Path dir) throws IOException {
+            String relativePath = dir.toString().substring(userRoot.toString().length()) + File.separator;
+            boolean isUserRoot = File.separator.equals(relativePath);
+            // key: 文件名
+            Map<String, BasicFileAttributes> diskFileMap = new LinkedHashMap<>();
+            List<Path> subDirList = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (isUserRoot && CaffeineUtil.getOssPath(Paths.get(username, name)) != null) {
+                        // OSS目录
+                        continue;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subDirList.add(path);
+                    } else if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    diskFileMap.put(name, attributes);
+                }
+            }
+            if (checkpointSet.contains(relativePath)) {
+                return subDirList;
+            }
+            List<File> createFiles = new ArrayList<>();
+            List<File> changeFiles = new ArrayList<>();
+            List<File> deleteFiles = new ArrayList<>();
+            Map<String, FileDocument> fileDocumentMap = getFileDocumentMap(relativePath);
+            diskFileMap.forEach((name, attributes) -> {
+                FileDocument fileDocument = fileDocumentMap.remove(name);
+                if (fileDocument == null) {
+                    createFiles.add(dir.resolve(name).toFile());
+                } else if (attributes.isRegularFile() && isModified(fileDocument, attributes)) {
+                    changeFiles.add(dir.resolve(name).toFile());
+                }
+            });
+            // 磁盘上已经不存在的文件
+            getDeletedFileNames(fileDocumentMap.values()).forEach(name -> deleteFiles.add(dir.resolve(name).toFile()));
+            for (List<File> files : ListUtil.partition(createFiles, BATCH_SIZE)) {
+                commonFileService.batchFileChange(username, files, Collections.emptyList(), Collections.emptyList());
+            }
+            for (List<File> files : ListUtil.partition(changeFiles, BATCH_SIZE)) {
+                commonFileService.batchFileChange(username, Collections.emptyList(), files, Collections.emptyList());
+            }
+            for (List<File> files : ListUtil.partition(deleteFiles, BATCH_SIZE)) {
+                commonFileService.batchFileChange(username, Collections.emptyList(), Collections.emptyList(), files);
+            }
+            addCheckpoint(relativePath);
+            return subDirList;
+        }
+
+        private Map<String, FileDocument> getFileDocumentMap(String relativePath) {
+            Query query = new Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where("path").is(relativePath));
+            query.fields().include("name").include("size").include("updateDate").include("ossFolder").include("mountFileId");
+            Map<String, FileDocument> fileDocumentMap = new HashMap<>(16);
+            mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME).forEach(fileDocument -> fileDocumentMap.put(fileDocument.getName(), fileDocument));
+            return fileDocumentMap;
+        }
+
+        /***
+         * 大小不同或磁盘上的修改时间晚于数据库中的修改时间
+         */
+        private boolean isModified(FileDocument fileDocument, BasicFileAttributes attributes) {
+            if (fileDocument.getSize() != attributes.size()) {
+                return true;
+            }
+            LocalDateTime updateDate = fileDocument.getUpdateDate();
+            if (updateDate == null) {
+                return true;
+            }
+            LocalDateTime lastModifiedTime = LocalDateTimeUtil.of(attributes.lastModifiedTime().toInstant()).truncatedTo(ChronoUnit.MILLIS);
+            return updateDate.truncatedTo(ChronoUnit.MILLIS).isBefore(lastModifiedTime);
+        }
+
+        private void addCheckpoint(String relativePath) {
+            synchronized (pendingCheckpoints) {
+                pendingCheckpoints.add(new SyncCheckpointDO().setUsername(username).setPath(relativePath));
+            }
+            flushCheckpoints(false);
+        }
+
+        /***
+         * 写入检查点
+         * @param force 不够一批时也写入
+         */
+        private void flushCheckpoints(boolean force) {
+            List<SyncCheckpointDO> list;
+            synchronized (pendingCheckpoints) {
+                if (pendingCheckpoints.isEmpty() || (!force && pendingCheckpoints.size() < CHECKPOINT_BATCH_SIZE)) {
+                    return;
+                }
+                list = new ArrayList<>(pendingCheckpoints);
+                pendingCheckpoints.clear();
+            }
+            mongoTemplate.insert(list, COLLECTION_NAME);
+        }
+
+        /***
+         * 已发现的目录数会随着遍历增加, 进度只增不减, 完成前最多99
+         */
+        private void updatePercent() {
+            int currentPercent = (int) Math.min(99, doneDirCount.get() * 100 / discoveredDirCount.get());
+            int previous = percent.getAndAccumulate(currentPercent, Math::max);
+            if (currentPercent > previous) {
+                commonFileService.pushMessage(username, currentPercent, SYNCED);
+            }
+        }
+    }
+}
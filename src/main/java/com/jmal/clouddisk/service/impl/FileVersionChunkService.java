@@ -0,0 +1,337 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.jmal.clouddisk.util.FileVersionCodec;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.result.UpdateResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonNull;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * @author jmal
+ * @Description 历史版本的分块存储
+ * 文件按内容切分为块(gear滚动哈希, 内容不变的部分切出的块也不变), 每个块按sha256只存一份, 带引用计数.
+ * 历史版本在GridFS中只保存块的清单(每行一个sha256), 读取时按清单逐块读取, 内存中只有一个块
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class FileVersionChunkService {
+
+    public static final String COLLECTION_NAME = "fileVersionChunk";
+
+    /***
+     * 分块存储的历史版本, metadata.compression 的值
+     */
+    public static final String CHUNKED = "chunked";
+
+    private static final String DATA = "data";
+
+    private static final String SIZE = "size";
+
+    private static final String COMPRESSION = "compression";
+
+    private static final String REF_COUNT = "refCount";
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /***
+     * 哈希的高16位为0时切分, 平均块大小约为 MIN_CHUNK_SIZE + 64KB
+     */
+    private static final long CUT_MASK = 0xFFFFL << 48;
+
+    /***
+     * 每个字节对应的随机数, 种子固定, 重启后切分结果不变
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6a6d616cL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final MongoTemplate mongoTemplate;
+
+    /**
+     * 存储的结果
+     * @param hashes 块的sha256列表
+     * @param storedSize 新增的块的大小(去重、压缩后)
+     */
+    public record StoreResult(List<String> hashes, long storedSize) {
+        /**
+         * 块清单, 每行一个sha256
+         */
+        public byte[] getManifest() {
+            return String.join("\n", hashes).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 切分并存储块, 已存在的块只增加引用计数
+     *
+     * @param inputStream 文件内容
+     * @param codec       新块的压缩方式
+     * @return StoreResult
+     */
+    public StoreResult store(InputStream inputStream, FileVersionCodec codec) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long storedSize = 0;
+        try {
+            Chunker chunker = new Chunker(inputStream);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                String hash = DigestUtil.sha256Hex(chunk);
+                storedSize += storeChunk(hash, chunk, codec);
+                hashes.add(hash);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 已增加的引用计数
+            release(hashes);
+            throw e;
+        }
+        return new StoreResult(hashes, storedSize);
+    }
+
+    /**
+     * @return 新增的块的大小, 块已存在时返回0
+     */
+    private long storeChunk(String hash, byte[] chunk, FileVersionCodec codec) throws IOException {
+        Query query = Query.query(Criteria.where("_id").is(hash));
+        if (mongoTemplate.updateFirst(query, new Update().inc(REF_COUNT, 1), COLLECTION_NAME).getMatchedCount() > 0) {
+            return 0;
+        }
+        byte[] data = codec.encode(new ByteArrayInputStream(chunk)).readAllBytes();
+        Update update = new Update()
+                .inc(REF_COUNT, 1)
+                .setOnInsert(DATA, data)
+                .setOnInsert(SIZE, chunk.length)
+                .setOnInsert(COMPRESSION, codec.getValue());
+        UpdateResult updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
+        return updateResult.getUpsertedId() == null ? 0 : data.length;
+    }
+
+    /**
+     * 按清单读取历史版本
+     *
+     * @param manifest 清单的 inputStream
+     * @return 读取时逐块加载的 inputStream
+     */
+    public InputStream getInputStream(InputStream manifest) {
+        return new ChunkInputStream(manifest);
+    }
+
+    /**
+     * 读取清单中的所有块
+     *
+     * @param manifest 清单的 inputStream
+     * @return sha256列表
+     */
+    public List<String> readManifest(InputStream manifest) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8))) {
+            String hash;
+            while ((hash = reader.readLine()) != null) {
+                if (!CharSequenceUtil.isBlank(hash)) {
+                    hashes.add(hash);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * 删除历史版本后减少块的引用计数, 删除没有引用的块
+     *
+     * @param hashes 块清单
+     */
+    public void release(List<String> hashes) {
+        for (String hash : hashes) {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(hash)), new Update().inc(REF_COUNT, -1), COLLECTION_NAME);
+        }
+        for (String hash : hashes) {
+            // 引用计数的修改和删除是原子的, 同时又被引用的块不会被删除
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(hash).and(REF_COUNT).lte(0)), COLLECTION_NAME);
+        }
+    }
+
+    /**
+     * 用户历史版本的去重统计
+     *
+     * @param username   username
+     * @param collection 历史版本的collection
+     * @return 版本数、原始大小、实际存储大小和去重比
+     */
+    public Map<String, Object> getStats(String username, String collection) {
+        List<Bson> list = Arrays.asList(
+                match(and(eq("metadata.operator", username), eq("metadata.compression", CHUNKED))),
+                group(new BsonNull(), sum("count", 1), sum(SIZE, "$metadata.size"), sum("storedSize", "$metadata.storedSize")));
+        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(collection).aggregate(list);
+        Document doc = aggregateIterable.first();
+        long count = 0;
+        long size = 0;
+        long storedSize = 0;
+        if (doc != null) {
+            count = Convert.toLong(doc.get("count"), 0L);
+            size = Convert.toLong(doc.get(SIZE), 0L);
+            storedSize = Convert.toLong(doc.get("storedSize"), 0L);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("count", count);
+        stats.put(SIZE, size);
+        stats.put("storedSize", storedSize);
+        // 原始大小 / 实际存储大小, 块的大小计入第一个存储它的版本
+        stats.put("dedupRatio", storedSize == 0 ? 0 : (double) size / storedSize);
+        return stats;
+    }
+
+    private byte[] loadChunk(String hash) throws IOException {
+        Document doc = mongoTemplate.getCollection(COLLECTION_NAME).find(eq("_id", hash)).first();
+        if (doc == null) {
+            throw new IOException("历史版本数据不完整, 缺少块: " + hash);
+        }
+        Object data = doc.get(DATA);
+        byte[] bytes = data instanceof Binary binary ? binary.getData() : (byte[]) data;
+        try (InputStream inputStream = FileVersionCodec.of(doc.getString(COMPRESSION)).decode(new ByteArrayInputStream(bytes))) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    /**
+     * 按内容切分块, 块的大小在 MIN_CHUNK_SIZE 和 MAX_CHUNK_SIZE 之间
+     */
+    static class Chunker {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+        private int length;
+
+        private boolean eof;
+
+        Chunker(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return 下一个块, 没有时返回null
+         */
+        byte[] next() throws IOException {
+            fill();
+            if (length == 0) {
+                return null;
+            }
+            int cut = findCut();
+            byte[] chunk = Arrays.copyOf(buffer, cut);
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+            return chunk;
+        }
+
+        private void fill() throws IOException {
+            while (!eof && length < buffer.length) {
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    length += n;
+                }
+            }
+        }
+
+        private int findCut() {
+            if (length <= MIN_CHUNK_SIZE) {
+                return length;
+            }
+            long hash = 0;
+            // 哈希只和最近的64个字节有关, 从 MIN_CHUNK_SIZE 前64个字节开始计算
+            for (int i = MIN_CHUNK_SIZE - 64; i < length; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                if (i >= MIN_CHUNK_SIZE && (hash & CUT_MASK) == 0) {
+                    return i + 1;
+                }
+            }
+            return length;
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+
+        private final BufferedReader manifest;
+
+        private byte[] chunk;
+
+        private int position;
+
+        ChunkInputStream(InputStream manifest) {
+            this.manifest = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk == null || position >= chunk.length) {
+                String hash = manifest.readLine();
+                if (hash == null) {
+                    return -1;
+                }
+                if (CharSequenceUtil.isBlank(hash)) {
+                    continue;
+                }
+                chunk = loadChunk(hash);
+                position = 0;
+            }
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            manifest.close();
+        }
+    }
+}
@@ -19,6 +19,8 @@ import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.IFileVersionService;
 import com.jmal.clouddisk.util.CaffeineUtil;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import com.jmal.clouddisk.util.FileVersionCodec;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.mongodb.client.gridfs.model.GridFSFile;
@@ -54,8 +56,7 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -81,6 +82,8 @@ public class FileVersionServiceImpl implements IFileVersionService {
 
     private final UserLoginHolder userLoginHolder;
 
+    private final FileVersionChunkService fileVersionChunkService;
+
     @Override
     public void saveFileVersion(String username, String relativePath, String userId) {
         File file = new File(Paths.get(fileProperties.getRootDir(), username, relativePath).toString());
@@ -90,9 +93,8 @@ public class FileVersionServiceImpl implements IFileVersionService {
         String updateDate = fileDocument.getUpdateDate().format(DateTimeFormatter.ofPattern(DatePattern.NORM_DATETIME_PATTERN));
         Metadata metadata = setMetadata(size, filepath, file.getName(), updateDate, userLoginHolder.getUsername());
         if (metadata == null) return;
-        try (InputStream inputStream = new FileInputStream(file);
-             InputStream gzipInputStream = gzipCompress(inputStream, metadata)) {
-            gridFsTemplate.store(gzipInputStream, fileDocument.getId(), metadata);
+        try (InputStream inputStream = new FileInputStream(file)) {
+            storeFileVersion(inputStream, fileDocument.getId(), metadata);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
@@ -105,14 +107,33 @@ public class FileVersionServiceImpl implements IFileVersionService {
         String updateDate = DateUtil.format(abstractOssObject.getFileInfo().getLastModified(), DateTimeFormatter.ofPattern(DatePattern.NORM_DATETIME_PATTERN));
         Metadata metadata = setMetadata(size, fileId, filename, updateDate, userLoginHolder.getUsername());
         if (metadata == null) return;
-        try (InputStream inputStream = abstractOssObject.getInputStream();
-             InputStream gzipInputStream = gzipCompress(inputStream, metadata)) {
-            gridFsTemplate.store(gzipInputStream, fileId, metadata);
+        try (InputStream inputStream = abstractOssObject.getInputStream()) {
+            storeFileVersion(inputStream, fileId, metadata);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
     }
 
+    /**
+     * 分块去重存储, GridFS中只保存块清单
+     *
+     * @param inputStream 文件内容
+     * @param fileId      fileId
+     * @param metadata    自定义元数据
+     */
+    private void storeFileVersion(InputStream inputStream, String fileId, Metadata metadata) throws IOException {
+        FileVersionCodec codec = FileVersionCodec.of(metadata.getCompression());
+        FileVersionChunkService.StoreResult storeResult = fileVersionChunkService.store(inputStream, codec);
+        metadata.setCompression(FileVersionChunkService.CHUNKED);
+        metadata.setStoredSize(storeResult.storedSize());
+        try {
+            gridFsTemplate.store(new ByteArrayInputStream(storeResult.getManifest()), fileId, metadata);
+        } catch (RuntimeException e) {
+            fileVersionChunkService.release(storeResult.hashes());
+            throw e;
+        }
+    }
+
     /**
      * 设置历史文件自定义元数据
      *
@@ -120,8 +141,9 @@ public class FileVersionServiceImpl implements IFileVersionService {
      * @param filepath   filepath(以username开头)
      * @param filename   filename
      * @param updateDate 文件最后修改时间
+     * @return 不需要保存历史版本时返回null
      */
-    private static Metadata setMetadata(long size, String filepath, String filename, String updateDate, String username) {
+    private Metadata setMetadata(long size, String filepath, String filename, String updateDate, String username) {
         Metadata metadata = new Metadata();
         metadata.setFilepath(filepath);
         metadata.setFilename(filename);
@@ -132,8 +154,14 @@ public class FileVersionServiceImpl implements IFileVersionService {
             // 无内容，不用存历史版本
             return null;
         }
-        if (size >= 1024) {
-            metadata.setCompression("gzip");
+        Long maxSize = fileProperties.getFileVersionMaxSize();
+        if (maxSize != null && maxSize > 0 && size > maxSize * 1024 * 1024) {
+            log.info("文件超过{}MB, 不保存历史版本: {}", maxSize, filepath);
+            return null;
+        }
+        FileVersionCodec codec = FileVersionCodec.of(fileProperties.getFileVersionCompression());
+        if (codec != FileVersionCodec.NONE && size >= 1024 && FileVersionCodec.isCompressible(FileContentTypeUtils.getContentType(FileUtil.extName(filename)))) {
+            metadata.setCompression(codec.getValue());
         }
         return metadata;
     }
@@ -154,7 +182,14 @@ public class FileVersionServiceImpl implements IFileVersionService {
 
     private InputStream getInputStream(GridFSFile gridFSFile) throws IOException {
         GridFsResource gridFsResource = gridFsTemplate.getResource(gridFSFile);
-        return gzipDecompress(gridFsResource.getInputStream(), gridFSFile.getMetadata());
+        if (isChunked(gridFSFile)) {
+            return fileVersionChunkService.getInputStream(gridFsResource.getInputStream());
+        }
+        return decode(gridFsResource.getInputStream(), gridFSFile.getMetadata());
+    }
+
+    private static boolean isChunked(GridFSFile gridFSFile) {
+        return gridFSFile.getMetadata() != null && FileVersionChunkService.CHUNKED.equals(gridFSFile.getMetadata().getString("compression"));
     }
 
     @Nullable
@@ -224,7 +259,8 @@ public class FileVersionServiceImpl implements IFileVersionService {
         if (fileDocument == null) {
             return null;
         }
-        fileDocument.setSize(gridFSFile.getLength());
+        Object size = gridFSFile.getMetadata().get("size");
+        fileDocument.setSize(size instanceof Number number ? number.longValue() : gridFSFile.getLength());
         fileDocument.setName(gridFSFile.getMetadata().getString(Constants.FILENAME));
         Charset charset = getCharset(gridFSFile);
         try (InputStream inputStream = getInputStream(gridFSFile)) {
@@ -276,7 +312,7 @@ public class FileVersionServiceImpl implements IFileVersionService {
         try {
             Query query = new Query();
             query.addCriteria(Criteria.where(Constants.FILENAME).in(fileIds));
-            gridFsTemplate.delete(query);
+            delete(query);
         } catch (Exception e) {
             // ignore
         }
@@ -287,7 +323,7 @@ public class FileVersionServiceImpl implements IFileVersionService {
         try {
             Query query = new Query();
             query.addCriteria(Criteria.where(Constants.FILENAME).is(fileId));
-            gridFsTemplate.delete(query);
+            delete(query);
         } catch (Exception e) {
             // ignore
         }
@@ -298,12 +334,35 @@ public class FileVersionServiceImpl implements IFileVersionService {
         try {
             Query query = new Query();
             query.addCriteria(Criteria.where("_id").is(id));
-            gridFsTemplate.delete(query);
+            delete(query);
         } catch (Exception e) {
             // ignore
         }
     }
 
+    /**
+     * 删除历史版本, 分块存储的版本删除后减少块的引用计数
+     *
+     * @param query 历史版本的查询条件
+     */
+    private void delete(Query query) throws IOException {
+        for (GridFSFile gridFSFile : gridFsTemplate.find(query)) {
+            List<String> hashes = null;
+            if (isChunked(gridFSFile)) {
+                hashes = fileVersionChunkService.readManifest(gridFsTemplate.getResource(gridFSFile).getInputStream());
+            }
+            gridFsTemplate.delete(new Query().addCriteria(Criteria.where("_id").is(gridFSFile.getObjectId())));
+            if (hashes != null) {
+                fileVersionChunkService.release(hashes);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return fileVersionChunkService.getStats(userLoginHolder.getUsername(), COLLECTION_NAME);
+    }
+
     @Override
     public void rename(String sourceFileId, String destinationFileId) {
         Query query = new Query();
@@ -342,7 +401,10 @@ public class FileVersionServiceImpl implements IFileVersionService {
             Query query = new Query().addCriteria(Criteria.where("_id").is(fileId));
             Update update = new Update();
             update.set("updateDate", time);
+            update.set("size", file.length());
             mongoTemplate.updateFirst(query, update, FileDocument.class);
+            // 更新上级目录的大小和用户已使用的空间
+            commonFileService.updateSize(fileDocument.getUserId(), fileDocument.getPath(), file.length() - fileDocument.getSize());
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
@@ -355,7 +417,9 @@ public class FileVersionServiceImpl implements IFileVersionService {
         if (gridFSFile == null || gridFSFile.getMetadata() == null) {
             return ResponseEntity.notFound().build();
         }
-        try (InputStream inputStream = getInputStream(gridFSFile)) {
+        try {
+            // 响应写完后由InputStreamResource关闭
+            InputStream inputStream = getInputStream(gridFSFile);
             String filename = gridFSFile.getMetadata().getString(Constants.FILENAME);
             HttpHeaders headers = new HttpHeaders();
             headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=" + UriUtils.encode(filename, StandardCharsets.UTF_8));
@@ -370,51 +434,17 @@ public class FileVersionServiceImpl implements IFileVersionService {
     }
 
     /**
-     * gzip压缩
-     *
-     * @param inputStream 原始 inputStream
-     * @param metadata    自定义元数据
-     * @return 压缩后的 inputStream
-     */
-    public static InputStream gzipCompress(InputStream inputStream, Metadata metadata) {
-        if (metadata != null && !"gzip".equals(metadata.getCompression())) {
-            return inputStream;
-        }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = inputStream.read(buffer)) > 0) {
-                gzipOut.write(buffer, 0, len);
-            }
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-        }
-        return new ByteArrayInputStream(out.toByteArray());
-    }
-
-    /**
-     * gzip解压
+     * 按元数据中的压缩方式解压, 读取时解压(分块存储之前的历史版本)
      *
      * @param inputStream 压缩后的 inputStream
      * @param metadata    自定义元数据
      * @return 解压后的 inputStream
      */
-    public static InputStream gzipDecompress(InputStream inputStream, Document metadata) {
-        if (metadata != null && !"gzip".equals(metadata.get("compression"))) {
-            return inputStream;
-        }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try (GZIPInputStream gzipIn = new GZIPInputStream(inputStream)) {
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = gzipIn.read(buffer)) > 0) {
-                out.write(buffer, 0, len);
-            }
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
+    public static InputStream decode(InputStream inputStream, Document metadata) throws IOException {
+        if (metadata == null) {
+            return FileVersionCodec.GZIP.decode(inputStream);
         }
-        return new ByteArrayInputStream(out.toByteArray());
+        return FileVersionCodec.of(metadata.getString("compression")).decode(inputStream);
     }
 
 }
@@ -0,0 +1,153 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @Description 衍生图片缓存(剪裁、webp)
+ * 按(源文件, 修改时间, 大小, 操作, 参数)生成的图片存放在 ${rootDir}/${chunkFileDir}/${imageCache} 下,
+ * 总大小超过 imageCacheSize 后淘汰最少使用的. 相同的并发请求只生成一次
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class ImageCacheService {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @Autowired
+    FileProperties fileProperties;
+
+    private Path cacheDir;
+
+    /***
+     * key: 相对于cacheDir的路径, value: 文件大小
+     */
+    private Cache<String, Long> cache;
+
+    /***
+     * 正在生成的图片, 避免并发请求重复生成
+     */
+    private final Map<String, Object> generatingMap = new ConcurrentHashMap<>(16);
+
+    public interface RenditionWriter {
+        void write(File tempFile) throws IOException;
+    }
+
+    @PostConstruct
+    public void init() {
+        cacheDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getImageCache());
+        long maximumWeight = Math.max(1L, fileProperties.getImageCacheSize()) * 1024 * 1024;
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String key, Long size) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1L, size)))
+                .executor(Runnable::run)
+                .removalListener((String key, Long size, RemovalCause cause) -> {
+                    if (key != null && cause != RemovalCause.REPLACED) {
+                        delete(cacheDir.resolve(key));
+                    }
+                })
+                .build();
+        ThreadUtil.execute(this::loadCacheDir);
+    }
+
+    /***
+     * 获取衍生图片, 不存在时生成
+     * @param file 源文件
+     * @param format 生成图片的格式(扩展名)
+     * @param writer 生成图片, 写入到给定的临时文件
+     * @param params 操作和参数, 例如: crop, w, h, q
+     * @return 生成失败时返回null
+     */
+    public Path getRendition(File file, String format, RenditionWriter writer, Object... params) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        String hash = SecureUtil.md5(file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length() + ":"
+                + Arrays.stream(params).map(String::valueOf).collect(Collectors.joining(":")));
+        String key = hash.substring(0, 2) + File.separator + hash + "." + format;
+        Path rendition = cacheDir.resolve(key);
+        if (cache.getIfPresent(key) != null && Files.exists(rendition)) {
+            return rendition;
+        }
+        Object lock = generatingMap.computeIfAbsent(key, k -> new Object());
+        try {
+            synchronized (lock) {
+                if (Files.exists(rendition)) {
+                    cache.put(key, rendition.toFile().length());
+                    return rendition;
+                }
+                Files.createDirectories(rendition.getParent());
+                Path tempFile = rendition.resolveSibling(rendition.getFileName() + TEMP_SUFFIX);
+                try {
+                    writer.write(tempFile.toFile());
+                    if (!Files.exists(tempFile) || Files.size(tempFile) == 0) {
+                        return null;
+                    }
+                    Files.move(tempFile, rendition, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+                cache.put(key, rendition.toFile().length());
+                return rendition;
+            }
+        } catch (Exception e) {
+            log.warn("生成图片失败: {}, {}", file.getAbsolutePath(), e.getMessage());
+            return null;
+        } finally {
+            generatingMap.remove(key, lock);
+        }
+    }
+
+    /***
+     * 启动时加载已有的缓存, 先加载旧的, 超出大小时会先淘汰旧的
+     */
+    private void loadCacheDir() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(cacheDir)) {
+            List<File> files = stream.filter(Files::isRegularFile).map(Path::toFile).sorted(Comparator.comparingLong(File::lastModified)).toList();
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    delete(file.toPath());
+                } else {
+                    cache.get(cacheDir.relativize(file.toPath()).toString(), key -> file.length());
+                }
+            }
+            log.info("图片缓存: {}个文件", cache.estimatedSize());
+        } catch (IOException e) {
+            log.warn("加载图片缓存失败: {}", e.getMessage());
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("删除图片缓存失败: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.util.FastImageInfo;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.filters.ImageFilter;
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.ExifUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description 图片处理
+ * 图片的解码和编码都在这里的固定线程池中执行, 并按解码后的像素数限制同时处理的图片:
+ * 提交前用 FastImageInfo 读取宽高估算像素数, 像素配额不够时等待, 超过总配额或等待超时时拒绝
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class ImageProcessService {
+
+    /***
+     * 每个像素占用的内存(ARGB)
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /***
+     * 读取不到宽高时按该像素数估算
+     */
+    private static final long DEFAULT_PIXELS = 4096L * 4096;
+
+    /***
+     * 等待像素配额的最长时间
+     */
+    private static final long MAX_WAIT_MILLIS = 30000;
+
+    private ThreadPoolExecutor executor;
+
+    /***
+     * 像素配额, 堆内存的1/4
+     */
+    private long pixelBudget;
+
+    /***
+     * 已占用的像素数, 由this保护
+     */
+    private long usedPixels;
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private final LongAdder completed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder totalLatency = new LongAdder();
+
+    private final AtomicLong maxLatency = new AtomicLong(0);
+
+    public interface ImageTask<T> {
+        T call() throws IOException;
+    }
+
+    @PostConstruct
+    public void init() {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = (ThreadPoolExecutor) ThreadUtil.newFixedExecutor(workers, Integer.MAX_VALUE, "imageProcess", true);
+        pixelBudget = Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_PIXEL;
+        log.info("图片处理线程数: {}, 像素配额: {}", workers, pixelBudget);
+    }
+
+    /***
+     * 估算解码整个图片的像素数
+     * @param file 图片
+     */
+    public static long estimatePixels(File file) {
+        return estimatePixels(file, 0);
+    }
+
+    /***
+     * 估算按目标尺寸降采样解码的像素数
+     * @param file 图片
+     * @param targetSize 目标尺寸, 小于等于0时不降采样
+     */
+    public static long estimatePixels(File file, int targetSize) {
+        try {
+            FastImageInfo imageInfo = new FastImageInfo(file);
+            int subsampling = getSubsampling(imageInfo.getWidth(), imageInfo.getHeight(), targetSize);
+            return Math.max(1L, (long) imageInfo.getWidth() * imageInfo.getHeight() / ((long) subsampling * subsampling));
+        } catch (IOException e) {
+            return DEFAULT_PIXELS;
+        }
+    }
+
+    /***
+     * 在图片处理线程池中执行, 当前线程等待执行结果
+     * @param pixels 估算的像素数
+     * @param task 任务
+     * @return 任务的结果
+     * @throws IOException 图片过大、等待超时或任务失败
+     */
+    public <T> T execute(long pixels, ImageTask<T> task) throws IOException {
+        long startTime = System.currentTimeMillis();
+        acquire(pixels);
+        try {
+            Future<T> future = executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    release(pixels);
+                }
+            });
+            return future.get();
+        } catch (RejectedExecutionException e) {
+            release(pixels);
+            rejected.increment();
+            throw new IOException("图片处理队列已满");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            long latency = System.currentTimeMillis() - startTime;
+            completed.increment();
+            totalLatency.add(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    /***
+     * 按目标尺寸降采样解码, 并按EXIF旋转
+     * @param file 图片
+     * @param targetSize 目标尺寸, 解码后的宽或高不小于该值, 小于等于0时不降采样
+     * @return 不支持的格式返回null
+     */
+    public static BufferedImage read(File file, int targetSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), targetSize);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                Orientation orientation = getOrientation(reader);
+                if (orientation != null && orientation != Orientation.TOP_LEFT) {
+                    ImageFilter filter = ExifFilterUtils.getFilterForOrientation(orientation);
+                    image = filter.apply(image);
+                }
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Orientation getOrientation(ImageReader reader) {
+        try {
+            return ExifUtils.getExifOrientation(reader, 0);
+        } catch (Exception e) {
+            // 没有EXIF信息
+            return null;
+        }
+    }
+
+    private static int getSubsampling(int width, int height, int targetSize) {
+        if (targetSize <= 0 || width <= 0 || height <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.min(width, height) / targetSize);
+    }
+
+    private synchronized void acquire(long pixels) throws IOException {
+        if (pixels > pixelBudget) {
+            rejected.increment();
+            throw new IOException("图片过大: " + pixels + "像素");
+        }
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+        waiting.incrementAndGet();
+        try {
+            while (usedPixels + pixels > pixelBudget) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    rejected.increment();
+                    throw new IOException("图片处理繁忙, 请稍后再试");
+                }
+                wait(timeout);
+            }
+            usedPixels += pixels;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private synchronized void release(long pixels) {
+        usedPixels -= pixels;
+        notifyAll();
+    }
+
+    /***
+     * 图片处理的统计信息
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(16);
+        long count = completed.sum();
+        metrics.put("waiting", waiting.get());
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("active", executor.getActiveCount());
+        synchronized (this) {
+            metrics.put("usedPixels", usedPixels);
+        }
+        metrics.put("pixelBudget", pixelBudget);
+        metrics.put("completed", count);
+        metrics.put("rejected", rejected.sum());
+        metrics.put("avgLatencyMs", count == 0 ? 0 : totalLatency.sum() / count);
+        metrics.put("maxLatencyMs", maxLatency.get());
+        return metrics;
+    }
+
+    /***
+     * 每分钟输出一次统计信息, 没有处理过图片时不输出
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void logMetrics() {
+        if (completed.sum() == 0 && rejected.sum() == 0) {
+            return;
+        }
+        log.info("图片处理: {}", getMetrics());
+        completed.reset();
+        rejected.reset();
+        totalLatency.reset();
+        maxLatency.set(0);
+    }
+}
@@ -0,0 +1,219 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.model.LogOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * @author jmal
+ * @Description 操作日志批量写入
+ * 请求线程只把日志放入有界队列, 由一个写入线程补全日志(用户名称、UserAgent、ip信息)后批量插入,
+ * 攒够 BATCH_SIZE 条或距离第一条超过 FLUSH_INTERVAL_MILLIS 时写入一次, 写入后累加访问计数. 队列满时丢弃日志并计数, 不阻塞请求
+ */
+@Slf4j
+public class LogBatchWriter {
+
+    /***
+     * 队列容量
+     */
+    private static final int CAPACITY = 8192;
+
+    /***
+     * 每批最多写入的条数
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /***
+     * 每批最长等待时间
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /***
+     * 丢弃日志时, 警告的最小间隔
+     */
+    private static final long DROP_WARN_INTERVAL_MILLIS = 60000;
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * 待写入的日志
+     * @param logOperation 操作日志
+     * @param userAgent 请求头中的User-Agent, 写入前解析
+     */
+    public record PendingLog(LogOperation logOperation, String userAgent) {
+    }
+
+    private final MongoTemplate mongoTemplate;
+
+    /***
+     * 写入前补全日志, 在写入线程中执行
+     */
+    private final Consumer<PendingLog> enricher;
+
+    /***
+     * 写入成功后, 在写入线程中执行
+     */
+    private final Consumer<List<LogOperation>> afterWrite;
+
+    private final BlockingQueue<PendingLog> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    private final LongAdder offered = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final AtomicLong lastDropWarnTime = new AtomicLong(0);
+
+    public LogBatchWriter(MongoTemplate mongoTemplate, Consumer<PendingLog> enricher, Consumer<List<LogOperation>> afterWrite) {
+        this.mongoTemplate = mongoTemplate;
+        this.enricher = enricher;
+        this.afterWrite = afterWrite;
+        this.writerThread = ThreadUtil.newThread(this::run, "logWriter", true);
+        this.writerThread.start();
+    }
+
+    /**
+     * 放入队列, 不阻塞
+     * @param logOperation 操作日志
+     * @param userAgent User-Agent
+     * @return 队列已满时返回false, 日志被丢弃
+     */
+    public boolean offer(LogOperation logOperation, String userAgent) {
+        offered.increment();
+        if (running && queue.offer(new PendingLog(logOperation, userAgent))) {
+            return true;
+        }
+        dropped.increment();
+        long now = System.currentTimeMillis();
+        long last = lastDropWarnTime.get();
+        if (now - last >= DROP_WARN_INTERVAL_MILLIS && lastDropWarnTime.compareAndSet(last, now)) {
+            log.warn("操作日志队列已满, 已丢弃{}条日志", dropped.sum());
+        }
+        return false;
+    }
+
+    private void run() {
+        List<PendingLog> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (running) {
+                PendingLog first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fillBatch(batch);
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 停止, 写入队列中剩下的日志
+        queue.drainTo(batch);
+        for (int i = 0; i < batch.size(); i += BATCH_SIZE) {
+            write(batch.subList(i, Math.min(i + BATCH_SIZE, batch.size())));
+        }
+    }
+
+    /**
+     * 攒批, 直到批满或超过等待时间
+     */
+    private void fillBatch(List<PendingLog> batch) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+        while (batch.size() < BATCH_SIZE) {
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            long timeout = deadline - System.currentTimeMillis();
+            if (batch.size() >= BATCH_SIZE || timeout <= 0 || !running) {
+                return;
+            }
+            PendingLog next = queue.poll(timeout, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<PendingLog> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<LogOperation> logOperationList = new ArrayList<>(batch.size());
+        for (PendingLog pendingLog : batch) {
+            try {
+                enricher.accept(pendingLog);
+            } catch (Exception e) {
+                log.warn("补全操作日志失败: {}", e.getMessage());
+            }
+            logOperationList.add(pendingLog.logOperation());
+        }
+        batches.increment();
+        try {
+            mongoTemplate.insert(logOperationList, LogOperation.class);
+            written.add(logOperationList.size());
+        } catch (Exception e) {
+            failed.add(logOperationList.size());
+            log.error("写入操作日志失败, {}条: {}", logOperationList.size(), e.getMessage());
+            return;
+        }
+        try {
+            afterWrite.accept(logOperationList);
+        } catch (Exception e) {
+            log.warn("操作日志写入后的处理失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 停止写入线程, 等待队列中的日志写完
+     * 不中断写入线程, 以免中断正在进行的插入, 写入线程最多等待 FLUSH_INTERVAL_MILLIS 后发现已停止
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            writerThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            log.warn("操作日志写入超时, 队列中还有{}条日志", queue.size());
+        }
+    }
+
+    /***
+     * 队列和写入的统计信息
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(16);
+        long batchCount = batches.sum();
+        metrics.put("queued", queue.size());
+        metrics.put("capacity", CAPACITY);
+        metrics.put("offered", offered.sum());
+        metrics.put("written", written.sum());
+        metrics.put("dropped", dropped.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("batches", batchCount);
+        metrics.put("avgBatchSize", batchCount == 0 ? 0 : (written.sum() + failed.sum()) / batchCount);
+        return metrics;
+    }
+}
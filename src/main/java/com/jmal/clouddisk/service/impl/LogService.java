@@ -2,31 +2,56 @@ package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.net.URLDecoder;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.http.useragent.UserAgent;
 import cn.hutool.http.useragent.UserAgentUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.LogOperationDTO;
+import com.jmal.clouddisk.model.VisitCounterDO;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.util.TimeUntils;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.result.DeleteResult;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.lionsoul.ip2region.xdb.Searcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static com.mongodb.client.model.Filters.lt;
 
 /**
  * @author jmal
@@ -37,10 +62,19 @@ import java.util.List;
 @Slf4j
 public class LogService {
 
+    public static final String COLLECTION_NAME = "log";
+
     private static final int REGION_LENGTH = 5;
 
     private static final String REGION_DEFAULT = "0";
 
+    /***
+     * 缓存的UserAgent解析结果数
+     */
+    private static final int USER_AGENT_CACHE_SIZE = 1024;
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM");
+
     @Autowired
     private MongoTemplate mongoTemplate;
 
@@ -53,8 +87,28 @@ public class LogService {
     @Autowired
     private FileProperties fileProperties;
 
+    @Autowired
+    private VisitCounterService visitCounterService;
+
     private Searcher ipSearcher = null;
 
+    private LogBatchWriter logBatchWriter;
+
+    /***
+     * UserAgent的解析结果, 同一客户端的请求头相同
+     */
+    private final Cache<String, UserAgent> userAgentCache = Caffeine.newBuilder().maximumSize(USER_AGENT_CACHE_SIZE).recordStats().build();
+
+    @PostConstruct
+    public void initLogBatchWriter() {
+        logBatchWriter = new LogBatchWriter(mongoTemplate, this::enrich, visitCounterService::increment);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        logBatchWriter.shutdown();
+    }
+
     @PostConstruct
     public void initIpDbSearcher() {
         String ip2regionDbPath = fileProperties.getIp2regionDbPath();
@@ -73,7 +127,7 @@ public class LogService {
     }
 
     /***
-     * 存储操作日志前
+     * 存储操作日志前, 只读取请求中的信息, 其余的在写入线程中补全
      * @param logOperation 操作日志 包含参数:(time,username,operationModule,operationFun,type)
      * @param result 操作方法返回值
      * @param request HttpServletRequest
@@ -81,18 +135,7 @@ public class LogService {
      */
     @SuppressWarnings("unchecked")
     public void addLogBefore(LogOperation logOperation, Object result, HttpServletRequest request, HttpServletResponse response) {
-        // 用户
-        String username = logOperation.getUsername();
-        if (!CharSequenceUtil.isBlank(username)) {
-            logOperation.setShowName(userService.getShowNameByUserUsername(username));
-        }
-        // UserAgent
-        UserAgent userAgent = UserAgentUtil.parse(request.getHeader("User-Agent"));
-        if (userAgent != null) {
-            logOperation.setOperatingSystem(userAgent.getOs().getName());
-            logOperation.setDeviceModel(userAgent.getPlatform().getName());
-            logOperation.setBrowser(userAgent.getBrowser().getName() + userAgent.getVersion());
-        }
+        logOperation.setCreateTime(LocalDateTime.now(TimeUntils.ZONE_ID));
         // 请求地址
         logOperation.setUrl(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         // 请求方式
@@ -100,7 +143,6 @@ public class LogService {
         // 客户端ip
         String ip = getIpAddress(request);
         logOperation.setIp(ip);
-        setIpInfo(logOperation, ip);
         // 返回结果
         logOperation.setStatus(0);
         ResponseResult<Object> responseResult;
@@ -117,7 +159,29 @@ public class LogService {
                 setStatus(logOperation, response);
             }
         }
-        ThreadUtil.execute(() -> addLog(logOperation));
+        logBatchWriter.offer(logOperation, request.getHeader("User-Agent"));
+    }
+
+    /***
+     * 补全日志: 用户名称、UserAgent、ip信息, 在写入线程中执行
+     * @param pendingLog 待写入的日志
+     */
+    private void enrich(LogBatchWriter.PendingLog pendingLog) {
+        LogOperation logOperation = pendingLog.logOperation();
+        // 用户
+        String username = logOperation.getUsername();
+        if (!CharSequenceUtil.isBlank(username)) {
+            logOperation.setShowName(userService.getShowNameByUserUsername(username));
+        }
+        // UserAgent
+        String userAgentStr = pendingLog.userAgent();
+        UserAgent userAgent = CharSequenceUtil.isBlank(userAgentStr) ? null : userAgentCache.get(userAgentStr, UserAgentUtil::parse);
+        if (userAgent != null) {
+            logOperation.setOperatingSystem(userAgent.getOs().getName());
+            logOperation.setDeviceModel(userAgent.getPlatform().getName());
+            logOperation.setBrowser(userAgent.getBrowser().getName() + userAgent.getVersion());
+        }
+        setIpInfo(logOperation, logOperation.getIp());
     }
 
     private String getIpAddress(HttpServletRequest request) {
@@ -207,9 +271,13 @@ public class LogService {
         }
     }
 
-    public void addLog(LogOperation logOperation) {
-        logOperation.setCreateTime(LocalDateTime.now(TimeUntils.ZONE_ID));
-        mongoTemplate.save(logOperation);
+    /***
+     * 操作日志写入的统计信息
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = logBatchWriter.getMetrics();
+        metrics.put("userAgentCacheHitRate", userAgentCache.stats().hitRate());
+        return metrics;
     }
 
     public ResponseResult<List<LogOperation>> list(LogOperationDTO logOperationDTO) {
@@ -294,8 +362,77 @@ public class LogService {
      * @return 访问次数
      */
     public long getVisitsByUrl(String url) {
-        Query query = new Query();
-        query.addCriteria(Criteria.where("url").is(url));
-        return mongoTemplate.count(query, LogOperation.class);
+        return visitCounterService.getVisits(url);
+    }
+
+    /***
+     * 获取url每天的访问次数
+     * @param url url
+     * @param startDay 开始日期(包含), 例如: 2023-05-01
+     * @param endDay 结束日期(包含), 例如: 2023-05-31
+     */
+    public List<VisitCounterDO> getDailyVisits(String url, String startDay, String endDay) {
+        return visitCounterService.getDailyVisits(url, startDay, endDay);
+    }
+
+    /***
+     * 清理超过保留天数的日志, 清理前按月追加到归档文件
+     * 每天凌晨3点30分执行
+     */
+    @Scheduled(cron = "0 30 3 * * ?")
+    public void cleanExpiredLog() {
+        Integer retentionDays = fileProperties.getLogRetentionDays();
+        if (retentionDays == null || retentionDays <= 0) {
+            return;
+        }
+        Date expireTime = Date.from(LocalDateTime.now(TimeUntils.ZONE_ID).minusDays(retentionDays).atZone(TimeUntils.ZONE_ID).toInstant());
+        Bson filter = lt(Constants.CREATE_TIME, expireTime);
+        MongoCollection<Document> collection = mongoTemplate.getCollection(COLLECTION_NAME);
+        if (collection.find(filter).first() == null) {
+            return;
+        }
+        if (Boolean.TRUE.equals(fileProperties.getLogArchive())) {
+            try {
+                archiveLog(collection, filter);
+            } catch (IOException e) {
+                // 归档失败时不删除
+                log.error("归档日志失败: {}", e.getMessage(), e);
+                return;
+            }
+        }
+        DeleteResult deleteResult = collection.deleteMany(filter);
+        log.info("清理{}天前的日志: {}条", retentionDays, deleteResult.getDeletedCount());
+    }
+
+    /***
+     * 归档日志, 按月追加到 ${rootDir}/${chunkFileDir}/${logArchiveDir}/log-yyyy-MM.json.gz, 每行一条日志
+     */
+    private void archiveLog(MongoCollection<Document> collection, Bson filter) throws IOException {
+        Path archiveDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getLogArchiveDir());
+        Files.createDirectories(archiveDir);
+        Map<String, Writer> writerMap = new HashMap<>(4);
+        long count = 0;
+        try (MongoCursor<Document> cursor = collection.find(filter).sort(new Document(Constants.CREATE_TIME, 1)).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                Date createTime = doc.getDate(Constants.CREATE_TIME);
+                String month = LocalDateTime.ofInstant(createTime.toInstant(), TimeUntils.ZONE_ID).format(MONTH_FORMAT);
+                Writer writer = writerMap.get(month);
+                if (writer == null) {
+                    // 追加时写入新的gzip成员, 多个成员的gzip文件可以直接解压
+                    OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(archiveDir.resolve(COLLECTION_NAME + "-" + month + ".json.gz").toFile(), true));
+                    writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                    writerMap.put(month, writer);
+                }
+                writer.write(doc.toJson());
+                writer.write('\n');
+                count++;
+            }
+        } finally {
+            for (Writer writer : writerMap.values()) {
+                writer.close();
+            }
+        }
+        log.info("归档日志: {}条, 月份: {}", count, writerMap.keySet());
     }
 }
@@ -2,11 +2,17 @@ package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.lang.Console;
 import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ArrayUtil;
+import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.ReUtil;
 import cn.hutool.http.HtmlUtil;
+import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.query.SearchDTO;
-import com.jmal.clouddisk.service.IFileService;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.MyFileUtils;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.util.StringUtil;
@@ -22,31 +28,90 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.highlight.*;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.extractor.ExtractorFactory;
+import org.apache.poi.extractor.POITextExtractor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * @author jmal
  * @Description LuceneService
+ * 文件新建、修改、删除时提交索引任务, 由有界线程池抽取文件内容(文本、markdown、pdf、office)后按id更新索引,
+ * 索引的修改定时提交, 不在每次修改时提交
  * @Date 2021/4/27 4:44 下午
  */
 @Service
 @Slf4j
 public class LuceneService {
 
+    private static final String FIELD_ID = "id";
+
+    private static final String FIELD_USER_ID = "userId";
+
+    private static final String FIELD_NAME = "name";
+
+    private static final String FIELD_CONTENT = "content";
+
+    /***
+     * 已发布的文章, 其他用户也可以搜索到
+     */
+    private static final String FIELD_RELEASE = "release";
+
+    /***
+     * 索引格式的版本, 和索引中提交的版本不一致时重建索引
+     */
+    private static final String INDEX_VERSION_KEY = "version";
+
+    private static final String INDEX_VERSION = "3";
+
+    /***
+     * 每个文件最多索引的字符数
+     */
+    private static final int MAX_CONTENT_LENGTH = 1024 * 1024;
+
+    /***
+     * pdf最多抽取的页数
+     */
+    private static final int MAX_PDF_PAGES = 1000;
+
+    private static final String PDF = "pdf";
+
+    private static final Set<String> OFFICE_SUFFIX = Set.of("doc", "docx", "xls", "xlsx", "ppt", "pptx");
+
     @Autowired(required = false)
     private IndexWriter indexWriter;
 
@@ -57,24 +122,260 @@ public class LuceneService {
     private SearcherManager searcherManager;
 
     @Autowired
-    private IFileService fileService;
-
-    public void createFileIndex(List<FileDocument> fileList) throws IOException {
-        List<Document> docs = new ArrayList<>();
-        for (FileDocument file : fileList) {
-            Document doc = new Document();
-            doc.add(new StringField("id", file.getId(), Field.Store.YES));
-            doc.add(new TextField("name", file.getName(), Field.Store.YES));
-            if (file.getHtml() != null) {
-                doc.add(new TextField("html", ReUtil.delAll("\\n", HtmlUtil.cleanHtmlTag(file.getHtml())), Field.Store.YES));
-                docs.add(doc);
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private IUserService userService;
+
+    @Autowired
+    private FileProperties fileProperties;
+
+    private ExecutorService executorService;
+
+    /***
+     * 已提交还没有开始处理的文件id, 同一个文件连续的多次修改只处理一次
+     */
+    private final Set<String> pendingIds = ConcurrentHashMap.newKeySet();
+
+    /***
+     * 等待处理的文件id, 和pendingIds一起使用, 同一个文件只排队一次
+     * 队列不限长度, 提交时不会阻塞请求线程; 长度不超过还没开始处理的不同文件数, 重建索引时由 REBUILD_MAX_PENDING 限制
+     */
+    private final BlockingQueue<String> indexQueue = new LinkedBlockingQueue<>();
+
+    /***
+     * 等待和正在处理的任务数
+     */
+    private final AtomicInteger runningCount = new AtomicInteger();
+
+    /***
+     * 重建索引时排队的任务超过该数量就等待
+     */
+    private static final int REBUILD_MAX_PENDING = 1000;
+
+    private volatile boolean running = true;
+
+    /***
+     * 上次提交后索引是否有修改
+     */
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        int processors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executorService = Executors.newFixedThreadPool(processors, ThreadUtil.newNamedThreadFactory("luceneIndex", false));
+        for (int i = 0; i < processors; i++) {
+            executorService.execute(this::processIndexQueue);
+        }
+        ThreadUtil.execute(this::rebuildIndexIfOutdated);
+    }
+
+    /***
+     * 是否抽取文件内容建立索引
+     * @param suffix 后缀名
+     */
+    public boolean isIndexable(String suffix) {
+        if (CharSequenceUtil.isBlank(suffix)) {
+            return false;
+        }
+        String lowerSuffix = suffix.toLowerCase();
+        return PDF.equals(lowerSuffix) || OFFICE_SUFFIX.contains(lowerSuffix) || ArrayUtil.contains(fileProperties.getSimText(), lowerSuffix);
+    }
+
+    /***
+     * 提交更新索引的任务, 文件已删除或不需要索引时删除该文件的索引
+     * 不会阻塞调用线程, 已在排队的文件不会重复加入队列
+     * @param fileId fileId
+     */
+    public void pushCreateIndexQueue(String fileId) {
+        if (!running || CharSequenceUtil.isBlank(fileId) || !pendingIds.add(fileId)) {
+            return;
+        }
+        runningCount.incrementAndGet();
+        indexQueue.offer(fileId);
+    }
+
+    /***
+     * 索引线程, 停止时处理完已排队的任务再退出
+     */
+    private void processIndexQueue() {
+        while (running || !indexQueue.isEmpty()) {
+            String fileId;
+            try {
+                fileId = indexQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
+            if (fileId == null) {
+                continue;
+            }
+            // 开始处理前移除, 处理期间的修改会再次提交
+            pendingIds.remove(fileId);
+            try {
+                updateIndex(fileId);
+            } catch (Exception e) {
+                log.warn("更新Lucene索引失败: {}, {}", fileId, e.getMessage());
+            } finally {
+                runningCount.decrementAndGet();
+            }
+        }
+    }
+
+    /***
+     * 删除文件的索引
+     * @param fileIds fileId列表
+     */
+    public void deleteIndexDocuments(Collection<String> fileIds) {
+        if (fileIds == null || fileIds.isEmpty()) {
+            return;
+        }
+        try {
+            indexWriter.deleteDocuments(fileIds.stream().map(fileId -> new Term(FIELD_ID, fileId)).toArray(Term[]::new));
+            changed.set(true);
+        } catch (IOException e) {
+            log.warn("删除Lucene索引失败: {}", e.getMessage());
+        }
+    }
+
+    /***
+     * 删除用户所有文件的索引
+     * @param userId userId
+     */
+    public void deleteIndexDocumentsByUserId(String userId) {
+        if (CharSequenceUtil.isBlank(userId)) {
+            return;
+        }
+        try {
+            indexWriter.deleteDocuments(new Term(FIELD_USER_ID, userId));
+            changed.set(true);
+        } catch (IOException e) {
+            log.warn("删除Lucene索引失败: {}", e.getMessage());
+        }
+    }
+
+    private void updateIndex(String fileId) throws IOException {
+        org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+        query.addCriteria(Criteria.where("_id").is(fileId));
+        query.fields().include(IUserService.USER_ID).include("path").include("name").include(Constants.SUFFIX)
+                .include(Constants.IS_FOLDER).include("html").include(Constants.RELEASE);
+        FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
+        Term term = new Term(FIELD_ID, fileId);
+        Document doc = fileDocument == null ? null : getIndexDocument(fileDocument);
+        if (doc == null) {
+            indexWriter.deleteDocuments(term);
+        } else {
+            indexWriter.updateDocument(term, doc);
         }
-        indexWriter.addDocuments(docs);
-        indexWriter.commit();
+        changed.set(true);
     }
 
-    public ResponseResult<List<FileDocument>> searchFile(SearchDTO searchDTO) throws IOException, ParseException, InvalidTokenOffsetsException {
+    /***
+     * 文件的索引, 不需要索引时返回null
+     */
+    private Document getIndexDocument(FileDocument fileDocument) {
+        if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
+            return null;
+        }
+        String content;
+        boolean release = fileDocument.getHtml() != null && BooleanUtil.isTrue(fileDocument.getRelease());
+        if (release) {
+            // 已发布的文章
+            content = ReUtil.delAll("\\n", HtmlUtil.cleanHtmlTag(fileDocument.getHtml()));
+        } else if (isIndexable(fileDocument.getSuffix())) {
+            content = extractContent(fileDocument);
+        } else {
+            return null;
+        }
+        Document doc = new Document();
+        doc.add(new StringField(FIELD_ID, fileDocument.getId(), Field.Store.YES));
+        if (fileDocument.getUserId() != null) {
+            doc.add(new StringField(FIELD_USER_ID, fileDocument.getUserId(), Field.Store.NO));
+        }
+        if (release) {
+            doc.add(new StringField(FIELD_RELEASE, Boolean.TRUE.toString(), Field.Store.NO));
+        }
+        doc.add(new TextField(FIELD_NAME, fileDocument.getName(), Field.Store.YES));
+        if (!CharSequenceUtil.isBlank(content)) {
+            doc.add(new TextField(FIELD_CONTENT, content, Field.Store.YES));
+        }
+        return doc;
+    }
+
+    /***
+     * 抽取文件内容, 文件不存在、超过大小限制或抽取失败时返回null, 只索引文件名
+     */
+    private String extractContent(FileDocument fileDocument) {
+        String username = userService.getUserNameById(fileDocument.getUserId());
+        if (CharSequenceUtil.isBlank(username)) {
+            return null;
+        }
+        File file = Paths.get(fileProperties.getRootDir(), username, fileDocument.getPath(), fileDocument.getName()).toFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        Long maxSize = fileProperties.getLuceneIndexMaxSize();
+        if (maxSize != null && maxSize > 0 && file.length() > maxSize * 1024 * 1024) {
+            return null;
+        }
+        String suffix = fileDocument.getSuffix().toLowerCase();
+        try {
+            String text;
+            if (PDF.equals(suffix)) {
+                text = readPdf(file);
+            } else if (OFFICE_SUFFIX.contains(suffix)) {
+                text = readOffice(file);
+            } else {
+                text = readText(file);
+            }
+            if (text == null) {
+                return null;
+            }
+            return CharSequenceUtil.sub(text, 0, MAX_CONTENT_LENGTH).replaceAll("\\s+", " ");
+        } catch (Exception e) {
+            log.warn("抽取文件内容失败: {}, {}", file.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static String readPdf(File file) throws IOException {
+        try (PDDocument document = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setEndPage(MAX_PDF_PAGES);
+            return stripper.getText(document);
+        }
+    }
+
+    /***
+     * 只支持poi-ooxml能解析的格式, 需要poi-scratchpad的doc、ppt抽取失败时只索引文件名
+     */
+    private static String readOffice(File file) throws IOException {
+        try (POITextExtractor extractor = ExtractorFactory.createExtractor(file)) {
+            return extractor == null ? null : extractor.getText();
+        }
+    }
+
+    /***
+     * 读取文本, 最多读取 MAX_CONTENT_LENGTH 个字符
+     */
+    private static String readText(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), MyFileUtils.getFileCharset(file))) {
+            int n;
+            while (text.length() < MAX_CONTENT_LENGTH && (n = reader.read(buffer, 0, Math.min(buffer.length, MAX_CONTENT_LENGTH - text.length()))) != -1) {
+                text.append(buffer, 0, n);
+            }
+        }
+        return text.toString();
+    }
+
+    /***
+     * 全文搜索, 只返回当前用户的文件和已发布的文章
+     * @param userId 当前用户id, 未登录时为null
+     * @param searchDTO 搜索参数
+     */
+    public ResponseResult<List<FileDocument>> searchFile(String userId, SearchDTO searchDTO) throws IOException, ParseException, InvalidTokenOffsetsException {
         // 模糊匹配,匹配词
         StringBuilder keyword = new StringBuilder(searchDTO.getKeyword());
         if (CharSequenceUtil.isBlank(keyword.toString())) {
@@ -83,12 +384,12 @@ public class LuceneService {
         searcherManager.maybeRefresh();
         IndexSearcher indexSearcher = searcherManager.acquire();
         List<FileDocument> fileList = new ArrayList<>();
-        String fieldName = "html";
+        String fieldName = FIELD_CONTENT;
         try {
-            String[] fields = new String[]{fieldName, "name"};
+            String[] fields = new String[]{fieldName, FIELD_NAME};
             Map<String, Float> boots = new HashMap<>(5);
             boots.put(fieldName, 10.0f);
-            boots.put("name", 2.0f);
+            boots.put(FIELD_NAME, 2.0f);
 
             MultiFieldQueryParser parser = new MultiFieldQueryParser(fields, analyzer, boots);
 
@@ -99,10 +400,19 @@ public class LuceneService {
                     keyword.append(" OR ").append(keywords[i]).append(StringUtil.isShortStr(keywords[i]) ? "*" : "");
                 }
             }
-            Query query = parser.parse(keyword.toString());
+            Query keywordQuery = parser.parse(keyword.toString());
+            BooleanQuery.Builder visible = new BooleanQuery.Builder();
+            visible.add(new TermQuery(new Term(FIELD_RELEASE, Boolean.TRUE.toString())), BooleanClause.Occur.SHOULD);
+            if (!CharSequenceUtil.isBlank(userId)) {
+                visible.add(new TermQuery(new Term(FIELD_USER_ID, userId)), BooleanClause.Occur.SHOULD);
+            }
+            Query query = new BooleanQuery.Builder()
+                    .add(keywordQuery, BooleanClause.Occur.MUST)
+                    .add(visible.build(), BooleanClause.Occur.FILTER)
+                    .build();
             // 高亮格式，用<B>标签包裹
             Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<B>", "</B>"),
-                    new QueryScorer(query));
+                    new QueryScorer(keywordQuery));
             // 高亮后的段落范围在100字内
             Fragmenter fragmenter = new SimpleFragmenter(100);
             highlighter.setTextFragmenter(fragmenter);
@@ -111,10 +421,10 @@ public class LuceneService {
             for (ScoreDoc hit : hits) {
                 Document doc = indexSearcher.doc(hit.doc);
                 FileDocument fileDocument = new FileDocument();
-                fileDocument.setId(doc.get("id"));
-                String name = highlighter.getBestFragment(analyzer, fieldName, doc.get("name"));
+                fileDocument.setId(doc.get(FIELD_ID));
+                String name = highlighter.getBestFragment(analyzer, fieldName, doc.get(FIELD_NAME));
                 if (CharSequenceUtil.isBlank(name)) {
-                    fileDocument.setName(doc.get("name"));
+                    fileDocument.setName(doc.get(FIELD_NAME));
                 } else {
                     fileDocument.setName(name);
                 }
@@ -151,22 +461,94 @@ public class LuceneService {
 
     }
 
-    @PostConstruct
-    public void synFileCreatIndex() throws IOException {
-        IndexWriter.DocStats docStats = indexWriter.getDocStats();
-        if (docStats.numDocs < 1) {
-            log.info("同步Lucene索引... {}", docStats.numDocs);
+    /***
+     * 定时提交索引的修改, 新的修改由SearcherManager刷新后即可搜索, 提交只用于持久化
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public void commitIndex() {
+        if (!changed.getAndSet(false)) {
+            return;
+        }
+        try {
+            indexWriter.commit();
+        } catch (IOException e) {
+            changed.set(true);
+            log.warn("提交Lucene索引失败: {}", e.getMessage());
+        }
+    }
+
+    /***
+     * 索引为空或索引格式的版本不一致时, 重建所有需要索引的文件
+     */
+    private void rebuildIndexIfOutdated() {
+        try {
+            if (INDEX_VERSION.equals(getIndexVersion())) {
+                return;
+            }
+            log.info("重建Lucene索引... {}", indexWriter.getDocStats().numDocs);
             long startTime = System.currentTimeMillis();
-            // 获取所有的file
-            List<FileDocument> allProduct = fileService.getAllDocFile();
-            // 再插入file
-            createFileIndex(allProduct);
-            log.info("同步Lucene索引耗时: {}ms", System.currentTimeMillis() - startTime);
+            indexWriter.deleteAll();
+            List<String> suffixes = new ArrayList<>();
+            Stream.concat(Stream.of(PDF), Stream.concat(OFFICE_SUFFIX.stream(), Arrays.stream(fileProperties.getSimText())))
+                    .forEach(suffix -> {
+                        suffixes.add(suffix);
+                        suffixes.add(suffix.toUpperCase());
+                    });
+            org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+            query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(false));
+            query.addCriteria(new Criteria().orOperator(Criteria.where(Constants.SUFFIX).in(suffixes), Criteria.where("html").exists(true)));
+            query.fields().include("_id");
+            try (Stream<FileDocument> stream = mongoTemplate.stream(query, FileDocument.class, CommonFileService.COLLECTION_NAME)) {
+                stream.forEach(fileDocument -> {
+                    // 排队的任务过多时等待, 不一次把所有文件id放入队列
+                    while (running && runningCount.get() >= REBUILD_MAX_PENDING) {
+                        ThreadUtil.sleep(100);
+                    }
+                    pushCreateIndexQueue(fileDocument.getId());
+                });
+            }
+            // 全部处理完后才记录版本, 重建中途停止时下次启动重新重建
+            while (running && runningCount.get() > 0) {
+                ThreadUtil.sleep(1000);
+            }
+            if (!running) {
+                return;
+            }
+            indexWriter.setLiveCommitData(Map.of(INDEX_VERSION_KEY, INDEX_VERSION).entrySet());
+            indexWriter.commit();
+            log.info("重建Lucene索引耗时: {}ms, 文件数: {}", System.currentTimeMillis() - startTime, indexWriter.getDocStats().numDocs);
+        } catch (IOException e) {
+            log.error("重建Lucene索引失败", e);
         }
     }
 
+    private String getIndexVersion() {
+        Iterable<Map.Entry<String, String>> commitData = indexWriter.getLiveCommitData();
+        if (commitData == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> entry : commitData) {
+            if (INDEX_VERSION_KEY.equals(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
     @PreDestroy
     public void destroy() throws IOException {
+        running = false;
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (changed.getAndSet(false)) {
+            indexWriter.commit();
+        }
         searcherManager.close();
     }
 }
@@ -78,6 +78,8 @@ public class MarkdownServiceImpl implements IMarkdownService {
 
     private final UserLoginHolder userLoginHolder;
 
+    private final LuceneService luceneService;
+
     @Override
     public ResponseResult<FileDocument> getMarkDownOne(ArticleDTO articleDTO) {
         String mark = articleDTO.getMark();
@@ -503,6 +505,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
             query.addCriteria(Criteria.where("_id").is(saved.getId()));
         }
         mongoTemplate.upsert(query, update, CommonFileService.COLLECTION_NAME);
+        luceneService.pushCreateIndexQueue(upload.getFileId());
         return ResultUtil.success(upload.getFileId());
     }
 
@@ -0,0 +1,154 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * @Description 异步生成文件的衍生数据
+ * 新建文件时只写入基本信息并标记 derivePending, webp转换、图片宽高、视频封面、音频信息、markdown内容由这里的线程池生成,
+ * 每种任务一个有界线程池, 队列满时提交任务的线程会等待
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class MediaDerivationService {
+
+    /***
+     * 最多尝试次数
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /***
+     * 重试间隔(毫秒), 按次数递增
+     */
+    private static final long RETRY_DELAY_MILLIS = 2000;
+
+    @Autowired
+    CommonFileService commonFileService;
+
+    @Autowired
+    IUserService userService;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    public enum JobType {
+        /***
+         * webp转换、图片宽高
+         */
+        IMAGE,
+        /***
+         * 音频信息
+         */
+        AUDIO,
+        /***
+         * 视频封面、转码
+         */
+        VIDEO,
+        /***
+         * markdown内容
+         */
+        MARKDOWN
+    }
+
+    private final Map<JobType, ExecutorService> executorMap = new EnumMap<>(JobType.class);
+
+    @PostConstruct
+    public void init() {
+        int processors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executorMap.put(JobType.IMAGE, ThreadUtil.newFixedExecutor(processors, 1000, "deriveImage", true));
+        executorMap.put(JobType.AUDIO, ThreadUtil.newFixedExecutor(2, 1000, "deriveAudio", true));
+        executorMap.put(JobType.VIDEO, ThreadUtil.newFixedExecutor(1, 100, "deriveVideo", true));
+        executorMap.put(JobType.MARKDOWN, ThreadUtil.newFixedExecutor(2, 1000, "deriveMarkdown", true));
+        // 重新提交上次没有完成的任务
+        ThreadUtil.execute(this::resubmitPending);
+    }
+
+    /***
+     * 获取文件需要的衍生任务
+     * @param contentType contentType
+     * @param suffix 后缀名
+     * @return 不需要时返回null
+     */
+    public static JobType getJobType(String contentType, String suffix) {
+        if (contentType.startsWith(Constants.CONTENT_TYPE_IMAGE) && (!"ico".equals(suffix) && !"svg".equals(suffix))) {
+            return JobType.IMAGE;
+        }
+        if (contentType.contains(Constants.AUDIO)) {
+            return JobType.AUDIO;
+        }
+        if (contentType.contains(Constants.VIDEO)) {
+            return JobType.VIDEO;
+        }
+        if (contentType.contains(Constants.CONTENT_TYPE_MARK_DOWN) || "md".equals(suffix)) {
+            return JobType.MARKDOWN;
+        }
+        return null;
+    }
+
+    /***
+     * 提交衍生任务, 队列满时等待
+     * @param username 用户名
+     * @param userId userId
+     * @param relativePath 文件所在目录
+     * @param file 文件
+     */
+    public void submit(String username, String userId, String relativePath, File file) {
+        String suffix = FileUtil.extName(file.getName());
+        JobType jobType = getJobType(FileContentTypeUtils.getContentType(suffix), suffix);
+        if (jobType == null) {
+            return;
+        }
+        String fileName = file.getName();
+        executorMap.get(jobType).execute(() -> run(jobType, username, userId, relativePath, fileName));
+    }
+
+    private void run(JobType jobType, String username, String userId, String relativePath, String fileName) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                commonFileService.derive(jobType, username, userId, relativePath, fileName);
+                return;
+            } catch (Exception e) {
+                log.warn("生成衍生数据失败({}/{}): {}{}, {}", attempt, MAX_ATTEMPTS, relativePath, fileName, e.getMessage());
+                if (attempt < MAX_ATTEMPTS) {
+                    ThreadUtil.sleep(RETRY_DELAY_MILLIS * attempt);
+                }
+            }
+        }
+        // 多次失败后不再处理, 清除标记
+        Update update = new Update();
+        update.unset(Constants.DERIVE_PENDING);
+        mongoTemplate.updateFirst(CommonFileService.getQuery(relativePath, fileName, userId), update, CommonFileService.COLLECTION_NAME);
+    }
+
+    private void resubmitPending() {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(Constants.DERIVE_PENDING).is(true));
+        query.fields().include(IUserService.USER_ID).include("path").include("name");
+        for (FileDocument fileDocument : mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME)) {
+            String username = userService.getUserNameById(fileDocument.getUserId());
+            if (CharSequenceUtil.isBlank(username)) {
+                continue;
+            }
+            submit(username, fileDocument.getUserId(), fileDocument.getPath(), new File(fileDocument.getName()));
+        }
+    }
+}
@@ -1,15 +1,13 @@
 package com.jmal.clouddisk.service.impl;
 
-import cn.hutool.core.convert.Convert;
-import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
-import com.github.benmanes.caffeine.cache.Cache;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.UploadApiParamDTO;
 import com.jmal.clouddisk.model.UploadResponse;
+import com.jmal.clouddisk.model.UploadSessionDO;
 import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -17,18 +15,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 
 /**
  * @author jmal
@@ -48,23 +44,8 @@ public class MultipartUpload {
     @Autowired
     private WebOssService webOssService;
 
-    /***
-     * 断点恢复上传缓存(已上传的缓存)
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> resumeCache = CaffeineUtil.getResumeCache();
-    /***
-     * 上传大文件是需要分片上传，再合并
-     * 已写入(合并)的分片缓存
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> writtenCache = CaffeineUtil.getWrittenCache();
-    /***
-     * 未写入(合并)的分片缓存
-     */
-    private static final Cache<String, CopyOnWriteArrayList<Integer>> unWrittenCache = CaffeineUtil.getUnWrittenCacheCache();
-    /***
-     * 合并文件的写入锁缓存
-     */
-    private static final Cache<String, Lock> chunkWriteLockCache = CaffeineUtil.getChunkWriteLockCache();
+    @Autowired
+    private UploadSessionService uploadSessionService;
 
     /**
      * 上传分片文件
@@ -75,19 +56,44 @@ public class MultipartUpload {
      */
     public void uploadChunkFile(UploadApiParamDTO upload, UploadResponse uploadResponse, String md5, MultipartFile file) throws IOException {
         // 多个分片
-        // 落地保存文件
-        // 这时保存的每个块, 块先存好, 后续会调合并接口, 将所有块合成一个大文件
+        // 目标文件在第一个分片到达时按文件总大小创建, 每个分片直接写到 (chunkNumber - 1) * chunkSize 的位置,
+        // 分片之间不需要按顺序, 也不需要加锁, 写完后在上传会话的位图中标记
         // 保存在用户的tmp目录下
-        File chunkFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5, Convert.toStr(upload.getChunkNumber())).toFile();
-        FileUtil.writeFromStream(file.getInputStream(), chunkFile);
-        setResumeCache(upload);
+        UploadSessionDO session = uploadSessionService.getOrCreate(upload);
+        Path dataFile = uploadSessionService.getDataFile(upload.getUsername(), md5);
+        long size = file.getSize();
+        long position = getChunkPosition(session, upload.getChunkNumber(), size);
+        try (InputStream inputStream = file.getInputStream()) {
+            long transferred = writeChunk(inputStream, size, dataFile, position);
+            if (transferred != size) {
+                log.error("writeLength: {}, chunkFileLength: {}", transferred, size);
+                throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE);
+            }
+        }
+        int uploadedCount = uploadSessionService.setChunk(session, upload.getChunkNumber());
         uploadResponse.setUpload(true);
         // 检测是否已经上传完了所有分片,上传完了则需要合并
-        if (checkIsNeedMerge(upload)) {
+        if (uploadedCount == upload.getTotalChunks()) {
             uploadResponse.setMerge(true);
         }
-        // 追加分片
-        appendChunkFile(upload);
+    }
+
+    /**
+     * 分片在目标文件中的位置, 分片序号或大小超出上传会话的范围时拒绝写入
+     * @param session 上传会话
+     * @param chunkNumber 分片序号, 从1开始
+     * @param size 分片大小
+     * @return 写入位置
+     */
+    private static long getChunkPosition(UploadSessionDO session, Integer chunkNumber, long size) {
+        if (chunkNumber == null || chunkNumber < 1 || chunkNumber > session.getTotalChunks()) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE.getCode(), "分片序号超出范围: " + chunkNumber);
+        }
+        long position = (long) (chunkNumber - 1) * session.getChunkSize();
+        if (size < 0 || position + size > session.getTotalSize()) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE.getCode(), "分片超出文件大小: " + chunkNumber);
+        }
+        return position;
     }
 
     /**
@@ -98,80 +104,29 @@ public class MultipartUpload {
     public UploadResponse mergeFile(UploadApiParamDTO upload) throws IOException {
         UploadResponse uploadResponse = new UploadResponse();
 
-        Path prePth = Paths.get(upload.getUsername(), upload.getCurrentDirectory(), upload.getFilename());
-        String ossPath = CaffeineUtil.getOssPath(prePth);
+        String ossPath = getOssPath(upload);
         if (ossPath != null) {
-            return webOssService.mergeFile(ossPath, prePth, upload);
+            return webOssService.mergeFile(ossPath, Paths.get(upload.getUsername(), upload.getCurrentDirectory(), upload.getFilename()), upload);
         }
 
         String md5 = upload.getIdentifier();
-        Path file = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename());
         Path outputFile = Paths.get(fileProperties.getRootDir(), upload.getUsername(), commonFileService.getUserDirectoryFilePath(upload));
-        // 清除缓存
-        resumeCache.invalidate(md5);
-        writtenCache.invalidate(md5);
-        unWrittenCache.invalidate(md5);
-        chunkWriteLockCache.invalidate(md5);
-        Path chunkDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5);
-        PathUtil.del(chunkDir);
         if (!Files.exists(outputFile)) {
             Files.createFile(outputFile);
         }
-        PathUtil.move(file, outputFile, true);
+        PathUtil.move(uploadSessionService.getDataFile(upload.getUsername(), md5), outputFile, true);
+        PathUtil.del(uploadSessionService.getChunkDir(upload.getUsername(), md5));
+        uploadSessionService.remove(upload.getUsername(), md5);
         uploadResponse.setUpload(true);
         commonFileService.createFile(upload.getUsername(), outputFile.toFile(), null, null);
         return uploadResponse;
     }
 
-    /***
-     * 合并文件追加分片
-     * @param upload UploadApiParamDTO
-     */
-    private void appendChunkFile(UploadApiParamDTO upload) {
-        int chunkNumber = upload.getChunkNumber();
-        String md5 = upload.getIdentifier();
-        // 未写入的分片
-        CopyOnWriteArrayList<Integer> unWrittenChunks = unWrittenCache.get(md5, key -> new CopyOnWriteArrayList<>());
-        if (unWrittenChunks != null && !unWrittenChunks.contains(chunkNumber)) {
-            unWrittenChunks.add(chunkNumber);
-            unWrittenCache.put(md5, unWrittenChunks);
-        }
-        // 已写入的分片
-        CopyOnWriteArrayList<Integer> writtenChunks = writtenCache.get(md5, key -> new CopyOnWriteArrayList<>());
-        Path filePath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename());
-        if (unWrittenChunks == null || writtenChunks == null) {
-            return;
-        }
-        Lock lock = chunkWriteLockCache.get(md5, key -> new ReentrantLock());
-        if (lock != null) {
-            lock.lock();
-        }
-        try {
-            if (Files.exists(filePath) && !writtenChunks.isEmpty()) {
-                // 继续追加
-                unWrittenChunks.forEach(unWrittenChunk -> appendFile(upload, unWrittenChunks, writtenChunks));
-            } else {
-                // 首次写入
-                if (Files.exists(filePath)) {
-                    Files.delete(filePath);
-                }
-                appendFile(upload, unWrittenChunks, writtenChunks);
-            }
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
-        } finally {
-            if (lock != null) {
-                lock.unlock();
-            }
-        }
-    }
-
     public UploadResponse checkChunk(UploadApiParamDTO upload) throws IOException {
 
-        Path prePth = Paths.get(upload.getUsername(), upload.getCurrentDirectory(), upload.getFilename());
-        String ossPath = CaffeineUtil.getOssPath(prePth);
+        String ossPath = getOssPath(upload);
         if (ossPath != null) {
-            return webOssService.checkChunk(ossPath, prePth, upload);
+            return webOssService.checkChunk(ossPath, Paths.get(upload.getUsername(), upload.getCurrentDirectory(), upload.getFilename()), upload);
         }
 
         UploadResponse uploadResponse = new UploadResponse();
@@ -185,12 +140,10 @@ public class MultipartUpload {
             // 文件已存在
             uploadResponse.setPass(true);
         } else {
-            int totalChunks = upload.getTotalChunks();
-            List<Integer> chunks = resumeCache.get(md5, key -> createResumeCache(upload));
+            UploadSessionDO session = uploadSessionService.get(upload);
             // 返回已存在的分片
-            uploadResponse.setResume(chunks);
-            assert chunks != null;
-            if (totalChunks == chunks.size()) {
+            uploadResponse.setResume(session == null ? Collections.emptyList() : UploadSessionService.getChunks(session));
+            if (session != null && UploadSessionService.isComplete(session)) {
                 // 文件不存在,并且已经上传了所有的分片,则合并保存文件
                 mergeFile(upload);
             }
@@ -200,96 +153,33 @@ public class MultipartUpload {
     }
 
     /***
-     * 追加分片操作
-     * @param upload UploadApiParamDTO
-     * @param unWrittenChunks  未写入的分片集合
-     * @param writtenChunks    已写入的分片集合
+     * 上传目标所在的oss path, 只需要前两级路径, 不是oss时返回null
      */
-    private void appendFile(UploadApiParamDTO upload, CopyOnWriteArrayList<Integer> unWrittenChunks, CopyOnWriteArrayList<Integer> writtenChunks) {
-        // 需要继续追加分片索引
-        int chunk = 1;
-        if (!writtenChunks.isEmpty()) {
-            chunk = writtenChunks.get(writtenChunks.size() - 1) + 1;
-        }
-        if (!unWrittenChunks.contains(chunk)) {
-            return;
-        }
-        String md5 = upload.getIdentifier();
-        // 分片文件
-        File chunkFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5, String.valueOf(chunk)).toFile();
-        // 目标文件
-        File outputFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), upload.getFilename()).toFile();
-        long position = outputFile.length();
-        try (FileOutputStream fileOutputStream = new FileOutputStream(outputFile, true);
-             FileChannel outChannel = fileOutputStream.getChannel()) {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(FileUtil.readBytes(chunkFile));
-            int writeLength = outChannel.write(byteBuffer, position);
-            if (writeLength != chunkFile.length()) {
-                log.error("writeLength: {}, chunkFileLength: {}", writeLength, chunkFile.length());
-            }
-            writtenChunks.add(chunk);
-            writtenCache.put(md5, writtenChunks);
-            unWrittenChunks.remove((Integer) chunk);
-            unWrittenCache.put(md5, unWrittenChunks);
-        } catch (IOException e) {
-            throw new CommonException(ExceptionType.FAIL_MERGE_FILE);
-        }
+    private static String getOssPath(UploadApiParamDTO upload) {
+        return CaffeineUtil.getOssPath(upload.getUsername() + "/" + upload.getCurrentDirectory() + "/" + upload.getFilename());
     }
 
     /***
-     * 缓存已上传的分片
-     * @param upload UploadApiParamDTO
+     * 把分片写入目标文件的指定位置
+     * @param inputStream 分片内容
+     * @param size 分片大小
+     * @param dataFile 目标文件, 需已存在
+     * @param position 写入位置
+     * @return 写入的字节数
      */
-    private void setResumeCache(UploadApiParamDTO upload) {
-        int chunkNumber = upload.getChunkNumber();
-        String md5 = upload.getIdentifier();
-        CopyOnWriteArrayList<Integer> chunks = resumeCache.get(md5, key -> createResumeCache(upload));
-        assert chunks != null;
-        if (!chunks.contains(chunkNumber)) {
-            chunks.add(chunkNumber);
-            resumeCache.put(md5, chunks);
-        }
-    }
-
-    /***
-     * 获取已经保存的分片索引
-     */
-    private CopyOnWriteArrayList<Integer> getSavedChunk(UploadApiParamDTO upload) {
-        String md5 = upload.getIdentifier();
-        return resumeCache.get(md5, key -> createResumeCache(upload));
-    }
-
-    /***
-     * 检测是否需要合并
-     */
-    private boolean checkIsNeedMerge(UploadApiParamDTO upload) {
-        int totalChunks = upload.getTotalChunks();
-        CopyOnWriteArrayList<Integer> chunkList = getSavedChunk(upload);
-        return totalChunks == chunkList.size();
-    }
-
-    /***
-     * 读取分片文件是否存在
-     * @return 已经保存的分片索引列表
-     */
-    private CopyOnWriteArrayList<Integer> createResumeCache(UploadApiParamDTO upload) {
-        CopyOnWriteArrayList<Integer> resumeList = new CopyOnWriteArrayList<>();
-        String md5 = upload.getIdentifier();
-        // 读取tmp分片目录所有文件
-        File f = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), upload.getUsername(), md5).toFile();
-        if (f.exists()) {
-            // 排除目录，只要文件
-            File[] fileArray = f.listFiles(pathName -> !pathName.isDirectory());
-            if (fileArray != null) {
-                for (File file : fileArray) {
-                    // 分片文件
-                    int resume = Integer.parseInt(file.getName());
-                    resumeList.add(resume);
+    public static long writeChunk(InputStream inputStream, long size, Path dataFile, long position) throws IOException {
+        try (ReadableByteChannel inChannel = Channels.newChannel(inputStream);
+             FileChannel outChannel = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+            long transferred = 0;
+            while (transferred < size) {
+                long count = outChannel.transferFrom(inChannel, position + transferred, size - transferred);
+                if (count <= 0) {
+                    break;
                 }
+                transferred += count;
             }
+            return transferred;
         }
-        return resumeList;
     }
 
-
 }
@@ -1,11 +1,9 @@
 package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.date.LocalDateTimeUtil;
-import cn.hutool.core.date.TimeInterval;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.crypto.SecureUtil;
 import cn.hutool.crypto.symmetric.AES;
 import cn.hutool.crypto.symmetric.SymmetricAlgorithm;
@@ -29,13 +27,9 @@ import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author jmal
@@ -49,9 +43,6 @@ public class SettingService {
     @Autowired
     FileProperties fileProperties;
 
-    @Autowired
-    FileServiceImpl fileService;
-
     @Autowired
     private MongoTemplate mongoTemplate;
 
@@ -72,11 +63,8 @@ public class SettingService {
     @Autowired
     UserLoginHolder userLoginHolder;
 
-    private static final Map<String, SyncFileVisitor> syncFileVisitorMap = new ConcurrentHashMap<>(16);
-
-    private static final Map<String, String> syncCache = new ConcurrentHashMap<>(16);
-
-    private static final String SYNCED = "synced";
+    @Autowired
+    private FileSyncService fileSyncService;
 
     @PostConstruct
     public void init() {
@@ -93,29 +81,7 @@ public class SettingService {
      * @param username 用户名
      */
     public ResponseResult<Object> sync(String username) {
-        syncCache.computeIfAbsent(username, key -> {
-            ThreadUtil.execute(() -> {
-                Path path = Paths.get(fileProperties.getRootDir(), username);
-                TimeInterval timeInterval = new TimeInterval();
-                try {
-                    FileCountVisitor fileCountVisitor = new FileCountVisitor();
-                    PathUtil.walkFiles(path, fileCountVisitor);
-                    log.info("开始同步, 文件数: {}", fileCountVisitor.getCount());
-                    timeInterval.start();
-                    SyncFileVisitor syncFileVisitor = new SyncFileVisitor(username, fileCountVisitor.getCount());
-                    syncFileVisitorMap.put(username, syncFileVisitor);
-                    Files.walkFileTree(path, syncFileVisitor);
-                } catch (IOException e) {
-                    log.error(e.getMessage() + path, e);
-                } finally {
-                    syncCache.remove(username);
-                    syncFileVisitorMap.remove(username);
-                    log.info("同步完成, 耗时: {}s", timeInterval.intervalSecond());
-                    fileService.pushMessage(username, 100, SYNCED);
-                }
-            });
-            return "syncing";
-        });
+        fileSyncService.sync(username);
         return ResultUtil.success();
     }
 
@@ -123,13 +89,7 @@ public class SettingService {
      * 是否正在同步中
      */
     public ResponseResult<Object> isSync(String username) {
-        if (!syncCache.containsKey(username)) {
-            return ResultUtil.success(100);
-        }
-        if (syncFileVisitorMap.containsKey(username)) {
-            return ResultUtil.success(syncFileVisitorMap.get(username).getPercent());
-        }
-        return ResultUtil.success(100);
+        return ResultUtil.success(fileSyncService.getPercent(username));
     }
 
     /**
@@ -176,88 +136,6 @@ public class SettingService {
         return ResultUtil.success("修改成功");
     }
 
-    private class SyncFileVisitor extends SimpleFileVisitor<Path> {
-
-        private final String username;
-        private final double totalCount;
-
-        private int percent = 0;
-
-        private final AtomicLong processCount;
-
-        public SyncFileVisitor(String username, double totalCount) {
-            this.username = username;
-            this.totalCount = totalCount;
-            this.processCount = new AtomicLong(0);
-        }
-
-        public int getPercent() {
-            return percent;
-        }
-
-        @Override
-        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-            log.error(exc.getMessage(), exc);
-            return super.visitFileFailed(file, exc);
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            try {
-                fileService.createFile(username, dir.toFile());
-            } catch (Exception e) {
-                log.error(e.getMessage() + dir, e);
-            } finally {
-                processCount.addAndGet(1);
-            }
-            return super.preVisitDirectory(dir, attrs);
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            try {
-                synchronized (this) {
-                    fileService.createFile(username, file.toFile());
-                }
-            } catch (Exception e) {
-                log.error(e.getMessage() + file, e);
-            } finally {
-                if (totalCount > 0) {
-                    if (processCount.get() <= 2) {
-                        fileService.pushMessage(username, 1, SYNCED);
-                    }
-                    processCount.addAndGet(1);
-                    int currentPercent = (int) (processCount.get()/totalCount * 100);
-                    if (currentPercent > percent) {
-                        fileService.pushMessage(username, currentPercent, SYNCED);
-                    }
-                    percent = currentPercent;
-                }
-            }
-            return super.visitFile(file, attrs);
-        }
-    }
-
-    private static class FileCountVisitor extends SimpleFileVisitor<Path> {
-        private final AtomicLong count = new AtomicLong(0);
-
-        public long getCount() {
-            return count.get();
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            count.addAndGet(1);
-            return super.preVisitDirectory(dir, attrs);
-        }
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            count.addAndGet(1);
-            return super.visitFile(file, attrs);
-        }
-    }
-
     /***
      * 更新网站设置
      * @param websiteSettingDO WebsiteSetting
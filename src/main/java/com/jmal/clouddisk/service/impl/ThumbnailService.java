@@ -0,0 +1,321 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.HexUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.video.VideoProcessService;
+import com.jmal.clouddisk.util.FileContentTypeUtils;
+import com.jmal.clouddisk.util.LocalFileSender;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @Description 缩略图
+ * 缩略图不再存入mongo, 而是按源文件内容的hash存放在 ${rootDir}/${chunkFileDir}/${thumbnailCache} 下,
+ * 有 64/256/1024 三种尺寸, 第一次请求时生成. 同一内容的缩略图只生成一次, 内容变化后hash也会变化, 所以可以长期缓存,
+ * 总大小超过 thumbnailCacheSize 后淘汰最少使用的
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class ThumbnailService {
+
+    /***
+     * 缩略图尺寸
+     */
+    private static final int[] SIZES = {64, 256, 1024};
+
+    public static final int DEFAULT_SIZE = 256;
+
+    /***
+     * 小于该大小的文件计算整个文件的hash, 大于时只取文件大小和首尾部分
+     */
+    private static final long FULL_HASH_LIMIT = 64L * 1024 * 1024;
+
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @Autowired
+    FileProperties fileProperties;
+
+    @Autowired
+    VideoProcessService videoProcessService;
+
+    @Autowired
+    ImageProcessService imageProcessService;
+
+    /***
+     * 文件内容的hash, key: 绝对路径:大小:修改时间
+     */
+    private final Cache<String, String> hashCache = Caffeine.newBuilder().maximumSize(100000).expireAfterAccess(1, TimeUnit.DAYS).build();
+
+    /***
+     * 正在生成的缩略图, 避免并发请求重复生成
+     */
+    private final Map<String, Object> generatingMap = new ConcurrentHashMap<>(16);
+
+    private Path cacheDir;
+
+    /***
+     * 已有的缩略图, key: 相对于cacheDir的路径, value: 文件大小
+     */
+    private Cache<String, Long> renditionCache;
+
+    @PostConstruct
+    public void init() {
+        cacheDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getThumbnailCache());
+        long maximumWeight = Math.max(1L, fileProperties.getThumbnailCacheSize()) * 1024 * 1024;
+        renditionCache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String key, Long size) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1L, size)))
+                .executor(Runnable::run)
+                .removalListener((String key, Long size, RemovalCause cause) -> {
+                    if (key != null && cause != RemovalCause.REPLACED) {
+                        delete(cacheDir.resolve(key));
+                    }
+                })
+                .build();
+        ThreadUtil.execute(this::loadCacheDir);
+    }
+
+    /***
+     * 输出缩略图, 支持Range和条件请求, 较大的缩略图交给tomcat的sendfile发送
+     * @param file 源文件
+     * @param size 尺寸
+     * @return 不支持生成缩略图时返回false
+     */
+    public boolean writeThumbnail(File file, Integer size, HttpServletRequest request, HttpServletResponse response) {
+        Path rendition = getRendition(file, size);
+        if (rendition == null) {
+            return false;
+        }
+        try {
+            LocalFileSender.send(request, response, rendition.toFile(), CACHE_CONTROL);
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+        }
+        return true;
+    }
+
+    /***
+     * 获取缩略图文件, 不存在时生成
+     * @param file 源文件(图片或视频)
+     * @param size 尺寸, 取不小于该值的最小尺寸, 默认256
+     * @return 不支持生成缩略图时返回null
+     */
+    public Path getRendition(File file, Integer size) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        String suffix = FileUtil.extName(file.getName());
+        String contentType = FileContentTypeUtils.getContentType(suffix);
+        boolean isImage = contentType.startsWith(Constants.CONTENT_TYPE_IMAGE) && !"ico".equals(suffix) && !"svg".equals(suffix);
+        boolean isVideo = contentType.contains(Constants.VIDEO);
+        if (!isImage && !isVideo) {
+            return null;
+        }
+        int renditionSize = getRenditionSize(size);
+        String format = isImage && ("png".equals(suffix) || "gif".equals(suffix) || Constants.SUFFIX_WEBP.equals(suffix)) ? "png" : "jpg";
+        try {
+            String hash = getContentHash(file);
+            String key = hash.substring(0, 2) + File.separator + hash + "_" + renditionSize + "." + format;
+            Path rendition = cacheDir.resolve(key);
+            if (renditionCache.getIfPresent(key) != null && Files.exists(rendition)) {
+                return rendition;
+            }
+            Object lock = generatingMap.computeIfAbsent(key, k -> new Object());
+            try {
+                synchronized (lock) {
+                    if (!Files.exists(rendition)) {
+                        boolean generated = isImage ? generateImageRendition(file, rendition, renditionSize, format) : generateVideoRendition(file, rendition, renditionSize, format);
+                        if (!generated) {
+                            return null;
+                        }
+                    }
+                    renditionCache.put(key, rendition.toFile().length());
+                    return rendition;
+                }
+            } finally {
+                generatingMap.remove(key, lock);
+            }
+        } catch (Exception e) {
+            log.warn("生成缩略图失败: {}, {}", file.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static int getRenditionSize(Integer size) {
+        if (size == null) {
+            return DEFAULT_SIZE;
+        }
+        for (int renditionSize : SIZES) {
+            if (renditionSize >= size) {
+                return renditionSize;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    private boolean generateImageRendition(File file, Path rendition, int size, String format) throws IOException {
+        // 按缩略图尺寸降采样解码, 在图片处理线程池中执行
+        return imageProcessService.execute(ImageProcessService.estimatePixels(file, size), () -> {
+            BufferedImage image = ImageProcessService.read(file, size);
+            if (image == null) {
+                return false;
+            }
+            Thumbnails.Builder<BufferedImage> thumbnail = Thumbnails.of(image);
+            if (image.getWidth() <= size && image.getHeight() <= size) {
+                // 原图比缩略图小, 不放大
+                thumbnail.scale(1);
+            } else {
+                thumbnail.size(size, size);
+            }
+            thumbnail.outputFormat(format);
+            return write(rendition, tempFile -> thumbnail.toFile(tempFile));
+        });
+    }
+
+    private boolean generateVideoRendition(File file, Path rendition, int size, String format) throws IOException {
+        Path relativePath = Paths.get(fileProperties.getRootDir()).relativize(file.toPath());
+        if (relativePath.getNameCount() < 2) {
+            return false;
+        }
+        String username = relativePath.getName(0).toString();
+        String path = File.separator;
+        if (relativePath.getNameCount() > 2) {
+            path += relativePath.subpath(1, relativePath.getNameCount() - 1) + File.separator;
+        }
+        String coverPath = videoProcessService.getVideoCover(username, path, file.getName());
+        if (coverPath == null) {
+            return false;
+        }
+        try {
+            File cover = new File(coverPath);
+            return imageProcessService.execute(ImageProcessService.estimatePixels(cover), () -> {
+                Thumbnails.Builder<File> thumbnail = Thumbnails.of(cover).size(size, size).outputFormat(format);
+                return write(rendition, tempFile -> thumbnail.toFile(tempFile));
+            });
+        } finally {
+            FileUtil.del(coverPath);
+        }
+    }
+
+    private interface RenditionWriter {
+        void write(File tempFile) throws IOException;
+    }
+
+    /***
+     * 先写入临时文件再移动, 避免读到写了一半的缩略图
+     */
+    private static boolean write(Path rendition, RenditionWriter writer) throws IOException {
+        Files.createDirectories(rendition.getParent());
+        Path tempFile = rendition.resolveSibling(rendition.getFileName() + TEMP_SUFFIX);
+        try {
+            writer.write(tempFile.toFile());
+            Files.move(tempFile, rendition, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return true;
+    }
+
+    /***
+     * 文件内容的hash(SHA-256)
+     * 大文件只计算文件大小和首尾各1M的内容
+     */
+    private String getContentHash(File file) {
+        String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        return hashCache.get(key, k -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                long length = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                if (length <= FULL_HASH_LIMIT) {
+                    while (channel.read(buffer) > 0) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.clear();
+                    }
+                } else {
+                    digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+                    digest.update(readSample(channel, 0));
+                    digest.update(readSample(channel, length - SAMPLE_SIZE));
+                }
+                return HexUtil.encodeHexStr(digest.digest());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static ByteBuffer readSample(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // 读满为止
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /***
+     * 启动时加载已有的缩略图, 先加载旧的, 超出大小时会先淘汰旧的
+     */
+    private void loadCacheDir() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(cacheDir)) {
+            List<File> files = stream.filter(Files::isRegularFile).map(Path::toFile).sorted(Comparator.comparingLong(File::lastModified)).toList();
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    delete(file.toPath());
+                } else {
+                    renditionCache.get(cacheDir.relativize(file.toPath()).toString(), key -> file.length());
+                }
+            }
+            log.info("缩略图缓存: {}个文件", renditionCache.estimatedSize());
+        } catch (IOException e) {
+            log.warn("加载缩略图缓存失败: {}", e.getMessage());
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("删除缩略图缓存失败: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.date.TimeInterval;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.IdUtil;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.util.CompressUtils;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Description 解压
+ * 解压在后台任务中进行, zip文件用随机读取的 ZipFile 多线程解压, tar等格式按顺序解压.
+ * 解压时检查压缩比和文件数防止zip炸弹, 进度通过websocket推送, 可以取消,
+ * 解压完成后直接批量写入解压出来的文件索引
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class UnzipService {
+
+    /***
+     * 推送消息的url
+     */
+    public static final String UNZIP = "unzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /***
+     * 压缩包中最多的文件数
+     */
+    private static final int MAX_ENTRIES = 100000;
+
+    /***
+     * 最大压缩比, 单个文件和整个压缩包都不能超过
+     */
+    private static final long MAX_RATIO = 200;
+
+    /***
+     * 解压出的大小超过该值才检查压缩比
+     */
+    private static final long RATIO_THRESHOLD = 16L * 1024 * 1024;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long PUSH_INTERVAL_MILLIS = 1000;
+
+    @Autowired
+    CommonFileService commonFileService;
+
+    private final Map<String, UnzipTask> taskMap = new ConcurrentHashMap<>(16);
+
+    /***
+     * 同时进行的解压任务
+     */
+    private ExecutorService taskExecutor;
+
+    /***
+     * 解压文件的线程
+     */
+    private ExecutorService entryExecutor;
+
+    private BlockingQueue<byte[]> bufferPool;
+
+    private int threads;
+
+    @PostConstruct
+    public void init() {
+        threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        taskExecutor = ThreadUtil.newFixedExecutor(2, 100, "unzipTask", false);
+        entryExecutor = ThreadUtil.newFixedExecutor(threads, Integer.MAX_VALUE, "unzipEntry", false);
+        bufferPool = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            bufferPool.add(new byte[BUFFER_SIZE]);
+        }
+    }
+
+    /***
+     * 是否支持解压
+     * @param fileName 文件名
+     */
+    public static boolean isSupported(String fileName) {
+        return fileName.endsWith(".zip") || fileName.endsWith(".tar") || fileName.endsWith(".jar")
+                || fileName.endsWith(".gz") || fileName.endsWith(".tgz") || fileName.endsWith(".tar.bz2");
+    }
+
+    /***
+     * 提交解压任务
+     * @param username 用户名
+     * @param archive 压缩包
+     * @param destDir 解压目录
+     * @return 任务id
+     */
+    public String submit(String username, File archive, Path destDir) {
+        if (!isSupported(archive.getName())) {
+            throw new CommonException(ExceptionType.UNRECOGNIZED_FILE);
+        }
+        UnzipTask task = new UnzipTask(username, archive, destDir, true);
+        taskMap.put(task.id, task);
+        try {
+            taskExecutor.execute(task::run);
+        } catch (RejectedExecutionException e) {
+            taskMap.remove(task.id);
+            throw new CommonException(ExceptionType.WARNING.getCode(), "解压任务太多, 请稍后再试");
+        }
+        return task.id;
+    }
+
+    /***
+     * 预览, 只生成目录结构, 不写入文件内容
+     * @param archive 压缩包
+     * @param destDir 解压目录
+     */
+    public void preview(File archive, Path destDir) throws IOException {
+        if (!isSupported(archive.getName())) {
+            throw new CommonException(ExceptionType.UNRECOGNIZED_FILE);
+        }
+        new UnzipTask(null, archive, destDir, false).extract();
+    }
+
+    /***
+     * 取消解压, 已解压的文件会保留
+     * @param username 用户名
+     * @param taskId 任务id
+     * @return 任务不存在时返回false
+     */
+    public boolean cancel(String username, String taskId) {
+        UnzipTask task = taskMap.get(taskId);
+        if (task == null || !task.username.equals(username)) {
+            return false;
+        }
+        task.cancelled.set(true);
+        return true;
+    }
+
+    private class UnzipTask {
+
+        private final String id = IdUtil.fastSimpleUUID();
+
+        private final String username;
+
+        private final File archive;
+
+        private final Path destDir;
+
+        /***
+         * 为false时只创建空文件
+         */
+        private final boolean isWrite;
+
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        private volatile String error;
+
+        /***
+         * 解压新建的文件和目录, 失败时只删除这些
+         */
+        private final Queue<File> createdFiles = new ConcurrentLinkedQueue<>();
+
+        /***
+         * 已有文件的新内容, 整个压缩包解压完成后才替换, 失败时删除. key: 目标文件, value: 临时文件
+         */
+        private final Map<Path, Path> stagedFiles = new ConcurrentHashMap<>();
+
+        /***
+         * 被覆盖的已有文件
+         */
+        private final Queue<File> replacedFiles = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong writtenBytes = new AtomicLong(0);
+
+        private final long maxWrittenBytes;
+
+        private long totalBytes;
+
+        private final AtomicLong doneBytes = new AtomicLong(0);
+
+        private int percent;
+
+        private long lastPushTime;
+
+        UnzipTask(String username, File archive, Path destDir, boolean isWrite) {
+            this.username = username;
+            this.archive = archive;
+            this.destDir = destDir.toAbsolutePath().normalize();
+            this.isWrite = isWrite;
+            this.maxWrittenBytes = Math.max(archive.length() * MAX_RATIO, RATIO_THRESHOLD);
+        }
+
+        void run() {
+            TimeInterval timeInterval = new TimeInterval();
+            try {
+                push("running");
+                extract();
+            } catch (Exception e) {
+                fail(e);
+            } finally {
+                taskMap.remove(id);
+            }
+            if (error != null) {
+                log.warn("解压失败: {}, {}", archive.getAbsolutePath(), error);
+                // 解压失败(包括压缩比过大), 删除已解压的文件, 已有文件还没有被替换
+                stagedFiles.values().forEach(FileUtil::del);
+                createdFiles.stream().sorted(Comparator.comparingInt((File file) -> file.getAbsolutePath().length()).reversed()).forEach(FileUtil::del);
+            } else {
+                replaceStagedFiles();
+                index();
+            }
+            String status = "done";
+            if (error != null) {
+                status = "failed";
+            } else if (cancelled.get()) {
+                status = "cancelled";
+            }
+            percent = 100;
+            push(status);
+            log.info("解压{}: {}, 文件数: {}, 耗时: {}ms", status, archive.getName(), createdFiles.size(), timeInterval.intervalMs());
+        }
+
+        void extract() throws IOException {
+            createDirectories(destDir);
+            if (archive.getName().endsWith(".zip")) {
+                extractZip();
+            } else {
+                extractStream();
+            }
+        }
+
+        /***
+         * 先创建所有目录, 再多线程解压文件
+         */
+        private void extractZip() throws IOException {
+            try (ZipFile zipFile = new ZipFile(archive, "UTF-8")) {
+                List<ZipArchiveEntry> entries = Collections.list(zipFile.getEntriesInPhysicalOrder());
+                if (entries.size() > MAX_ENTRIES) {
+                    throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "文件数超过" + MAX_ENTRIES);
+                }
+                Queue<ZipArchiveEntry> fileEntries = new ConcurrentLinkedQueue<>();
+                for (ZipArchiveEntry entry : entries) {
+                    Path target = resolve(entry.getName());
+                    if (entry.isDirectory()) {
+                        createDirectories(target);
+                    } else if (zipFile.canReadEntryData(entry)) {
+                        createDirectories(target.getParent());
+                        fileEntries.add(entry);
+                        totalBytes += Math.max(0, entry.getCompressedSize());
+                    } else {
+                        log.warn("不支持解压: {}", entry.getName());
+                    }
+                }
+                int workers = Math.min(threads, fileEntries.size());
+                List<Future<?>> futures = new ArrayList<>(workers);
+                for (int i = 0; i < workers; i++) {
+                    futures.add(entryExecutor.submit(() -> {
+                        ZipArchiveEntry entry;
+                        while (!cancelled.get() && (entry = fileEntries.poll()) != null) {
+                            try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                                writeEntry(inputStream, resolve(entry.getName()), entry.getCompressedSize());
+                            } catch (Exception e) {
+                                log.warn("解压失败: {}", entry.getName());
+                                fail(e);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                cancelled.set(true);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            }
+        }
+
+        /***
+         * tar等格式只能按顺序读取
+         */
+        private void extractStream() throws IOException {
+            totalBytes = archive.length();
+            try (CountingInputStream countingInputStream = new CountingInputStream(new BufferedInputStream(Files.newInputStream(archive.toPath())));
+                 ArchiveInputStream inputStream = CompressUtils.getArchiveInputStream(archive.getName(), countingInputStream)) {
+                if (inputStream == null) {
+                    throw new CommonException(ExceptionType.UNRECOGNIZED_FILE);
+                }
+                ArchiveEntry entry;
+                int count = 0;
+                while (!cancelled.get() && (entry = inputStream.getNextEntry()) != null) {
+                    if (++count > MAX_ENTRIES) {
+                        throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "文件数超过" + MAX_ENTRIES);
+                    }
+                    Path target = resolve(entry.getName());
+                    if (entry.isDirectory()) {
+                        createDirectories(target);
+                    } else if (inputStream.canReadEntryData(entry)) {
+                        createDirectories(target.getParent());
+                        writeEntry(inputStream, target, -1);
+                    }
+                    doneBytes.set(countingInputStream.getBytesRead());
+                    updatePercent();
+                }
+            }
+        }
+
+        /***
+         * 解压路径, 不允许解压到目标目录之外
+         */
+        private Path resolve(String name) {
+            Path target = destDir.resolve(name).normalize();
+            if (!target.startsWith(destDir) || target.equals(destDir)) {
+                throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "非法的文件路径: " + name);
+            }
+            return target;
+        }
+
+        private void createDirectories(Path dir) throws IOException {
+            List<File> dirs = new ArrayList<>();
+            for (Path path = dir; path != null && !Files.exists(path); path = path.getParent()) {
+                dirs.add(path.toFile());
+            }
+            Files.createDirectories(dir);
+            Collections.reverse(dirs);
+            createdFiles.addAll(dirs);
+        }
+
+        /***
+         * 写入一个文件, 边写边检查压缩比
+         * 目标文件已存在时先写入临时文件, 整个压缩包解压成功后再替换, 失败时原文件不变
+         * @param inputStream 文件内容
+         * @param target 目标文件
+         * @param compressedSize 压缩后的大小, 未知时为-1
+         */
+        private void writeEntry(InputStream inputStream, Path target, long compressedSize) throws IOException {
+            boolean exists = Files.exists(target);
+            if (!isWrite) {
+                if (!exists) {
+                    createdFiles.add(target.toFile());
+                    Files.newOutputStream(target).close();
+                }
+                return;
+            }
+            Path output = target;
+            if (exists) {
+                output = target.resolveSibling(target.getFileName() + "." + id + ".tmp");
+            } else {
+                createdFiles.add(target.toFile());
+            }
+            byte[] buffer;
+            try {
+                buffer = bufferPool.take();
+            } catch (InterruptedException e) {
+                cancelled.set(true);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long written = 0;
+            try (OutputStream outputStream = Files.newOutputStream(output)) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    if (cancelled.get()) {
+                        break;
+                    }
+                    outputStream.write(buffer, 0, read);
+                    written += read;
+                    if (compressedSize > 0 && written > RATIO_THRESHOLD && written > compressedSize * MAX_RATIO) {
+                        throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "压缩比过大");
+                    }
+                    if (writtenBytes.addAndGet(read) > maxWrittenBytes) {
+                        throw new CommonException(ExceptionType.FAIL_DECOMPRESS.getCode(), "解压后的文件过大");
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (exists) {
+                    Files.deleteIfExists(output);
+                }
+                throw e;
+            } finally {
+                bufferPool.offer(buffer);
+            }
+            if (cancelled.get()) {
+                // 取消时删除写了一半的文件
+                createdFiles.remove(target.toFile());
+                Files.deleteIfExists(output);
+                return;
+            }
+            if (exists) {
+                Path previous = stagedFiles.put(target, output);
+                if (previous != null && !previous.equals(output)) {
+                    Files.deleteIfExists(previous);
+                }
+            }
+            if (compressedSize > 0) {
+                doneBytes.addAndGet(compressedSize);
+                updatePercent();
+            }
+        }
+
+        /***
+         * 用解压出的临时文件替换已有文件
+         */
+        private void replaceStagedFiles() {
+            stagedFiles.forEach((target, staged) -> {
+                try {
+                    Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replacedFiles.add(target.toFile());
+                } catch (IOException e) {
+                    log.warn("替换文件失败: {}, {}", target, e.getMessage());
+                    FileUtil.del(staged);
+                }
+            });
+            stagedFiles.clear();
+        }
+
+        private void fail(Throwable e) {
+            if (error == null) {
+                String message = e instanceof CommonException commonException ? commonException.getMsg() : e.getMessage();
+                error = message == null ? ExceptionType.FAIL_DECOMPRESS.getMsg() : message;
+            }
+            cancelled.set(true);
+        }
+
+        /***
+         * 批量写入文件索引, 上级目录在前
+         */
+        private void index() {
+            if (!isWrite) {
+                return;
+            }
+            List<File> files = createdFiles.stream().sorted(Comparator.comparingInt(file -> file.getAbsolutePath().length())).toList();
+            for (List<File> batch : ListUtil.partition(files, BATCH_SIZE)) {
+                commonFileService.batchFileChange(username, batch, Collections.emptyList(), Collections.emptyList());
+            }
+            for (List<File> batch : ListUtil.partition(new ArrayList<>(replacedFiles), BATCH_SIZE)) {
+                commonFileService.batchFileChange(username, Collections.emptyList(), batch, Collections.emptyList());
+            }
+        }
+
+        private synchronized void updatePercent() {
+            if (username == null || totalBytes <= 0) {
+                return;
+            }
+            int currentPercent = (int) Math.min(99, doneBytes.get() * 100 / totalBytes);
+            long now = System.currentTimeMillis();
+            if (currentPercent > percent && now - lastPushTime >= PUSH_INTERVAL_MILLIS) {
+                percent = currentPercent;
+                lastPushTime = now;
+                push("running");
+            }
+        }
+
+        private void push(String status) {
+            if (username == null) {
+                return;
+            }
+            Document message = new Document("taskId", id);
+            message.put("name", archive.getName());
+            message.put("percent", percent);
+            message.put("status", status);
+            if (error != null) {
+                message.put("msg", error);
+            }
+            commonFileService.pushMessage(username, message, UNZIP);
+        }
+    }
+}
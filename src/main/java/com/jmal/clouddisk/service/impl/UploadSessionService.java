@@ -0,0 +1,238 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.io.file.PathUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.UploadApiParamDTO;
+import com.jmal.clouddisk.model.UploadSessionDO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description 分片上传会话
+ * 已写入的分片以位图的形式保存在mongo中, 每个分片只需要一次原子更新, 重启或多个节点共用同一个存储目录时都能继续上传
+ * @author jmal
+ */
+@Service
+@Slf4j
+public class UploadSessionService {
+
+    public static final String COLLECTION_NAME = "uploadSession";
+
+    private static final String CHUNKS = "chunks";
+
+    private static final String UPLOADED_COUNT = "uploadedCount";
+
+    private static final String UPDATE_DATE = "updateDate";
+
+    private static final String DATA_FILE = "data";
+
+    /***
+     * 超过该天数没有更新的会话会被清理
+     */
+    private static final int EXPIRE_DAYS = 7;
+
+    @Autowired
+    FileProperties fileProperties;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    /***
+     * 会话的参数不会改变, 缓存起来避免每个分片都查询一次
+     */
+    private final Cache<String, UploadSessionDO> sessionCache = Caffeine.newBuilder().maximumSize(10000).expireAfterAccess(1, TimeUnit.HOURS).build();
+
+    /***
+     * 获取上传会话, 不存在或上传参数不一致时新建, 并按文件总大小创建目标文件
+     * @param upload UploadApiParamDTO
+     * @return UploadSessionDO
+     */
+    public UploadSessionDO getOrCreate(UploadApiParamDTO upload) {
+        String id = getId(upload.getUsername(), upload.getIdentifier());
+        UploadSessionDO session = sessionCache.getIfPresent(id);
+        if (session != null && isSameUpload(session, upload)) {
+            return session;
+        }
+        session = mongoTemplate.findById(id, UploadSessionDO.class, COLLECTION_NAME);
+        if (session == null || !isSameUpload(session, upload)) {
+            if (session != null) {
+                // 同一个文件换了分片大小, 之前的分片不能再用
+                mongoTemplate.remove(Query.query(Criteria.where("_id").is(id)), COLLECTION_NAME);
+            }
+            session = insert(upload);
+        }
+        createDataFile(session);
+        sessionCache.put(id, session);
+        return session;
+    }
+
+    /***
+     * 获取上传会话
+     * @param upload UploadApiParamDTO
+     * @return 不存在或上传参数不一致时返回null
+     */
+    public UploadSessionDO get(UploadApiParamDTO upload) {
+        UploadSessionDO session = mongoTemplate.findById(getId(upload.getUsername(), upload.getIdentifier()), UploadSessionDO.class, COLLECTION_NAME);
+        if (session == null || !isSameUpload(session, upload)) {
+            return null;
+        }
+        return session;
+    }
+
+    /***
+     * 标记分片已写入
+     * @param session 上传会话
+     * @param chunkNumber 分片序号, 从1开始
+     * @return 已写入的分片数
+     */
+    public int setChunk(UploadSessionDO session, int chunkNumber) {
+        int bit = (chunkNumber - 1) % Long.SIZE;
+        String key = CHUNKS + "." + (chunkNumber - 1) / Long.SIZE;
+        // 只有该位还没有设置时才更新, 重复上传的分片不会重复计数
+        Query query = Query.query(Criteria.where("_id").is(session.getId()).and(key).bits().allClear(Collections.singletonList(bit)));
+        Update update = new Update().bitwise(key).or(1L << bit);
+        update.inc(UPLOADED_COUNT, 1);
+        update.set(UPDATE_DATE, LocalDateTime.now());
+        query.fields().include(UPLOADED_COUNT);
+        UploadSessionDO updated = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), UploadSessionDO.class, COLLECTION_NAME);
+        if (updated == null) {
+            Query countQuery = Query.query(Criteria.where("_id").is(session.getId()));
+            countQuery.fields().include(UPLOADED_COUNT);
+            updated = mongoTemplate.findOne(countQuery, UploadSessionDO.class, COLLECTION_NAME);
+        }
+        return updated == null ? 0 : updated.getUploadedCount();
+    }
+
+    /***
+     * 已写入的分片序号
+     */
+    public static List<Integer> getChunks(UploadSessionDO session) {
+        List<Integer> chunks = new ArrayList<>(session.getUploadedCount());
+        List<Long> words = session.getChunks();
+        for (int index = 0; index < words.size(); index++) {
+            long word = words.get(index);
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                chunks.add(index * Long.SIZE + bit + 1);
+                word &= word - 1;
+            }
+        }
+        return chunks;
+    }
+
+    public static boolean isComplete(UploadSessionDO session) {
+        return Objects.equals(session.getUploadedCount(), session.getTotalChunks());
+    }
+
+    /***
+     * 上传完成后删除会话
+     */
+    public void remove(String username, String identifier) {
+        String id = getId(username, identifier);
+        sessionCache.invalidate(id);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(id)), COLLECTION_NAME);
+    }
+
+    public Path getChunkDir(String username, String identifier) {
+        return Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), username, identifier);
+    }
+
+    public Path getDataFile(String username, String identifier) {
+        return getChunkDir(username, identifier).resolve(DATA_FILE);
+    }
+
+    /***
+     * 清理长时间没有更新的会话
+     * 每天凌晨2点30分执行
+     */
+    @Scheduled(cron = "0 30 2 * * ?")
+    public void cleanExpiredSession() {
+        Query query = Query.query(Criteria.where(UPDATE_DATE).lt(LocalDateTime.now().minusDays(EXPIRE_DAYS)));
+        query.fields().include("username").include("identifier");
+        List<UploadSessionDO> sessionList = mongoTemplate.find(query, UploadSessionDO.class, COLLECTION_NAME);
+        sessionList.forEach(session -> {
+            PathUtil.del(getChunkDir(session.getUsername(), session.getIdentifier()));
+            remove(session.getUsername(), session.getIdentifier());
+        });
+        if (!sessionList.isEmpty()) {
+            log.info("清理过期的上传会话: {}", sessionList.size());
+        }
+    }
+
+    private UploadSessionDO insert(UploadApiParamDTO upload) {
+        String id = getId(upload.getUsername(), upload.getIdentifier());
+        LocalDateTime now = LocalDateTime.now();
+        int totalChunks = upload.getTotalChunks();
+        UploadSessionDO session = new UploadSessionDO()
+                .setId(id)
+                .setUsername(upload.getUsername())
+                .setIdentifier(upload.getIdentifier())
+                .setFilename(upload.getFilename())
+                .setTotalSize(upload.getTotalSize())
+                .setChunkSize(upload.getChunkSize())
+                .setTotalChunks(totalChunks)
+                .setChunks(new ArrayList<>(Collections.nCopies((totalChunks + Long.SIZE - 1) / Long.SIZE, 0L)))
+                .setUploadedCount(0)
+                .setCreateDate(now)
+                .setUpdateDate(now);
+        try {
+            return mongoTemplate.insert(session, COLLECTION_NAME);
+        } catch (DuplicateKeyException e) {
+            // 其他线程或节点已经创建
+            return mongoTemplate.findById(id, UploadSessionDO.class, COLLECTION_NAME);
+        }
+    }
+
+    /***
+     * 创建目标文件, 已存在时只调整大小, 不会清除已写入的分片
+     */
+    private void createDataFile(UploadSessionDO session) {
+        Path dataFile = getDataFile(session.getUsername(), session.getIdentifier());
+        try {
+            Files.createDirectories(dataFile.getParent());
+            if (Files.exists(dataFile) && Files.size(dataFile) == session.getTotalSize()) {
+                return;
+            }
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(dataFile.toFile(), "rw")) {
+                randomAccessFile.setLength(session.getTotalSize());
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new CommonException(ExceptionType.FAIL_UPLOAD_FILE);
+        }
+    }
+
+    private static boolean isSameUpload(UploadSessionDO session, UploadApiParamDTO upload) {
+        return Objects.equals(session.getTotalSize(), upload.getTotalSize())
+                && Objects.equals(session.getChunkSize(), upload.getChunkSize())
+                && Objects.equals(session.getTotalChunks(), upload.getTotalChunks());
+    }
+
+    private static String getId(String username, String identifier) {
+        return username + ":" + identifier;
+    }
+}
@@ -78,7 +78,7 @@ public class UserServiceImpl implements IUserService {
     @Override
     public ConsumerDO add(ConsumerDTO consumerDTO) {
         String username = consumerDTO.getUsername();
-        if (fileProperties.getChunkFileDir().equals(username)) {
+        if (fileProperties.getChunkFileDir().equals(username) || fileProperties.isSharedTempDir(username)) {
             throw new CommonException(ExceptionType.WARNING.getCode(), "请使用其他用户名");
         }
         ConsumerDO consumerDO;
@@ -147,7 +147,7 @@ public class UserServiceImpl implements IUserService {
     public ResponseResult<Object> update(ConsumerDTO user, MultipartFile blobAvatar) {
 
         String name = user.getUsername();
-        if (fileProperties.getChunkFileDir().equals(name)) {
+        if (fileProperties.getChunkFileDir().equals(name) || fileProperties.isSharedTempDir(name)) {
             return ResultUtil.warning("请使用其他用户名");
         }
 
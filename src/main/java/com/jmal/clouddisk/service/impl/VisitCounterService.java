@@ -0,0 +1,207 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.text.CharSequenceUtil;
+import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.model.VisitCounterDO;
+import com.jmal.clouddisk.util.TimeUntils;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.model.IndexOptions;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Accumulators.sum;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * @author jmal
+ * @Description 文章访问计数
+ * 写入操作日志时按(url, 天)累加计数, 同时累加url的总数, 查询访问次数时不再统计日志.
+ * 日志按保留天数清理后, 计数不受影响
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class VisitCounterService {
+
+    public static final String COLLECTION_NAME = "visitCounter";
+
+    /***
+     * 总数的day
+     */
+    public static final String TOTAL = "total";
+
+    private static final String URL = "url";
+
+    private static final String DAY = "day";
+
+    private static final String COUNT = "count";
+
+    private static final int BULK_SIZE = 1000;
+
+    /***
+     * 从日志统计过计数的标记, url为空, 不会和文章的计数冲突. count为0表示正在统计, 为1表示已完成
+     */
+    private static final String REBUILD_MARKER_URL = "";
+
+    private static final String REBUILD_MARKER_DAY = "rebuilt";
+
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern(DatePattern.NORM_DATE_PATTERN);
+
+    private final MongoTemplate mongoTemplate;
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.getCollection(COLLECTION_NAME).createIndex(new Document(URL, 1).append(DAY, 1), new IndexOptions().unique(true));
+        rebuildIfNeeded();
+    }
+
+    /***
+     * 累加一批日志的访问计数, 只统计文章访问日志
+     * @param logOperationList 已写入的日志
+     */
+    public void increment(List<LogOperation> logOperationList) {
+        // url -> day -> count
+        Map<String, Map<String, Long>> counts = new HashMap<>(16);
+        for (LogOperation logOperation : logOperationList) {
+            if (!LogOperation.Type.ARTICLE.name().equals(logOperation.getType()) || CharSequenceUtil.isBlank(logOperation.getUrl())) {
+                continue;
+            }
+            LocalDateTime createTime = logOperation.getCreateTime() == null ? LocalDateTime.now(TimeUntils.ZONE_ID) : logOperation.getCreateTime();
+            Map<String, Long> days = counts.computeIfAbsent(logOperation.getUrl(), key -> new HashMap<>(4));
+            days.merge(createTime.format(DAY_FORMAT), 1L, Long::sum);
+            days.merge(TOTAL, 1L, Long::sum);
+        }
+        if (counts.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        counts.forEach((url, days) -> days.forEach((day, count) -> bulkOperations.upsert(getQuery(url, day), new Update().inc(COUNT, count))));
+        bulkOperations.execute();
+    }
+
+    /***
+     * 获取url的访问次数
+     * @param url url
+     * @return 访问次数
+     */
+    public long getVisits(String url) {
+        VisitCounterDO visitCounterDO = mongoTemplate.findOne(getQuery(url, TOTAL), VisitCounterDO.class, COLLECTION_NAME);
+        if (visitCounterDO == null || visitCounterDO.getCount() == null) {
+            return 0;
+        }
+        return visitCounterDO.getCount();
+    }
+
+    /***
+     * 获取url每天的访问次数
+     * @param url url
+     * @param startDay 开始日期(包含), 例如: 2023-05-01
+     * @param endDay 结束日期(包含), 例如: 2023-05-31
+     * @return 有访问的日期的计数
+     */
+    public List<VisitCounterDO> getDailyVisits(String url, String startDay, String endDay) {
+        // "total" 按字符串排在所有日期之后
+        Query query = Query.query(Criteria.where(URL).is(url).and(DAY).gte(startDay).lte(endDay));
+        query.with(Sort.by(Sort.Direction.ASC, DAY));
+        return mongoTemplate.find(query, VisitCounterDO.class, COLLECTION_NAME);
+    }
+
+    private static Query getQuery(String url, String day) {
+        return Query.query(Criteria.where(URL).is(url).and(DAY).is(day));
+    }
+
+    /***
+     * 第一次启动时, 从已有的文章访问日志统计计数, 完成后写入标记, 以后不再统计
+     * 没有标记但已有计数时, 说明是以前的版本统计过的, 只补写标记
+     */
+    private void rebuildIfNeeded() {
+        VisitCounterDO marker = mongoTemplate.findOne(getQuery(REBUILD_MARKER_URL, REBUILD_MARKER_DAY), VisitCounterDO.class, COLLECTION_NAME);
+        if (marker != null && Long.valueOf(1L).equals(marker.getCount())) {
+            return;
+        }
+        if (marker == null && mongoTemplate.getCollection(COLLECTION_NAME).estimatedDocumentCount() > 0) {
+            setRebuildMarker(1L);
+            return;
+        }
+        // 上次统计中断时重新统计, 统计结果用$set写入, 重复统计不会多算
+        setRebuildMarker(0L);
+        rebuild();
+        setRebuildMarker(1L);
+    }
+
+    private void setRebuildMarker(long state) {
+        mongoTemplate.upsert(getQuery(REBUILD_MARKER_URL, REBUILD_MARKER_DAY), new Update().set(COUNT, state), COLLECTION_NAME);
+    }
+
+    private void rebuild() {
+        Document day = new Document("$dateToString", new Document("format", "%Y-%m-%d").append("date", "$createTime").append("timezone", getTimezone()));
+        List<Bson> list = Arrays.asList(
+                match(eq("type", LogOperation.Type.ARTICLE.name())),
+                group(new Document(URL, "$url").append(DAY, day), sum(COUNT, 1)));
+        AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(LogService.COLLECTION_NAME).aggregate(list).allowDiskUse(true);
+        Map<String, Long> totals = new HashMap<>(16);
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        int size = 0;
+        for (Document doc : aggregateIterable) {
+            Document id = doc.get("_id", Document.class);
+            String url = id.getString(URL);
+            if (CharSequenceUtil.isBlank(url) || id.getString(DAY) == null) {
+                continue;
+            }
+            long count = Convert.toLong(doc.get(COUNT), 0L);
+            bulkOperations.upsert(getQuery(url, id.getString(DAY)), new Update().set(COUNT, count));
+            totals.merge(url, count, Long::sum);
+            if (++size % BULK_SIZE == 0) {
+                bulkOperations.execute();
+                bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+            }
+        }
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            bulkOperations.upsert(getQuery(entry.getKey(), TOTAL), new Update().set(COUNT, entry.getValue()));
+            if (++size % BULK_SIZE == 0) {
+                bulkOperations.execute();
+                bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+            }
+        }
+        if (size % BULK_SIZE != 0) {
+            bulkOperations.execute();
+        }
+        if (!totals.isEmpty()) {
+            log.info("从文章访问日志统计访问计数, url数: {}", totals.size());
+        }
+    }
+
+    /***
+     * mongodb的$dateToString只支持地区名(例如Asia/Shanghai)或偏移量(例如+08:00)
+     */
+    private static String getTimezone() {
+        String zoneId = TimeUntils.ZONE_ID.getId();
+        if (zoneId.contains("/")) {
+            return zoneId;
+        }
+        String offset = TimeUntils.ZONE_ID.getRules().getOffset(Instant.now()).getId();
+        return "Z".equals(offset) ? "+00:00" : offset;
+    }
+}
@@ -1,18 +1,14 @@
 package com.jmal.clouddisk.util;
 
-import cn.hutool.core.util.URLUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.oss.BucketInfo;
-import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import jakarta.annotation.PostConstruct;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -36,6 +32,11 @@ public class CaffeineUtil {
      */
     private static final Cache<String, BucketInfo> OSS_DIAMETER_PREFIX_CACHE = Caffeine.newBuilder().build();
 
+    /***
+     * OSS_DIAMETER_PREFIX_CACHE 中路径前缀的索引, 用于getOssPath
+     */
+    private static final PathPrefixIndex OSS_PREFIX_INDEX = new PathPrefixIndex();
+
     private static final Cache<String, Long> LAST_ACCESS_TIME_CACHE = Caffeine.newBuilder().build();
 
     /***
@@ -50,26 +51,6 @@ public class CaffeineUtil {
      */
     public static final Cache<String, ConsumerDO> CONSUMER_USERNAME = Caffeine.newBuilder().build();
 
-    /***
-     * 已上传的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> resumeCache;
-
-    /***
-     * 已写入的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> writtenCache;
-
-    /***
-     * 未写入(已上传)的分片索引
-     */
-    private static Cache<String, CopyOnWriteArrayList<Integer>> unWrittenCache;
-
-    /***
-     * 分片写锁
-     */
-    private static Cache<String, Lock> chunkWriteLockCache;
-
     /***
      * 上传文件夹锁
      */
@@ -135,51 +116,11 @@ public class CaffeineUtil {
     }
 
     public static void initMyCache(){
-        if(resumeCache == null){
-            resumeCache = Caffeine.newBuilder().build();
-        }
-        if(writtenCache == null){
-            writtenCache = Caffeine.newBuilder().build();
-        }
-        if(unWrittenCache == null){
-            unWrittenCache = Caffeine.newBuilder().build();
-        }
-        if(chunkWriteLockCache == null){
-            chunkWriteLockCache = Caffeine.newBuilder().build();
-        }
         if(uploadFolderLockCache == null) {
             uploadFolderLockCache = Caffeine.newBuilder().expireAfterWrite(30, TimeUnit.MINUTES).build();
         }
     }
 
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getResumeCache(){
-        if(resumeCache == null){
-            initMyCache();
-        }
-        return resumeCache;
-    }
-
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getWrittenCache(){
-        if(writtenCache == null){
-            initMyCache();
-        }
-        return writtenCache;
-    }
-
-    public static Cache<String, CopyOnWriteArrayList<Integer>> getUnWrittenCacheCache(){
-        if(unWrittenCache == null){
-            initMyCache();
-        }
-        return unWrittenCache;
-    }
-
-    public static Cache<String, Lock> getChunkWriteLockCache(){
-        if(chunkWriteLockCache == null){
-            initMyCache();
-        }
-        return chunkWriteLockCache;
-    }
-
     public static Cache<String, Lock> getUploadFolderLockCache(){
         if(uploadFolderLockCache == null){
             initMyCache();
@@ -237,6 +178,7 @@ public class CaffeineUtil {
 
     public static void setOssDiameterPrefixCache(String path, BucketInfo bucketInfo) {
         OSS_DIAMETER_PREFIX_CACHE.put(path, bucketInfo);
+        OSS_PREFIX_INDEX.add(path);
     }
 
     public static BucketInfo getOssDiameterPrefixCache(String path) {
@@ -245,6 +187,7 @@ public class CaffeineUtil {
 
     public static void removeOssDiameterPrefixCache(String path) {
         OSS_DIAMETER_PREFIX_CACHE.invalidate(path);
+        OSS_PREFIX_INDEX.remove(path);
     }
 
     /**
@@ -253,19 +196,26 @@ public class CaffeineUtil {
      * @return oss path
      */
     public static String getOssPath(Path path) {
-        path = Paths.get(URLUtil.decode(path.toString()));
-        String prePath;
-        if (path.getNameCount() >= 2) {
-            prePath = MyWebdavServlet.PATH_DELIMITER + path.subpath(0, 2);
-        } else {
-            return null;
-        }
-        for (String prefixPath : OSS_DIAMETER_PREFIX_CACHE.asMap().keySet()) {
-            if (prePath.equals(prefixPath)){
-                return prefixPath;
-            }
-        }
-        return null;
+        return OSS_PREFIX_INDEX.match(path.toString(), 0);
+    }
+
+    /**
+     * 获取oss path
+     * @param path url path, 例如: jmal/aliyunStorage/a.txt
+     * @return oss path
+     */
+    public static String getOssPath(String path) {
+        return OSS_PREFIX_INDEX.match(path, 0);
+    }
+
+    /**
+     * 获取oss path
+     * @param uri 请求uri
+     * @param skip 跳过开头的几级路径, 例如: /webDAV/jmal/aliyunStorage/a.txt 跳过1级
+     * @return oss path
+     */
+    public static String getOssPath(String uri, int skip) {
+        return OSS_PREFIX_INDEX.match(uri, skip);
     }
 
     public static Boolean hasThumbnailRequestCache(String id) {
@@ -184,6 +184,27 @@ public class CompressUtils {
         }
     }
 
+    /**
+     * 根据文件名获取流式读取的压缩包(tar、tar.gz、tar.bz2、jar)
+     *
+     * @param filePath    压缩包路径
+     * @param inputStream 压缩包输入流
+     * @return 不支持的格式返回null
+     * @throws IOException IO异常，抛出给调用者处理
+     */
+    public static ArchiveInputStream getArchiveInputStream(String filePath, InputStream inputStream) throws IOException {
+        if (filePath.endsWith(".tar")) {
+            return new TarArchiveInputStream(inputStream);
+        } else if (filePath.endsWith(".jar")) {
+            return new JarArchiveInputStream(inputStream);
+        } else if (filePath.endsWith(".tar.gz") || filePath.endsWith(".tgz") || filePath.endsWith(".gz")) {
+            return new TarArchiveInputStream(new GzipCompressorInputStream(inputStream));
+        } else if (filePath.endsWith(".tar.bz2")) {
+            return new TarArchiveInputStream(new BZip2CompressorInputStream(inputStream));
+        }
+        return null;
+    }
+
     /**
      * 解压zip文件到指定文件夹
      *
@@ -0,0 +1,183 @@
+package com.jmal.clouddisk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 历史版本的压缩方式
+ * 压缩和解压都是流式的, 读取时边读边压缩, 内存占用和文件大小无关
+ *
+ * @author jmal
+ */
+public enum FileVersionCodec {
+
+    /***
+     * 不压缩
+     */
+    NONE("none"),
+    /***
+     * gzip压缩
+     */
+    GZIP("gzip");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /***
+     * 已压缩过的类型, 再压缩没有效果
+     */
+    private static final String[] INCOMPRESSIBLE_TYPES = {"image/", "video/", "audio/", "zip", "compressed", "rar", "gzip", "x-xz", "x-bzip", "openxmlformats", "pdf"};
+
+    private final String value;
+
+    FileVersionCodec(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * 根据元数据中的compression获取压缩方式
+     *
+     * @param value compression, 为null时不压缩
+     * @return FileVersionCodec
+     */
+    public static FileVersionCodec of(String value) {
+        for (FileVersionCodec codec : values()) {
+            if (codec.value.equals(value)) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * 该类型的文件是否值得压缩
+     *
+     * @param contentType Content-Type
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        if (contentType.startsWith("text/") || contentType.endsWith("+xml")) {
+            return true;
+        }
+        for (String type : INCOMPRESSIBLE_TYPES) {
+            if (contentType.contains(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 压缩
+     *
+     * @param inputStream 原始 inputStream
+     * @return 读取时压缩的 inputStream
+     */
+    public InputStream encode(InputStream inputStream) throws IOException {
+        if (this == GZIP) {
+            return new GzipCompressInputStream(inputStream);
+        }
+        return inputStream;
+    }
+
+    /**
+     * 解压
+     *
+     * @param inputStream 压缩后的 inputStream
+     * @return 读取时解压的 inputStream
+     */
+    public InputStream decode(InputStream inputStream) throws IOException {
+        if (this == GZIP) {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        }
+        return inputStream;
+    }
+
+    /**
+     * 读取时从原始流读取一块并压缩, 只缓存一块压缩后的数据
+     */
+    private static class GzipCompressInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final Buffer buffer = new Buffer();
+
+        private final GZIPOutputStream gzipOut;
+
+        private final byte[] readBuffer = new byte[BUFFER_SIZE];
+
+        private int position;
+
+        private boolean finished;
+
+        GzipCompressInputStream(InputStream in) throws IOException {
+            this.in = in;
+            // 构造时写入gzip头
+            this.gzipOut = new GZIPOutputStream(buffer, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position >= buffer.size()) {
+                if (finished) {
+                    return -1;
+                }
+                buffer.reset();
+                position = 0;
+                fill();
+            }
+            int n = Math.min(len, buffer.size() - position);
+            System.arraycopy(buffer.getBuf(), position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private void fill() throws IOException {
+            int n = in.read(readBuffer);
+            if (n < 0) {
+                // 写入剩余数据和gzip尾
+                gzipOut.finish();
+                finished = true;
+            } else if (n > 0) {
+                gzipOut.write(readBuffer, 0, n);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                gzipOut.close();
+            }
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(BUFFER_SIZE);
+        }
+
+        byte[] getBuf() {
+            return buf;
+        }
+    }
+}
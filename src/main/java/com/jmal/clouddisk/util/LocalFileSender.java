@@ -0,0 +1,266 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.util.IdUtil;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.catalina.connector.ClientAbortException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * @Description 本地文件下载/预览
+ * 单个区间交给tomcat的sendfile发送, 不支持sendfile时用 FileChannel.transferTo,
+ * 支持 Range/If-Range(含多区间), 以及由(inode, 修改时间, 大小)生成的强ETag
+ * @author jmal
+ */
+@Slf4j
+public final class LocalFileSender {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /***
+     * 小于该大小的文件直接写出, 和tomcat DefaultServlet的sendfileSize一致
+     */
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    /***
+     * 用于预览文本时每次写出的大小
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private LocalFileSender() {
+    }
+
+    /***
+     * 发送本地文件
+     * @param request HttpServletRequest
+     * @param response HttpServletResponse
+     * @param file 文件
+     * @param cacheControl Cache-Control, 可以为null
+     */
+    public static void send(HttpServletRequest request, HttpServletResponse response, File file, String cacheControl) throws IOException {
+        Path path = file.toPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = getETag(attributes);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        if (cacheControl != null) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        String contentType = FileContentTypeUtils.getContentType(FileUtil.extName(file));
+        boolean head = "HEAD".equals(request.getMethod());
+        List<HttpRange> ranges = getRanges(request, response, etag, lastModified, length);
+        if (ranges == null) {
+            // 不满足的区间
+            return;
+        }
+        try {
+            if (ranges.isEmpty()) {
+                response.setContentType(contentType);
+                response.setContentLengthLong(length);
+                if (!head) {
+                    write(request, response, path, 0, length);
+                }
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (ranges.size() == 1) {
+                long start = ranges.get(0).getRangeStart(length);
+                long end = ranges.get(0).getRangeEnd(length);
+                response.setContentType(contentType);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                response.setContentLengthLong(end - start + 1);
+                if (!head) {
+                    write(request, response, path, start, end + 1);
+                }
+                return;
+            }
+            writeMultipart(response, path, ranges, contentType, length, head);
+        } catch (ClientAbortException ignored) {
+            // ignored
+        }
+    }
+
+    /***
+     * 流式预览文本, 按块写出
+     * @param file 文件
+     * @param outputStream 输出流
+     */
+    public static void writeText(File file, OutputStream outputStream) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long size = fileChannel.size();
+            for (long position = 0; position < size; ) {
+                long transferred = fileChannel.transferTo(position, Math.min(BLOCK_SIZE, size - position), target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                outputStream.flush();
+            }
+        }
+    }
+
+    /***
+     * 强ETag, 由 inode(fileKey)、修改时间和大小组成, 文件被替换或修改后都会变化
+     */
+    public static String getETag(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return "\"" + (fileKey == null ? "0" : Integer.toHexString(fileKey.hashCode())) + "-"
+                + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "-"
+                + Long.toHexString(attributes.size()) + "\"";
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || etag.equals(tag) || etag.equals(CharSequenceUtil.removePrefix(tag, "W/"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /***
+     * 解析Range
+     * @return 空列表表示返回整个文件, null表示区间不满足, 已设置416
+     */
+    private static List<HttpRange> getRanges(HttpServletRequest request, HttpServletResponse response, String etag, long lastModified, long length) {
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (CharSequenceUtil.isBlank(range) || !matchIfRange(request, etag, lastModified)) {
+            return List.of();
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(range);
+            long total = 0;
+            for (HttpRange httpRange : ranges) {
+                total += httpRange.getRangeEnd(length) - httpRange.getRangeStart(length) + 1;
+            }
+            // 区间总和不小于文件大小时直接返回整个文件
+            return total >= length && ranges.size() > 1 ? List.of() : ranges;
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return null;
+        }
+    }
+
+    /***
+     * If-Range 和当前文件不一致时, 忽略Range返回整个文件
+     */
+    private static boolean matchIfRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (CharSequenceUtil.isBlank(ifRange)) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // 只能用强ETag比较
+            return etag.equals(ifRange);
+        }
+        long date = getDateHeader(request, HttpHeaders.IF_RANGE);
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /***
+     * 写出 [start, end) 区间, 支持sendfile时交给tomcat在请求结束后发送
+     */
+    private static void write(HttpServletRequest request, HttpServletResponse response, Path path, long start, long end) throws IOException {
+        if (end - start >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        ServletOutputStream outputStream = response.getOutputStream();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            transfer(fileChannel, start, end, Channels.newChannel(outputStream));
+        }
+        outputStream.flush();
+    }
+
+    private static void writeMultipart(HttpServletResponse response, Path path, List<HttpRange> ranges, String contentType, long length, boolean head) throws IOException {
+        String boundary = IdUtil.fastSimpleUUID();
+        byte[][] partHeaders = new byte[ranges.size()][];
+        byte[] closeBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = closeBoundary.length;
+        for (int i = 0; i < ranges.size(); i++) {
+            long start = ranges.get(i).getRangeStart(length);
+            long end = ranges.get(i).getRangeEnd(length);
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + end - start + 1;
+        }
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        ServletOutputStream outputStream = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                outputStream.write(partHeaders[i]);
+                transfer(fileChannel, ranges.get(i).getRangeStart(length), ranges.get(i).getRangeEnd(length) + 1, target);
+            }
+        }
+        outputStream.write(closeBoundary);
+        outputStream.flush();
+    }
+
+    private static void transfer(FileChannel fileChannel, long start, long end, WritableByteChannel target) throws IOException {
+        for (long position = start; position < end; ) {
+            long transferred = fileChannel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                // 文件被截断
+                break;
+            }
+            position += transferred;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.core.util.URLUtil;
+
+import java.util.Arrays;
+
+/**
+ * 两级路径前缀索引, 例如: /jmal/aliyunStorage
+ * 以前两级路径的hash做开放寻址表, 查找时直接在原始路径字符串上计算hash和比较, 不需要创建Path和子字符串.
+ * 写少读多, 修改时复制整个表
+ *
+ * @author jmal
+ */
+public final class PathPrefixIndex {
+
+    private static final char SEPARATOR = '/';
+
+    /***
+     * 开放寻址表, 长度为2的幂, 空位为null
+     */
+    private volatile String[] table = new String[16];
+
+    private volatile int size;
+
+    public synchronized void add(String prefix) {
+        String[] keys = Arrays.stream(table).filter(key -> key != null && !key.equals(prefix)).toArray(String[]::new);
+        table = build(keys, prefix);
+    }
+
+    public synchronized void remove(String prefix) {
+        String[] keys = Arrays.stream(table).filter(key -> key != null && !key.equals(prefix)).toArray(String[]::new);
+        table = build(keys, null);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /***
+     * 查找路径的前两级是否为索引中的前缀
+     * @param path 路径, 可以是url编码过的, 分隔符可以为 / 或 \
+     * @param skip 跳过开头的几级路径, 例如请求uri /webDAV/jmal/aliyunStorage 跳过1级
+     * @return 匹配的前缀, 没有匹配时返回null
+     */
+    public String match(String path, int skip) {
+        if (size == 0 || path == null) {
+            return null;
+        }
+        return match(path, skip, true);
+    }
+
+    private String match(String path, int skip, boolean decode) {
+        int index = 0;
+        // 跳过开头的几级路径
+        for (int i = 0; i < skip; i++) {
+            index = skipSeparator(path, index);
+            index = skipSegment(path, index);
+        }
+        int firstStart = skipSeparator(path, index);
+        int firstEnd = skipSegment(path, firstStart);
+        int secondStart = skipSeparator(path, firstEnd);
+        int secondEnd = skipSegment(path, secondStart);
+        if (firstStart == firstEnd || secondStart == secondEnd) {
+            return null;
+        }
+        int hash = SEPARATOR;
+        for (int i = firstStart; i < firstEnd; i++) {
+            char c = path.charAt(i);
+            if (decode && (c == '%' || c == '+')) {
+                return match(URLUtil.decode(path), skip, false);
+            }
+            hash = 31 * hash + c;
+        }
+        hash = 31 * hash + SEPARATOR;
+        for (int i = secondStart; i < secondEnd; i++) {
+            char c = path.charAt(i);
+            if (decode && (c == '%' || c == '+')) {
+                return match(URLUtil.decode(path), skip, false);
+            }
+            hash = 31 * hash + c;
+        }
+        int firstLength = firstEnd - firstStart;
+        int secondLength = secondEnd - secondStart;
+        String[] keys = table;
+        int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key.length() == firstLength + secondLength + 2
+                    && key.regionMatches(1, path, firstStart, firstLength)
+                    && key.charAt(firstLength + 1) == SEPARATOR
+                    && key.regionMatches(firstLength + 2, path, secondStart, secondLength)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private String[] build(String[] keys, String newKey) {
+        int count = keys.length + (newKey == null ? 0 : 1);
+        // 负载因子不超过0.5
+        int capacity = 16;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        String[] newTable = new String[capacity];
+        for (String key : keys) {
+            put(newTable, key);
+        }
+        if (newKey != null) {
+            put(newTable, newKey);
+        }
+        size = count;
+        return newTable;
+    }
+
+    private static void put(String[] keys, String key) {
+        int mask = keys.length - 1;
+        int i = spread(key.hashCode()) & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == SEPARATOR || c == '\\';
+    }
+
+    private static int skipSeparator(String path, int index) {
+        while (index < path.length() && isSeparator(path.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipSegment(String path, int index) {
+        while (index < path.length() && !isSeparator(path.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+}
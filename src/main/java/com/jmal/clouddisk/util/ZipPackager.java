@@ -0,0 +1,618 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.HexUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.commons.compress.archivers.zip.ScatterZipOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * 打包下载
+ * <p>
+ * 已经压缩过的文件(图片、视频、压缩包等)使用STORED, 其他文件使用DEFLATE, 在共享线程池中写入临时文件后再输出.
+ * 需要压缩的内容很少时全部使用STORED, 这时zip中每一部分的位置都可以预先计算出来,
+ * 响应可以带上Content-Length, 并按Range只输出请求的部分, 支持断点续传
+ *
+ * @author jmal
+ */
+public class ZipPackager {
+
+    /***
+     * 已经压缩过的文件类型, 再压缩几乎没有收益
+     */
+    private static final Set<String> COMPRESSED_SUFFIX = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp4", "mkv", "mov", "avi", "flv", "wmv", "webm", "m4v", "rmvb", "ts",
+            "mp3", "aac", "m4a", "flac", "ogg", "opus", "wma", "ape",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "jar", "apk", "dmg", "iso",
+            "docx", "xlsx", "pptx", "epub", "pdf");
+
+    /***
+     * 需要压缩的内容小于该值, 或者小于总大小的1/20时, 全部使用STORED
+     */
+    private static final long STORED_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /***
+     * 每个任务写入临时文件的文件总大小, 小文件合并到一个任务中, 减少临时文件的数量
+     */
+    private static final long DEFLATE_BATCH_SIZE = 16L * 1024 * 1024;
+
+    /***
+     * 所有打包下载共用的线程池, 队列满时提交任务的线程等待
+     */
+    private static final ExecutorService DEFLATE_EXECUTOR = ThreadUtil.newFixedExecutor(Math.max(1, Runtime.getRuntime().availableProcessors()), 1000, "zipDeflate", true);
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+    private static final int ZIP64_END_SIG = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int END_SIG = 0x06054b50;
+
+    /***
+     * 通用标志位: 文件名使用UTF-8(bit 11)
+     * STORED不使用数据描述符(bit 3), java.util.zip.ZipInputStream等流式读取时不支持STORED带数据描述符
+     */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    /***
+     * 文件的CRC32, key: 绝对路径:大小:修改时间
+     */
+    private static final Cache<String, Long> CRC_CACHE = Caffeine.newBuilder().maximumSize(100000).expireAfterAccess(1, TimeUnit.DAYS).build();
+
+    private final List<Entry> entries;
+
+    private final boolean stored;
+
+    private long centralDirectoryOffset;
+
+    private long centralDirectorySize;
+
+    private boolean zip64End;
+
+    private long length = -1;
+
+    private String etag;
+
+    private static class Entry {
+        private final Path path;
+        private final byte[] name;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final int dosTime;
+        /***
+         * 本地文件头的位置
+         */
+        private long offset;
+        private long crc = -1;
+
+        Entry(Path path, String name, boolean directory, long size, long lastModified) {
+            this.path = path;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.dosTime = toDosTime(lastModified);
+        }
+
+        boolean isZip64Size() {
+            return size >= ZIP64_MAGIC;
+        }
+
+        boolean isZip64Offset() {
+            return offset >= ZIP64_MAGIC;
+        }
+
+        int getVersionNeeded() {
+            return isZip64Size() || isZip64Offset() ? 45 : 20;
+        }
+
+        int getLocalHeaderLength() {
+            return 30 + name.length + (isZip64Size() ? 20 : 0);
+        }
+
+        int getCentralExtraLength() {
+            int count = (isZip64Size() ? 2 : 0) + (isZip64Offset() ? 1 : 0);
+            return count == 0 ? 0 : 4 + 8 * count;
+        }
+
+        int getCentralHeaderLength() {
+            return 46 + name.length + getCentralExtraLength();
+        }
+
+        String getCrcKey() {
+            return path.toAbsolutePath() + ":" + size + ":" + lastModified;
+        }
+    }
+
+    private ZipPackager(List<Entry> entries) {
+        this.entries = entries;
+        long total = 0;
+        long compressible = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+            if (!entry.directory && !isCompressed(entry.path)) {
+                compressible += entry.size;
+            }
+        }
+        this.stored = compressible < STORED_THRESHOLD || compressible * 20 < total;
+        if (stored) {
+            computeLayout();
+        }
+    }
+
+    /***
+     * 遍历要打包的文件
+     * @param srcDir 打包的根目录, zip中的路径相对于该目录
+     * @param selectPathList 选中的文件或文件夹
+     */
+    public static ZipPackager of(Path srcDir, List<Path> selectPathList) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Path selectPath : selectPathList) {
+            if (!Files.exists(selectPath)) {
+                continue;
+            }
+            Files.walkFileTree(selectPath, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    entries.add(new Entry(dir, getEntryName(srcDir, dir) + "/", true, 0, attrs.lastModifiedTime().toMillis()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        entries.add(new Entry(file, getEntryName(srcDir, file), false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return new ZipPackager(entries);
+    }
+
+    private static String getEntryName(Path srcDir, Path path) {
+        return srcDir.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isCompressed(Path path) {
+        return COMPRESSED_SUFFIX.contains(FileUtil.extName(path.getFileName().toString()).toLowerCase());
+    }
+
+    /***
+     * 是否全部使用STORED, 为true时可以使用 getLength() 和 write(outputStream, start, end)
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    /***
+     * zip的总大小, 只有全部使用STORED时可以预先知道
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /***
+     * 由每个文件的路径、大小和修改时间计算, 文件没有变化时不变, 用于If-Range
+     */
+    public String getETag() {
+        if (etag == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+                for (Entry entry : entries) {
+                    digest.update(entry.name);
+                    buffer.clear();
+                    buffer.putLong(entry.size).putLong(entry.lastModified);
+                    digest.update(buffer.array());
+                }
+                etag = "\"" + HexUtil.encodeHexStr(digest.digest()) + "\"";
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return etag;
+    }
+
+    private void computeLayout() {
+        long offset = 0;
+        for (Entry entry : entries) {
+            entry.offset = offset;
+            offset += entry.getLocalHeaderLength() + entry.size;
+        }
+        centralDirectoryOffset = offset;
+        for (Entry entry : entries) {
+            offset += entry.getCentralHeaderLength();
+        }
+        centralDirectorySize = offset - centralDirectoryOffset;
+        zip64End = entries.size() >= ZIP64_MAGIC_SHORT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC;
+        length = offset + (zip64End ? 56 + 20 : 0) + 22;
+    }
+
+    /***
+     * 输出zip中 [start, end] 的部分, 只能在 isStored() 为true时使用
+     * @param outputStream 输出流
+     * @param start 起始位置
+     * @param end 结束位置(包含)
+     */
+    public void write(OutputStream outputStream, long start, long end) throws IOException {
+        if (!stored) {
+            throw new IllegalStateException("zip layout is not fixed");
+        }
+        long position = 0;
+        for (Entry entry : entries) {
+            if (position > end) {
+                return;
+            }
+            int headerLength = entry.getLocalHeaderLength();
+            if (overlaps(position, headerLength, start, end)) {
+                writeSlice(outputStream, getLocalHeader(entry), position, start, end);
+            }
+            position += headerLength;
+            if (entry.directory) {
+                continue;
+            }
+            if (overlaps(position, entry.size, start, end)) {
+                writeData(outputStream, entry, position, start, end);
+            }
+            position += entry.size;
+        }
+        for (Entry entry : entries) {
+            if (position > end) {
+                return;
+            }
+            int headerLength = entry.getCentralHeaderLength();
+            if (overlaps(position, headerLength, start, end)) {
+                writeSlice(outputStream, getCentralHeader(entry), position, start, end);
+            }
+            position += headerLength;
+        }
+        writeSlice(outputStream, getEnd(), position, start, end);
+        outputStream.flush();
+    }
+
+    /***
+     * 多线程压缩并输出
+     * 目录和已知CRC32的STORED文件直接写入输出流, 同时其他文件在共享线程池中分批写入临时文件, 最后依次写入.
+     * 每个文件只读取一次, CRC32在写入临时文件时计算
+     * @param outputStream 输出流
+     */
+    public void writeParallel(OutputStream outputStream) throws IOException {
+        List<Future<ScatterZipOutputStream>> futures = new ArrayList<>();
+        int written = 0;
+        try {
+            List<Entry> directEntries = new ArrayList<>();
+            List<Entry> batch = new ArrayList<>();
+            long batchSize = 0;
+            for (Entry entry : entries) {
+                if (isDirectWrite(entry)) {
+                    directEntries.add(entry);
+                    continue;
+                }
+                batch.add(entry);
+                batchSize += entry.size;
+                if (batchSize >= DEFLATE_BATCH_SIZE) {
+                    futures.add(submitDeflate(batch));
+                    batch = new ArrayList<>();
+                    batchSize = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                futures.add(submitDeflate(batch));
+            }
+            ZipArchiveOutputStream zipArchiveOutputStream = new ZipArchiveOutputStream(outputStream);
+            for (Entry entry : directEntries) {
+                if (entry.directory) {
+                    ZipArchiveEntry zipArchiveEntry = newZipArchiveEntry(entry, ZipEntry.STORED);
+                    zipArchiveEntry.setSize(0);
+                    zipArchiveEntry.setCrc(0);
+                    zipArchiveOutputStream.putArchiveEntry(zipArchiveEntry);
+                    zipArchiveOutputStream.closeArchiveEntry();
+                } else {
+                    // 输出流不能回写本地文件头, STORED需要先知道CRC32
+                    ZipArchiveEntry zipArchiveEntry = newZipArchiveEntry(entry, ZipEntry.STORED);
+                    zipArchiveEntry.setSize(entry.size);
+                    zipArchiveEntry.setCrc(getCrc(entry));
+                    zipArchiveOutputStream.putArchiveEntry(zipArchiveEntry);
+                    Files.copy(entry.path, zipArchiveOutputStream);
+                    zipArchiveOutputStream.closeArchiveEntry();
+                }
+            }
+            for (Future<ScatterZipOutputStream> future : futures) {
+                try (ScatterZipOutputStream scatter = future.get()) {
+                    written++;
+                    scatter.writeTo(zipArchiveOutputStream);
+                }
+            }
+            zipArchiveOutputStream.finish();
+            zipArchiveOutputStream.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<ScatterZipOutputStream> future : futures.subList(written, futures.size())) {
+                discard(future);
+            }
+        }
+    }
+
+    /***
+     * 目录和CRC32已经缓存的STORED文件可以直接写入输出流
+     */
+    private static boolean isDirectWrite(Entry entry) {
+        if (entry.directory) {
+            return true;
+        }
+        if (!isCompressed(entry.path)) {
+            return false;
+        }
+        if (entry.crc < 0) {
+            Long cached = CRC_CACHE.getIfPresent(entry.getCrcKey());
+            if (cached == null) {
+                return false;
+            }
+            entry.crc = cached;
+        }
+        return true;
+    }
+
+    /***
+     * 把一批文件写入临时文件中, 已经压缩过的文件使用STORED, 其他文件使用DEFLATE
+     */
+    private static Future<ScatterZipOutputStream> submitDeflate(List<Entry> batch) {
+        return DEFLATE_EXECUTOR.submit(() -> {
+            ScatterZipOutputStream scatter = ScatterZipOutputStream.fileBased(File.createTempFile("zipDeflate", ".tmp"));
+            try {
+                for (Entry entry : batch) {
+                    ZipArchiveEntry zipArchiveEntry = newZipArchiveEntry(entry, isCompressed(entry.path) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                    scatter.addArchiveEntry(ZipArchiveEntryRequest.createZipArchiveEntryRequest(zipArchiveEntry, () -> FileUtil.getInputStream(entry.path.toFile())));
+                }
+                return scatter;
+            } catch (IOException | RuntimeException e) {
+                scatter.close();
+                throw e;
+            }
+        });
+    }
+
+    /***
+     * 下载中断时取消还没开始的任务, 已经开始的等待完成后删除临时文件
+     */
+    private static void discard(Future<ScatterZipOutputStream> future) {
+        if (future.cancel(false)) {
+            return;
+        }
+        try {
+            future.get().close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException ignored) {
+            // ignored
+        }
+    }
+
+    private static ZipArchiveEntry newZipArchiveEntry(Entry entry, int method) {
+        ZipArchiveEntry zipArchiveEntry = new ZipArchiveEntry(new String(entry.name, StandardCharsets.UTF_8));
+        zipArchiveEntry.setTime(entry.lastModified);
+        zipArchiveEntry.setMethod(method);
+        return zipArchiveEntry;
+    }
+
+    private static boolean overlaps(long position, long length, long start, long end) {
+        return length > 0 && position <= end && position + length > start;
+    }
+
+    private static void writeSlice(OutputStream outputStream, byte[] bytes, long position, long start, long end) throws IOException {
+        int from = (int) Math.max(0, start - position);
+        int to = (int) Math.min(bytes.length, end + 1 - position);
+        if (from < to) {
+            outputStream.write(bytes, from, to - from);
+        }
+    }
+
+    /***
+     * 输出文件内容
+     */
+    private static void writeData(OutputStream outputStream, Entry entry, long position, long start, long end) throws IOException {
+        long from = Math.max(start, position) - position;
+        long to = Math.min(end + 1, position + entry.size) - position;
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            if (channel.size() != entry.size) {
+                throw new IOException("文件已改变: " + entry.path);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long filePosition = from;
+            while (filePosition < to) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, to - filePosition));
+                int read = channel.read(buffer, filePosition);
+                if (read < 0) {
+                    throw new EOFException(entry.path.toString());
+                }
+                outputStream.write(buffer.array(), 0, read);
+                filePosition += read;
+            }
+        }
+    }
+
+    private static long getCrc(Entry entry) throws IOException {
+        if (entry.directory) {
+            return 0;
+        }
+        if (entry.crc >= 0) {
+            return entry.crc;
+        }
+        Long cached = CRC_CACHE.getIfPresent(entry.getCrcKey());
+        if (cached != null) {
+            entry.crc = cached;
+            return cached;
+        }
+        CRC32 crc32 = new CRC32();
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                crc32.update(buffer);
+                buffer.clear();
+            }
+        }
+        entry.crc = crc32.getValue();
+        CRC_CACHE.put(entry.getCrcKey(), entry.crc);
+        return entry.crc;
+    }
+
+    /***
+     * 本地文件头, CRC32和大小都写在文件头中, CRC32会缓存在CRC_CACHE中, 再次下载时不需要重新计算
+     */
+    private static byte[] getLocalHeader(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.getLocalHeaderLength()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(LOCAL_HEADER_SIG);
+        buffer.putShort((short) entry.getVersionNeeded());
+        buffer.putShort((short) FLAG_UTF8);
+        buffer.putShort((short) ZipEntry.STORED);
+        buffer.putInt(entry.dosTime);
+        buffer.putInt((int) getCrc(entry));
+        long size = entry.isZip64Size() ? ZIP64_MAGIC : entry.size;
+        buffer.putInt((int) size);
+        buffer.putInt((int) size);
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) (entry.isZip64Size() ? 20 : 0));
+        buffer.put(entry.name);
+        if (entry.isZip64Size()) {
+            buffer.putShort((short) 1);
+            buffer.putShort((short) 16);
+            buffer.putLong(entry.size);
+            buffer.putLong(entry.size);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] getCentralHeader(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.getCentralHeaderLength()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CENTRAL_HEADER_SIG);
+        buffer.putShort((short) entry.getVersionNeeded());
+        buffer.putShort((short) entry.getVersionNeeded());
+        buffer.putShort((short) FLAG_UTF8);
+        buffer.putShort((short) ZipEntry.STORED);
+        buffer.putInt(entry.dosTime);
+        buffer.putInt((int) getCrc(entry));
+        long size = entry.isZip64Size() ? ZIP64_MAGIC : entry.size;
+        buffer.putInt((int) size);
+        buffer.putInt((int) size);
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) entry.getCentralExtraLength());
+        // 注释长度, 磁盘号, 内部属性
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        // 外部属性, 0x10: 目录
+        buffer.putInt(entry.directory ? 0x10 : 0);
+        buffer.putInt((int) (entry.isZip64Offset() ? ZIP64_MAGIC : entry.offset));
+        buffer.put(entry.name);
+        if (entry.getCentralExtraLength() > 0) {
+            buffer.putShort((short) 1);
+            buffer.putShort((short) (entry.getCentralExtraLength() - 4));
+            if (entry.isZip64Size()) {
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.size);
+            }
+            if (entry.isZip64Offset()) {
+                buffer.putLong(entry.offset);
+            }
+        }
+        return buffer.array();
+    }
+
+    /***
+     * zip64结束记录(需要时) + zip64结束记录定位符(需要时) + 中央目录结束记录
+     */
+    private byte[] getEnd() {
+        ByteBuffer buffer = ByteBuffer.allocate((zip64End ? 56 + 20 : 0) + 22).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64End) {
+            buffer.putInt(ZIP64_END_SIG);
+            buffer.putLong(44);
+            buffer.putShort((short) 45);
+            buffer.putShort((short) 45);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entries.size());
+            buffer.putLong(entries.size());
+            buffer.putLong(centralDirectorySize);
+            buffer.putLong(centralDirectoryOffset);
+
+            buffer.putInt(ZIP64_LOCATOR_SIG);
+            buffer.putInt(0);
+            buffer.putLong(centralDirectoryOffset + centralDirectorySize);
+            buffer.putInt(1);
+        }
+        buffer.putInt(END_SIG);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_SHORT));
+        buffer.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_SHORT));
+        buffer.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        buffer.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        buffer.putShort((short) 0);
+        return buffer.array();
+    }
+
+    private static int toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+}
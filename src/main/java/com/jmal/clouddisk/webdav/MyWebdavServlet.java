@@ -27,6 +27,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
@@ -82,12 +83,8 @@ public class MyWebdavServlet extends WebdavServlet {
      */
     private static boolean filterTooManyRequest(HttpServletRequest request, HttpServletResponse response, String method) throws IOException {
         String uri = request.getRequestURI();
-        Path uriPath = Paths.get(uri);
-        if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath == null) {
-                return false;
-            }
+        if (CaffeineUtil.getOssPath(uri, 1) == null) {
+            return false;
         }
         // MAC & OSS & GET
         String userAgent = request.getHeader(HttpHeaders.USER_AGENT);
@@ -108,15 +105,18 @@ public class MyWebdavServlet extends WebdavServlet {
 
     @Override
     protected void copy(WebResource resource, long length, ServletOutputStream outStream, Ranges.Entry range) throws IOException {
-        Path prePath = Paths.get(resource.getWebappPath());
-        String ossPath = CaffeineUtil.getOssPath(prePath);
+        String ossPath = CaffeineUtil.getOssPath(resource.getWebappPath());
         if (ossPath != null) {
             long rangeStart = getStart(range, length);
             long rangeEnd = getEnd(range, length);
             IOssService ossService = OssConfigService.getOssStorageService(ossPath);
-            String objectName = WebOssService.getObjectName(prePath, ossPath, false);
-            AbstractOssObject rangeObject = ossService.getAbstractOssObject(objectName, rangeStart, rangeEnd);
-            super.copy(rangeObject.getInputStream(), outStream);
+            String objectName = WebOssService.getObjectName(Paths.get(resource.getWebappPath()), ossPath, false);
+            // 经过本地块缓存读取, 视频拖动进度时不用每次都请求oss
+            InputStream inputStream = ossService.getInputStream(objectName, rangeStart, rangeEnd);
+            if (inputStream == null) {
+                throw new FileNotFoundException(objectName);
+            }
+            super.copy(inputStream, outStream);
         } else {
             super.copy(resource, length, outStream, range);
         }
@@ -170,14 +170,11 @@ public class MyWebdavServlet extends WebdavServlet {
     @Override
     protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String uri = req.getRequestURI();
-        Path uriPath = Paths.get(uri);
-        if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath != null && uri.endsWith(ossPath + PATH_DELIMITER)) {
-                // 禁止删除oss根目录
-                sendNotAllowed(req, resp);
-                return;
-            }
+        String ossPath = CaffeineUtil.getOssPath(uri, 1);
+        if (ossPath != null && uri.endsWith(ossPath + PATH_DELIMITER)) {
+            // 禁止删除oss根目录
+            sendNotAllowed(req, resp);
+            return;
         }
         super.doDelete(req, resp);
         deleteFile(req, resp);
@@ -190,32 +187,30 @@ public class MyWebdavServlet extends WebdavServlet {
     }
 
     private void deleteFile(HttpServletRequest req, HttpServletResponse resp) {
-        String uri = URLUtil.decode(req.getRequestURI());
-        Path uriPath = Paths.get(uri);
+        if (resp.getStatus() != 204 || CaffeineUtil.getOssPath(req.getRequestURI(), 1) != null) {
+            return;
+        }
+        Path uriPath = Paths.get(URLUtil.decode(req.getRequestURI()));
         if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath == null && resp.getStatus() == 204) {
-                // 普通文件 && 删除成功
-                String username = uriPath.getName(1).toString();
-                String path = uriPath.subpath(1, uriPath.getNameCount()).toString();
-                File file = Paths.get(fileProperties.getRootDir(), path).toFile();
-                fileService.deleteFile(username, file);
-            }
+            // 普通文件 && 删除成功
+            String username = uriPath.getName(1).toString();
+            String path = uriPath.subpath(1, uriPath.getNameCount()).toString();
+            File file = Paths.get(fileProperties.getRootDir(), path).toFile();
+            fileService.deleteFile(username, file);
         }
     }
 
     private void createFile(HttpServletRequest req, HttpServletResponse resp) {
-        String uri = URLUtil.decode(req.getRequestURI());
-        Path uriPath = Paths.get(uri);
+        if (resp.getStatus() != 201 || CaffeineUtil.getOssPath(req.getRequestURI(), 1) != null) {
+            return;
+        }
+        Path uriPath = Paths.get(URLUtil.decode(req.getRequestURI()));
         if (uriPath.getNameCount() > 1) {
-            String ossPath = CaffeineUtil.getOssPath(uriPath.subpath(1, uriPath.getNameCount()));
-            if (ossPath == null && resp.getStatus() == 201) {
-                // 普通文件 && 上传成功
-                String username = uriPath.getName(1).toString();
-                String path = uriPath.subpath(1, uriPath.getNameCount()).toString();
-                File file = Paths.get(fileProperties.getRootDir(), path).toFile();
-                fileService.createFile(username, file);
-            }
+            // 普通文件 && 上传成功
+            String username = uriPath.getName(1).toString();
+            String path = uriPath.subpath(1, uriPath.getNameCount()).toString();
+            File file = Paths.get(fileProperties.getRootDir(), path).toFile();
+            fileService.createFile(username, file);
         }
     }
 
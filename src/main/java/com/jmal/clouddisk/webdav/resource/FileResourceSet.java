@@ -71,7 +71,7 @@ public class FileResourceSet extends AbstractFileResourceSet {
         checkPath(path);
 
         File f;
-        String ossPath = CaffeineUtil.getOssPath(Paths.get(path));
+        String ossPath = CaffeineUtil.getOssPath(path);
         if (ossPath != null) {
             String name = OssConfigService.getObjectName(path, ossPath);
             return OssConfigService.getOssStorageService(ossPath).list(name);
@@ -99,7 +99,7 @@ public class FileResourceSet extends AbstractFileResourceSet {
         }
 
         File f;
-        String ossPath = CaffeineUtil.getOssPath(Paths.get(path));
+        String ossPath = CaffeineUtil.getOssPath(path);
         if (ossPath != null) {
             String name = OssConfigService.getObjectName(path, ossPath);
             return OssConfigService.getOssStorageService(ossPath).mkdir(name);
@@ -1,16 +1,13 @@
 package com.jmal.clouddisk.webdav.resource;
 
-import com.jmal.clouddisk.oss.AbstractOssObject;
 import com.jmal.clouddisk.oss.FileInfo;
 import com.jmal.clouddisk.oss.IOssService;
-import com.jmal.clouddisk.oss.OssInputStream;
 import org.apache.catalina.WebResourceRoot;
 import org.apache.catalina.webresources.AbstractResource;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -18,7 +15,6 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.util.jar.Manifest;
-import java.util.zip.CheckedInputStream;
 
 public class OssFileResource extends AbstractResource {
 
@@ -155,24 +151,8 @@ public class OssFileResource extends AbstractResource {
                 return new ByteArrayInputStream(content);
             }
         }
-        AbstractOssObject object = this.ossStorageService.getObjectCache(resource.getKey());
-        if (object == null) {
-            return null;
-        }
-        InputStream inputStream;
-        try {
-            inputStream = object.getInputStream();
-        } catch (FileNotFoundException e) {
-            return null;
-        }
-        OssInputStream ossInputStream;
-        if (inputStream instanceof CheckedInputStream checkedInputStream) {
-            ossInputStream = new OssInputStream(inputStream, checkedInputStream.getChecksum());
-            ossInputStream.setAbstractOssObject(object);
-        } else {
-            return inputStream;
-        }
-        return ossInputStream;
+        // 经过本地块缓存读取
+        return this.ossStorageService.getInputStream(resource.getKey(), null, null);
     }
 
     @Override
@@ -196,11 +176,10 @@ public class OssFileResource extends AbstractResource {
         byte[] result = new byte[size];
 
         int pos = 0;
-        try (AbstractOssObject object = this.ossStorageService.getObjectCache(resource.getKey())) {
-            if (object == null) {
+        try (InputStream is = this.ossStorageService.getInputStream(resource.getKey(), null, null)) {
+            if (is == null) {
                 return null;
             }
-            InputStream is = object.getInputStream();
             while (pos < size) {
                 int n = is.read(result, pos, size - pos);
                 if (n < 0) {
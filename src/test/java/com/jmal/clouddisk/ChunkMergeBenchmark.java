@@ -0,0 +1,101 @@
+package com.jmal.clouddisk;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.lang.Console;
+import com.jmal.clouddisk.service.impl.MultipartUpload;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 分片合并的性能对比
+ * 旧的方式: 分片整个读入堆内存再追加; 新的方式: 按分片位置直接写入预先创建的目标文件(MultipartUpload.writeChunk)
+ * 参数: 总大小(MB, 默认4096) 分片大小(MB, 默认40) 临时目录(默认系统临时目录)
+ */
+class ChunkMergeBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        long totalMb = args.length > 0 ? Long.parseLong(args[0]) : 4096;
+        int chunkMb = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        Path dir = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("chunkMerge");
+        Path chunkDir = dir.resolve("chunks");
+        Files.createDirectories(chunkDir);
+        int chunkCount = (int) ((totalMb + chunkMb - 1) / chunkMb);
+        try {
+            createChunks(chunkDir, chunkCount, chunkMb * 1024L * 1024);
+            Console.log("总大小: {}MB, 分片: {} x {}MB", totalMb, chunkCount, chunkMb);
+            for (int round = 1; round <= 3; round++) {
+                run("readBytes", round, dir.resolve("heap.bin"), () -> mergeWithHeap(chunkDir, chunkCount, dir.resolve("heap.bin")));
+                run("positionalWrite", round, dir.resolve("positional.bin"), () -> mergeWithPositionalWrite(chunkDir, chunkCount, chunkMb * 1024L * 1024, dir.resolve("positional.bin")));
+            }
+        } finally {
+            FileUtil.del(dir);
+        }
+    }
+
+    private interface Merge {
+        void merge() throws IOException;
+    }
+
+    private static void run(String name, int round, Path output, Merge merge) throws IOException {
+        Files.deleteIfExists(output);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.currentTimeMillis();
+        merge.merge();
+        long time = System.currentTimeMillis() - startTime;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        long mb = Files.size(output) / 1024 / 1024;
+        Console.log("{} 第{}轮, 耗时: {}ms, {}MB/s, 堆分配: {}MB", name, round, time, time == 0 ? mb : mb * 1000 / time, allocated / 1024 / 1024);
+        Files.deleteIfExists(output);
+    }
+
+    private static void createChunks(Path chunkDir, int chunkCount, long chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        byte[] bytes = new byte[buffer.capacity()];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        buffer.put(bytes);
+        for (int i = 1; i <= chunkCount; i++) {
+            try (FileChannel channel = new FileOutputStream(chunkDir.resolve(String.valueOf(i)).toFile()).getChannel()) {
+                for (long written = 0; written < chunkSize; ) {
+                    buffer.clear();
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /***
+     * 原来的 MultipartUpload.appendFile
+     */
+    private static void mergeWithHeap(Path chunkDir, int chunkCount, Path output) throws IOException {
+        for (int i = 1; i <= chunkCount; i++) {
+            long position = output.toFile().length();
+            try (FileOutputStream fileOutputStream = new FileOutputStream(output.toFile(), true);
+                 FileChannel outChannel = fileOutputStream.getChannel()) {
+                outChannel.write(ByteBuffer.wrap(FileUtil.readBytes(chunkDir.resolve(String.valueOf(i)).toFile())), position);
+            }
+        }
+    }
+
+    private static void mergeWithPositionalWrite(Path chunkDir, int chunkCount, long chunkSize, Path output) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(output.toFile(), "rw")) {
+            randomAccessFile.setLength(chunkCount * chunkSize);
+        }
+        for (int i = 1; i <= chunkCount; i++) {
+            Path chunk = chunkDir.resolve(String.valueOf(i));
+            try (InputStream inputStream = Files.newInputStream(chunk)) {
+                MultipartUpload.writeChunk(inputStream, Files.size(chunk), output, (i - 1) * chunkSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.jmal.clouddisk;
+
+import cn.hutool.core.lang.Console;
+import cn.hutool.core.util.URLUtil;
+import com.jmal.clouddisk.oss.BucketInfo;
+import com.jmal.clouddisk.util.CaffeineUtil;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * oss路径前缀查找的性能对比
+ * 旧的方式: 解码后创建Path, 遍历所有前缀; 新的方式: CaffeineUtil.getOssPath 前缀索引
+ * 参数: 挂载的bucket数(默认500) 每轮查找次数(默认2000000)
+ */
+class OssPathLookupBenchmark {
+
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        int bucketCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        List<String> prefixList = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            String prefix = "/user" + (i % 50) + "/bucket" + i;
+            BucketInfo bucketInfo = new BucketInfo();
+            bucketInfo.setUsername("user" + (i % 50));
+            bucketInfo.setFolderName("bucket" + i);
+            CaffeineUtil.setOssDiameterPrefixCache(prefix, bucketInfo);
+            prefixList.add(prefix);
+        }
+        // 一半命中oss, 一半是普通文件
+        String[] uris = new String[256];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = i % 2 == 0 ? "/webDAV" + prefixList.get(i % bucketCount) + "/dir/file" + i + ".txt" : "/webDAV/user" + i + "/document/file" + i + ".txt";
+        }
+        for (String uri : uris) {
+            String expected = getOssPathLinear(prefixList, Paths.get(uri).subpath(1, 3));
+            if (!String.valueOf(expected).equals(String.valueOf(CaffeineUtil.getOssPath(uri, 1)))) {
+                throw new IllegalStateException("结果不一致: " + uri);
+            }
+        }
+        Console.log("bucket数: {}, 每轮查找: {}", bucketCount, iterations);
+        for (int round = 1; round <= 5; round++) {
+            run("linear", round, iterations, uris, uri -> getOssPathLinear(prefixList, Paths.get(uri).subpath(1, 3)));
+            run("index", round, iterations, uris, uri -> CaffeineUtil.getOssPath(uri, 1));
+        }
+    }
+
+    private static void run(String name, int round, int iterations, String[] uris, Function<String, String> lookup) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String ossPath = lookup.apply(uris[i & (uris.length - 1)]);
+            blackhole += ossPath == null ? 0 : ossPath.length();
+        }
+        long time = System.nanoTime() - startTime;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        Console.log("{} 第{}轮, {}ns/op, 堆分配: {}B/op", name, round, time / iterations, allocated / iterations);
+    }
+
+    /***
+     * 原来的 CaffeineUtil.getOssPath
+     */
+    private static String getOssPathLinear(List<String> prefixList, Path path) {
+        path = Paths.get(URLUtil.decode(path.toString()));
+        String prePath;
+        if (path.getNameCount() >= 2) {
+            prePath = "/" + path.subpath(0, 2);
+        } else {
+            return null;
+        }
+        for (String prefixPath : prefixList) {
+            if (prePath.equals(prefixPath)) {
+                return prefixPath;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,30 @@
+package com.jmal.clouddisk.service.impl;
+
+import com.jmal.clouddisk.model.FileDocument;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * @author jmal
+ * @Description 同步时磁盘上不存在的文件, 只删除普通文件, 保留挂载的文件夹和OSS目录
+ */
+public class FileSyncServiceTest {
+
+    @Test
+    public void keepMountFolder() {
+        FileDocument file = new FileDocument();
+        file.setName("a.txt");
+        FileDocument mountFolder = new FileDocument();
+        mountFolder.setName("share");
+        mountFolder.setMountFileId("64a0c1f2e4b0a1b2c3d4e5f6");
+        FileDocument ossFolder = new FileDocument();
+        ossFolder.setName("oss");
+        ossFolder.setOssFolder("oss");
+
+        List<String> deletedFileNames = FileSyncService.getDeletedFileNames(List.of(file, mountFolder, ossFolder));
+
+        Assert.assertEquals(List.of("a.txt"), deletedFileNames);
+    }
+}